@@ -0,0 +1,156 @@
+package com.molnify.xlport.benchmark;
+
+import com.molnify.xlport.TemplateGenerator;
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.Utils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for {@link Exporter#exportToExcel}, end-to-end as well as the individual stages: cell
+ * insertion, style replication and CF/DV expansion (through the template variants), formula
+ * evaluation and writing the workbook.
+ *
+ * <p>Run with {@code mvn -Pbenchmark test}. The default arguments include the GC profiler, which
+ * reports the allocation rate ({@code gc.alloc.rate.norm} is bytes per operation).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+  static final int COLUMNS = 10;
+
+  @State(Scope.Benchmark)
+  public static class Payload {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int cells;
+
+    @Param({"PLAIN", "STYLED", "VALIDATED"})
+    public String variant;
+
+    TemplateGenerator generator;
+    byte[] templateBytes;
+    JSONObject data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      // One table with one formula column, styled and validated depending on the variant
+      generator =
+          new TemplateGenerator(42)
+              .setColumnsPerTable(COLUMNS)
+              .setStyled(!"PLAIN".equals(variant))
+              .setDataValidationsPerTable("VALIDATED".equals(variant) ? 1 : 0)
+              .setConditionalFormatsPerTable("VALIDATED".equals(variant) ? 1 : 0);
+      templateBytes = generator.templateBytes();
+      data = generator.data(cells / generator.getDataColumnsPerTable());
+    }
+  }
+
+  /** A fresh template for every invocation, as the export modifies it in place */
+  @State(Scope.Thread)
+  public static class FreshTemplate {
+    Template template;
+
+    @Setup(Level.Invocation)
+    public void setUp(Payload payload) throws IOException {
+      template = TemplateGenerator.open(payload.templateBytes);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+      template.close();
+    }
+  }
+
+  /** A template that has already been populated with the payload */
+  @State(Scope.Thread)
+  public static class PopulatedTemplate {
+    Template template;
+
+    @Setup(Level.Invocation)
+    public void setUp(Payload payload) throws IOException {
+      template = TemplateGenerator.open(payload.templateBytes);
+      Exporter.exportToExcel(payload.data, template, new JSONArray(), true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+      template.close();
+    }
+  }
+
+  @Benchmark
+  public JSONArray exportToExcel(Payload payload, FreshTemplate fresh) {
+    JSONArray potentialErrors = new JSONArray();
+    Exporter.exportToExcel(payload.data, fresh.template, potentialErrors, true);
+    return potentialErrors;
+  }
+
+  /** Same as the end-to-end case, without replication of styles, data validations and CFs */
+  @Benchmark
+  public JSONArray exportToExcelWithoutFormatting(Payload payload, FreshTemplate fresh) {
+    JSONArray potentialErrors = new JSONArray();
+    Exporter.exportToExcel(payload.data, fresh.template, potentialErrors, false);
+    return potentialErrors;
+  }
+
+  /** Only the conversion from JSON into cells, with no table resizing or formatting */
+  @Benchmark
+  public void insertCells(Payload payload, FreshTemplate fresh, Blackhole blackhole) {
+    JSONArray rows = payload.data.getJSONArray(TemplateGenerator.tableName(1, 1));
+    int firstDataRow = payload.generator.getFirstDataRow();
+    JSONArray potentialErrors = new JSONArray();
+    for (int i = 0; i < rows.length(); i++) {
+      JSONObject row = rows.getJSONObject(i);
+      for (int col = 0; col < payload.generator.getDataColumnsPerTable(); col++) {
+        XSSFCell cell =
+            Exporter.findAndCreateCellIfRequired(
+                fresh.template.workbook, "Sheet1", firstDataRow + i, col, potentialErrors);
+        blackhole.consume(
+            Exporter.insertDataFromJSONIntoCell(
+                row.get(TemplateGenerator.columnName(col)), cell));
+      }
+    }
+  }
+
+  @Benchmark
+  public void evaluateAll(PopulatedTemplate populated) {
+    populated.template.workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+  }
+
+  @Benchmark
+  public void write(PopulatedTemplate populated) throws IOException {
+    Utils.writeWorkbook(populated.template.workbook, NullOutputStream.INSTANCE);
+  }
+
+  static class NullOutputStream extends OutputStream {
+    static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
@@ -0,0 +1,178 @@
+package com.molnify.xlport.benchmark;
+
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Importer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link Importer#importData}: property-only, table-only and wildcard requests,
+ * with and without formula evaluation.
+ *
+ * <p>The workbooks are generated from a seed in src/test/resources (keeping its named ranges and
+ * tables) with the requested number of tables and rows added. The {@code cells} and {@code
+ * allocatedBytes} counters are summed per iteration, so their ratio is the number of bytes
+ * allocated per imported cell.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+  private static final int COLUMNS = 4;
+
+  @State(Scope.Benchmark)
+  public static class Workbook {
+    @Param({"import-datatypes.xlsx", "Sample import.xlsx"})
+    public String seed;
+
+    @Param({"1", "10", "500"})
+    public int tables;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean evaluate;
+
+    XSSFWorkbook workbook;
+    int properties, seedTableCells;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      try (InputStream in = ImportBenchmark.class.getClassLoader().getResourceAsStream(seed)) {
+        workbook = new XSSFWorkbook(in);
+      }
+      properties = workbook.getAllNames().size();
+      for (int t = 0; t < tables; t++)
+        addTable(workbook, "Generated" + (t + 1), rows / tables + (t < rows % tables ? 1 : 0));
+      // Tables in the seed are imported as well, so count their cells once up front
+      JSONObject all =
+          Importer.importData(
+              new JSONObject().put(Importer.TABLES, new JSONArray().put("*")),
+              workbook,
+              new JSONArray(),
+              false);
+      JSONObject tablesJson = all.getJSONObject(Importer.TABLES);
+      for (String name : tablesJson.keySet())
+        if (!name.startsWith("Generated")) {
+          JSONArray table = tablesJson.getJSONArray(name);
+          for (int i = 0; i < table.length(); i++)
+            seedTableCells += table.getJSONObject(i).length();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      workbook.close();
+    }
+  }
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Allocation {
+    public long cells;
+    public long allocatedBytes;
+
+    private long before;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+      before = allocatedBytes();
+    }
+
+    void done(long importedCells) {
+      allocatedBytes += allocatedBytes() - before;
+      cells += importedCells;
+    }
+
+    private static long allocatedBytes() {
+      return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+
+  @Benchmark
+  public JSONObject properties(Workbook wb, Allocation allocation) {
+    JSONObject result =
+        Importer.importData(
+            new JSONObject().put(Importer.PROPERTIES, new JSONArray().put("*")),
+            wb.workbook,
+            new JSONArray(),
+            wb.evaluate);
+    allocation.done(wb.properties);
+    return result;
+  }
+
+  @Benchmark
+  public JSONObject tables(Workbook wb, Allocation allocation) {
+    JSONObject result =
+        Importer.importData(
+            new JSONObject().put(Importer.TABLES, new JSONArray().put("*")),
+            wb.workbook,
+            new JSONArray(),
+            wb.evaluate);
+    allocation.done(wb.seedTableCells + (long) wb.rows * COLUMNS);
+    return result;
+  }
+
+  @Benchmark
+  public JSONObject wildcard(Workbook wb, Allocation allocation) {
+    JSONObject result = Importer.importAllData(wb.workbook, new JSONArray(), wb.evaluate);
+    allocation.done(wb.properties + wb.seedTableCells + (long) wb.rows * COLUMNS);
+    return result;
+  }
+
+  /** Adds a sheet with a table of text, number, date and formula columns */
+  private static void addTable(XSSFWorkbook workbook, String name, int rows) {
+    XSSFSheet sheet = workbook.createSheet(name);
+    XSSFCellStyle date = workbook.createCellStyle();
+    date.setDataFormat(workbook.createDataFormat().getFormat("yyyy-mm-dd"));
+    Row header = sheet.createRow(0);
+    header.createCell(0).setCellValue("Text");
+    header.createCell(1).setCellValue("Number");
+    header.createCell(2).setCellValue("Date");
+    header.createCell(3).setCellValue("Formula");
+    for (int i = 1; i <= Math.max(1, rows); i++) {
+      Row row = sheet.createRow(i);
+      row.createCell(0).setCellValue("row-" + i);
+      row.createCell(1).setCellValue(i * 1.5);
+      row.createCell(2).setCellValue(43000 + i % 1000);
+      row.getCell(2).setCellStyle(date);
+      row.createCell(3).setCellFormula("B" + (i + 1) + "*2");
+    }
+    Exporter.createTableFromReference(
+        sheet,
+        new AreaReference(
+            new CellReference(0, 0),
+            new CellReference(Math.max(1, rows), COLUMNS - 1),
+            SpreadsheetVersion.EXCEL2007),
+        name);
+  }
+}
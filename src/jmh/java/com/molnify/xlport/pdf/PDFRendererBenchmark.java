@@ -0,0 +1,89 @@
+package com.molnify.xlport.pdf;
+
+import com.molnify.xlport.TemplateGenerator;
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Template;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link PDFRenderer} on a generated 20 sheet workbook, by the number of layout
+ * threads. The layout should scale close to linearly up to the number of cores, while painting is
+ * sequential.
+ *
+ * <p>Run with {@code mvn -Pbenchmark test -Djmh.args="PDFRendererBenchmark"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PDFRendererBenchmark {
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  @Param({"20"})
+  public int sheets;
+
+  @Param({"500"})
+  public int rowsPerTable;
+
+  private Template template;
+  private ExecutorService executor;
+  private final ExportFormat format = new ExportFormat().setShowPageNumbers(true);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    TemplateGenerator generator =
+        new TemplateGenerator(42).setSheets(sheets).setTablesPerSheet(2).setStyled(true);
+    template = generator.template();
+    Exporter.exportToExcel(generator.data(rowsPerTable), template, new JSONArray(), true);
+    executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (executor != null) executor.shutdown();
+    template.close();
+  }
+
+  @Benchmark
+  public List<PDFRenderer.Page> layout() {
+    return PDFRenderer.layout(template.workbook, format, executor);
+  }
+
+  @Benchmark
+  public void render() throws IOException {
+    PDFRenderer.paint(
+        PDFRenderer.layout(template.workbook, format, executor), format, NullOutputStream.INSTANCE);
+  }
+
+  static class NullOutputStream extends OutputStream {
+    static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
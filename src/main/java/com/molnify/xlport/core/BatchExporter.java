@@ -0,0 +1,275 @@
+package com.molnify.xlport.core;
+
+import com.molnify.xlport.pdf.ExportFormat;
+import com.molnify.xlport.pdf.PDFExporter;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Exports many data payloads into the same template, as one zip file with an entry per item. The
+ * template is read once, and every item is exported to its own copy, in parallel on a shared pool
+ * of XLPORT_BATCH_THREADS threads (default one per core). Results are written to the zip in the
+ * order of the items as soon as they, and all items before them, are done. At most a few items per
+ * thread are in memory at any time, so neither the items nor the zip need to fit in memory.
+ *
+ * <p>An item is a JSON object with "data" (as for a single export) and, optionally, "filename"
+ * (without suffix). An item that fails, or has potential errors, gets an additional entry with the
+ * same name and the suffix ".errors.json".
+ *
+ * @author kirsten
+ */
+public class BatchExporter {
+  private static final Logger log = Logger.getLogger(BatchExporter.class.getName());
+
+  private static final int THREADS = threads();
+  // Items in flight per thread, so that threads are kept busy while results are written in order
+  private static final int ITEMS_PER_THREAD = 2;
+
+  private static int threads() {
+    String threads = System.getenv("XLPORT_BATCH_THREADS");
+    if (threads != null && !threads.trim().isEmpty()) return Integer.parseInt(threads.trim());
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Created on first use, as most deployments never export in batches */
+  private static class Pool {
+    private static final AtomicInteger count = new AtomicInteger();
+    static final ExecutorService POOL =
+        Executors.newFixedThreadPool(
+            THREADS,
+            r -> {
+              Thread t = new Thread(r, "xlport-batch-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /** The result of one item, in memory until it is written to the zip */
+  private static class Result {
+    final String name;
+    byte[] bytes;
+    final JSONArray errors = new JSONArray();
+
+    Result(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Exports every item into its own copy of the template, and writes them to a zip
+   *
+   * @param templateBytes the template as xlsx (see {@link TemplateManager#getTemplateBytes})
+   * @param templateFileName the file name of the template, for the suffix of the entries
+   * @param options the options for all items, as for a single export (e.g., "format" or
+   *     "overwriteFormatting")
+   * @param items the items, read as they are needed
+   * @param out where the zip is written (closed when done)
+   * @return the number of items exported
+   */
+  public static int export(
+      byte[] templateBytes,
+      String templateFileName,
+      JSONObject options,
+      Iterator<JSONObject> items,
+      OutputStream out)
+      throws IOException {
+    return export(templateBytes, templateFileName, options, items, out, Pool.POOL, THREADS);
+  }
+
+  static int export(
+      byte[] templateBytes,
+      String templateFileName,
+      JSONObject options,
+      Iterator<JSONObject> items,
+      OutputStream out,
+      ExecutorService executor,
+      int threads)
+      throws IOException {
+    long ts = System.currentTimeMillis();
+    boolean pdf = "pdf".equals(options.optString("format"));
+    String suffix = pdf ? "pdf" : Template.getFileSuffix(templateFileName);
+    Set<String> names = new HashSet<>();
+    ArrayDeque<Future<Result>> inFlight = new ArrayDeque<>();
+    int count = 0;
+    try (ZipOutputStream zip = new ZipOutputStream(out)) {
+      try {
+        while (items.hasNext()) {
+          JSONObject item = next(items);
+          String name = entryName(item, ++count, names);
+          inFlight.add(
+              executor.submit(
+                  () -> exportItem(templateBytes, templateFileName, options, item, name)));
+          if (inFlight.size() >= threads * ITEMS_PER_THREAD) write(zip, inFlight.poll(), suffix);
+        }
+        while (!inFlight.isEmpty()) write(zip, inFlight.poll(), suffix);
+      } finally {
+        // E.g., the client went away, no need to finish the rest
+        for (Future<Result> f : inFlight) f.cancel(true);
+      }
+    }
+    log.info(
+        "Exported batch of "
+            + count
+            + " items from ["
+            + templateFileName
+            + "] in "
+            + (System.currentTimeMillis() - ts)
+            + " ms");
+    return count;
+  }
+
+  private static JSONObject next(Iterator<JSONObject> items) {
+    try {
+      return items.next();
+    } catch (JSONException e) {
+      // Reported for the item, the other items are still exported
+      return new JSONObject().put("invalid", e.getMessage());
+    }
+  }
+
+  private static Result exportItem(
+      byte[] templateBytes,
+      String templateFileName,
+      JSONObject options,
+      JSONObject item,
+      String name) {
+    Result result = new Result(name);
+    if (item.has("invalid")) {
+      result.errors.put("Invalid item: " + item.getString("invalid"));
+      return result;
+    }
+    try (Template template =
+        TemplateManager.getTemplateFromBytes(templateBytes, templateFileName)) {
+      Exporter.exportToExcel(
+          item.getJSONObject("data"),
+          template,
+          result.errors,
+          options.optBoolean("overwriteFormatting", true),
+          new ExportContext().setStrings(options.opt("strings")));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      if ("pdf".equals(options.optString("format"))) {
+        ExportFormat format = new ExportFormat();
+        if (options.has("landscape")) format.setPortrait(!options.getBoolean("landscape"));
+        PDFExporter.toStream(template.workbook, format, bytes);
+      } else {
+        if (options.optBoolean("protectWorkbook"))
+          template.protectWorkbook(options.optString("workbookPassword", null));
+        Utils.writeWorkbook(template.workbook, bytes);
+      }
+      result.bytes = bytes.toByteArray();
+    } catch (Exception e) {
+      log.warning("Batch item [" + name + "] failed: " + e.getMessage());
+      result.errors.put(e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+    return result;
+  }
+
+  private static void write(ZipOutputStream zip, Future<Result> future, String suffix)
+      throws IOException {
+    Result result;
+    try {
+      result = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while exporting batch", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Batch item failed", e.getCause());
+    }
+    if (result.bytes != null) {
+      zip.putNextEntry(new ZipEntry(suffix.isEmpty() ? result.name : result.name + "." + suffix));
+      zip.write(result.bytes);
+      zip.closeEntry();
+    }
+    if (result.errors.length() > 0) {
+      zip.putNextEntry(new ZipEntry(result.name + ".errors.json"));
+      zip.write(
+          new JSONObject()
+              .put("status", result.bytes == null ? "error" : "ok")
+              .put("errors", result.errors)
+              .toString()
+              .getBytes(StandardCharsets.UTF_8));
+      zip.closeEntry();
+    }
+  }
+
+  /** The name of the entry of an item, from its "filename" (made safe and unique) or position */
+  private static String entryName(JSONObject item, int position, Set<String> names) {
+    String name = item.optString("filename", "").replaceAll("[/\\\\:*?\"<>|]", "_").trim();
+    if (name.isEmpty() || name.startsWith(".")) name = "item-" + position;
+    if (!names.add(name)) {
+      name = name + "-" + position;
+      names.add(name);
+    }
+    return name;
+  }
+
+  /**
+   * Reads items from newline delimited JSON (one item per line, blank lines ignored) as they are
+   * needed
+   */
+  public static Iterator<JSONObject> fromNDJSON(BufferedReader reader) {
+    return new Iterator<JSONObject>() {
+      private String next = null;
+
+      @Override
+      public boolean hasNext() {
+        try {
+          while (next == null) {
+            String line = reader.readLine();
+            if (line == null) return false;
+            if (!line.trim().isEmpty()) next = line;
+          }
+          return true;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+
+      @Override
+      public JSONObject next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String line = next;
+        next = null;
+        return new JSONObject(line);
+      }
+    };
+  }
+
+  /** The items of a JSON array */
+  public static Iterator<JSONObject> fromJSONArray(JSONArray items) {
+    return new Iterator<JSONObject>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < items.length();
+      }
+
+      @Override
+      public JSONObject next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return items.getJSONObject(i++);
+      }
+    };
+  }
+}
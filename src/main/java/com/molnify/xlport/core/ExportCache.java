@@ -0,0 +1,308 @@
+package com.molnify.xlport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Content-addressed cache of export results on local disk. The key is a SHA-256 hash of the
+ * template id and version, the data (canonicalized, so that key order and whitespace do not matter)
+ * and the options that change the output. A hit is streamed from disk without loading the template.
+ * Entries are evicted least recently used first, once the cache grows beyond its size cap.
+ *
+ * <p>The cache is enabled by setting XLPORT_EXPORT_CACHE_DIR to a directory (created if missing),
+ * and capped by XLPORT_EXPORT_CACHE_MAX_BYTES (default 256 MB). Workbooks are stored with fixed zip
+ * entry timestamps (see {@link Utils#normalizeZip}), so that a hit is byte for byte what a new
+ * export would return.
+ *
+ * @author kirsten
+ */
+public class ExportCache {
+  private static final Logger log = Logger.getLogger(ExportCache.class.getName());
+
+  /** The request options that change the exported bytes (not, e.g., the file name) */
+  static final String[] OPTIONS = {
+    "overwriteFormatting",
+    "protectWorkbook",
+    "workbookPassword",
+    "format",
+    "landscape",
+    "strings",
+    "previous",
+    "previousFile"
+  };
+
+  private static final String SUFFIX = ".export", TMP_SUFFIX = ".tmp";
+  private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private static Path dir = null;
+  private static long maxBytes = DEFAULT_MAX_BYTES, totalBytes = 0;
+  // Key to size in bytes, in access order (least recently used first)
+  private static final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Writes an export result */
+  public interface Content {
+    void writeTo(OutputStream out) throws Exception;
+  }
+
+  static {
+    String cacheDir = System.getenv("XLPORT_EXPORT_CACHE_DIR");
+    String max = System.getenv("XLPORT_EXPORT_CACHE_MAX_BYTES");
+    if (cacheDir != null && !cacheDir.trim().isEmpty()) {
+      try {
+        configure(
+            Paths.get(cacheDir.trim()),
+            max == null || max.trim().isEmpty() ? DEFAULT_MAX_BYTES : Long.parseLong(max.trim()));
+      } catch (IOException | NumberFormatException e) {
+        log.warning("Export cache disabled, could not configure it: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Enables the cache in a directory, picking up the entries already in it (oldest first), or
+   * disables it. Allows configuration as a library, and overrides the environment variables.
+   *
+   * @param directory where entries are stored, or null to disable the cache
+   * @param maxSizeInBytes the size cap of the cache
+   */
+  public static synchronized void configure(Path directory, long maxSizeInBytes)
+      throws IOException {
+    entries.clear();
+    totalBytes = 0;
+    dir = directory;
+    maxBytes = maxSizeInBytes;
+    if (dir == null) return;
+    Files.createDirectories(dir);
+    List<File> files = new ArrayList<>();
+    File[] listed = dir.toFile().listFiles();
+    if (listed != null)
+      for (File f : listed) {
+        if (f.getName().endsWith(SUFFIX)) files.add(f);
+        else if (f.getName().endsWith(TMP_SUFFIX)) f.delete(); // Left by an interrupted write
+      }
+    files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    for (File f : files) {
+      String name = f.getName();
+      entries.put(name.substring(0, name.length() - SUFFIX.length()), f.length());
+      totalBytes += f.length();
+    }
+    evict(null);
+    log.info(
+        "Export cache in "
+            + dir
+            + " with "
+            + entries.size()
+            + " entries ("
+            + totalBytes
+            + " of at most "
+            + maxBytes
+            + " bytes)");
+  }
+
+  public static synchronized boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * The cache key of an export request
+   *
+   * @param templateId the id of the template
+   * @param templateVersion the version of the template, changes whenever the template does
+   * @param request the export request, with "data" and the options
+   * @return a hex encoded SHA-256 hash
+   */
+  public static String key(String templateId, String templateVersion, JSONObject request) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (Writer w =
+        new OutputStreamWriter(
+            new DigestOutputStream(
+                new OutputStream() {
+                  @Override
+                  public void write(int b) {}
+                },
+                digest),
+            StandardCharsets.UTF_8)) {
+      JSONObject options = new JSONObject();
+      for (String option : OPTIONS)
+        if (request.has(option)) options.put(option, request.get(option));
+      canonical(templateId, w);
+      w.write('\n');
+      canonical(templateVersion, w);
+      w.write('\n');
+      canonical(options, w);
+      w.write('\n');
+      canonical(request.opt("data"), w);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  /** Writes JSON with the keys of objects sorted, and without whitespace */
+  static void canonical(Object value, Writer w) throws IOException {
+    if (value instanceof JSONObject) {
+      JSONObject o = (JSONObject) value;
+      w.write('{');
+      String separator = "";
+      for (String key : new TreeSet<>(o.keySet())) {
+        w.write(separator);
+        w.write(JSONObject.quote(key));
+        w.write(':');
+        canonical(o.get(key), w);
+        separator = ",";
+      }
+      w.write('}');
+    } else if (value instanceof JSONArray) {
+      JSONArray a = (JSONArray) value;
+      w.write('[');
+      for (int i = 0; i < a.length(); i++) {
+        if (i > 0) w.write(',');
+        canonical(a.get(i), w);
+      }
+      w.write(']');
+    } else if (value == null || JSONObject.NULL.equals(value)) {
+      w.write("null");
+    } else if (value instanceof String) {
+      w.write(JSONObject.quote((String) value));
+    } else if (value instanceof Number) {
+      w.write(JSONObject.numberToString((Number) value));
+    } else {
+      w.write(value.toString());
+    }
+  }
+
+  /**
+   * Opens a cached export result, and marks it as recently used
+   *
+   * @return the stored bytes, or null if not cached
+   */
+  public static synchronized InputStream open(String key) throws IOException {
+    if (dir == null || entries.get(key) == null) return null;
+    File file = file(key);
+    if (!file.exists()) {
+      // Removed behind our back
+      totalBytes -= entries.remove(key);
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis()); // Keeps the order across restarts
+    // Opened while holding the lock, so that eviction cannot delete it first
+    return new BufferedInputStream(Files.newInputStream(file.toPath()));
+  }
+
+  /**
+   * Writes an export result to the cache. Workbooks (zip files) are normalized first. A result
+   * larger than the size cap is not cached, and is deleted once the returned stream is closed.
+   *
+   * @param key the key, from {@link #key}
+   * @param content writes the export result
+   * @return the stored bytes, to be returned to the client
+   */
+  public static InputStream put(String key, Content content) throws Exception {
+    Path directory;
+    synchronized (ExportCache.class) {
+      directory = dir;
+    }
+    if (directory == null) throw new IllegalStateException("Export cache not enabled");
+    // Written to a temporary file, so that no one reads an entry half written
+    Path tmp = Files.createTempFile(directory, key, TMP_SUFFIX);
+    boolean returned = false;
+    try {
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+        content.writeTo(out);
+      }
+      if (Utils.isZip(tmp)) Utils.normalizeZip(tmp);
+      long size = Files.size(tmp);
+      synchronized (ExportCache.class) {
+        // A result larger than the cache is not cached, rather than evicting everything else
+        if (size > maxBytes) {
+          log.info("Export [" + key + "] of " + size + " bytes is larger than the cache");
+          InputStream in = new TemporaryFileInputStream(tmp);
+          returned = true;
+          return in;
+        }
+        Files.move(
+            tmp,
+            file(key).toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        Long previous = entries.put(key, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        InputStream in = open(key);
+        evict(key);
+        return in;
+      }
+    } finally {
+      if (!returned) Files.deleteIfExists(tmp);
+    }
+  }
+
+  /** Reads a file, and deletes it when closed */
+  private static class TemporaryFileInputStream extends FilterInputStream {
+    private final Path file;
+
+    TemporaryFileInputStream(Path file) throws IOException {
+      super(new BufferedInputStream(Files.newInputStream(file)));
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * Removes the least recently used entries, until the cache is within its size cap
+   *
+   * @param keep the entry just written, which is never removed
+   */
+  private static synchronized void evict(String keep) {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Long> lru = it.next();
+      if (lru.getKey().equals(keep)) continue;
+      if (!file(lru.getKey()).delete()) log.warning("Could not evict " + lru.getKey());
+      totalBytes -= lru.getValue();
+      it.remove();
+    }
+  }
+
+  private static File file(String key) {
+    return dir.resolve(key + SUFFIX).toFile();
+  }
+}
@@ -0,0 +1,215 @@
+package com.molnify.xlport.core;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+
+/**
+ * The state of one export, passed through {@link Exporter}. Reports progress as rows written out
+ * of the total number of rows in the data (one per property, and one per table row), and can be
+ * read from other threads while the export runs, e.g., to report the progress of an asynchronous
+ * export.
+ *
+ * <p>An export can be cancelled from another thread, or given a deadline. The exporter checks
+ * every {@link #CHECK_EVERY} rows (and formula cells), and between keys and sheets, and stops with
+ * a {@link CancellationException} at the first check after cancellation. The exception, and the
+ * error the exporter adds to its potential errors (see {@link #toError}), say where the export
+ * stopped, e.g., "table Orders 41200/90000 rows".
+ *
+ * <p>It also says how the strings of tables are written, see {@link #setStrings(Object)}.
+ *
+ * @author kirsten
+ */
+public class ExportContext {
+  /** Rows, or formula cells, between checks for cancellation */
+  public static final int CHECK_EVERY = 1000;
+
+  // Written by the exporting thread (and sheet writers, under the lock of this context), volatile
+  // so that others see the latest value
+  private volatile long rowsWritten = 0, totalRows = 0;
+  private volatile String phase = "queued";
+  // The key being populated (or sheet being created), and how far it has come
+  private volatile String key = null;
+  private volatile boolean table = false;
+  private volatile long keyRowsWritten = 0, keyTotalRows = 0, cellsEvaluated = 0;
+  private volatile boolean cancelled = false;
+  private volatile long deadline = 0;
+  private int untilCheck = CHECK_EVERY;
+  private Strings strings = Strings.SHARED;
+  private Map<String, Strings> stringsByTable = Collections.emptyMap();
+  // Rows of tables that have the formatting of their first row already, by table
+  private final Map<String, Integer> formattedRows = new ConcurrentHashMap<>();
+
+  /** How the strings of table cells are written */
+  public enum Strings {
+    /** In the shared strings table of the workbook, where each distinct string is stored once */
+    SHARED,
+    /** In the cells themselves, which saves hashing and keeping strings that are mostly unique */
+    INLINE,
+    /**
+     * Inline for columns where most strings are distinct, in the first {@link
+     * ValuePipeline#ADAPTIVE_ROWS} rows, and shared for the other columns
+     */
+    ADAPTIVE
+  }
+
+  public long getRowsWritten() {
+    return rowsWritten;
+  }
+
+  public long getTotalRows() {
+    return totalRows;
+  }
+
+  /** @return what the export is doing: "sheets", "data" or "evaluation" (or "queued" before) */
+  public String getPhase() {
+    return phase;
+  }
+
+  /** @return the key being populated, or sheet being created, if any */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return where the export is, e.g., "table Orders 41200/90000 rows" or "evaluation 1200 formula
+   *     cells"
+   */
+  public String describe() {
+    switch (phase) {
+      case "sheets":
+        return "sheet " + key;
+      case "data":
+        if (key == null) return "data";
+        if (table) return "table " + key + " " + keyRowsWritten + "/" + keyTotalRows + " rows";
+        return "property " + key;
+      case "evaluation":
+        return "evaluation " + cellsEvaluated + " formula cells";
+      default:
+        return phase;
+    }
+  }
+
+  /** @return a potential error for an export stopped at its current point */
+  public JSONObject toError(String message) {
+    return new JSONObject()
+        .put("status", "error")
+        .put("message", message)
+        .put("phase", phase)
+        .put("key", key == null ? JSONObject.NULL : key)
+        .put("rowsWritten", rowsWritten)
+        .put("totalRows", totalRows);
+  }
+
+  /** Stops the export at its next check, from any thread */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @param deadline when to stop the export, in milliseconds since the epoch, or 0 for no deadline
+   */
+  public ExportContext setDeadline(long deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Sets how the strings of tables are written, from the "strings" option of a request: "shared"
+   * (the default), "inline" or "adaptive" for all tables, or an object with one of them by table,
+   * e.g., {"Orders": "inline"}, where other tables are shared
+   *
+   * @param option the option, or null to leave it as it is
+   * @throws IllegalArgumentException if it is not one of the above
+   */
+  public ExportContext setStrings(Object option) {
+    if (option == null || option == JSONObject.NULL) return this;
+    if (option instanceof JSONObject) {
+      Map<String, Strings> byTable = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (String table : ((JSONObject) option).keySet())
+        byTable.put(table, strings(((JSONObject) option).get(table)));
+      stringsByTable = byTable;
+    } else strings = strings(option);
+    return this;
+  }
+
+  private static Strings strings(Object option) {
+    try {
+      return Strings.valueOf(option.toString().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "Option strings should be shared, inline or adaptive, not [" + option + "]");
+    }
+  }
+
+  /** @return how the strings of the table are written */
+  public Strings getStrings(String table) {
+    return stringsByTable.getOrDefault(table, strings);
+  }
+
+  /**
+   * Sets the number of data rows of a table that have the formatting (style, data validation and
+   * conditional formatting) of its first row already, e.g., in a previous export that is updated,
+   * so that the exporter only replicates it to the rows after
+   */
+  public ExportContext setFormattedRows(String table, int rows) {
+    formattedRows.put(table, rows);
+    return this;
+  }
+
+  /** @return the number of data rows of the table that have the formatting of its first row */
+  public int getFormattedRows(String table) {
+    return formattedRows.getOrDefault(table, 0);
+  }
+
+  /** Throws a {@link CancellationException} if the export is cancelled or past its deadline */
+  public void checkpoint() {
+    if (cancelled) throw new CancellationException("Export cancelled at " + describe());
+    if (deadline > 0 && System.currentTimeMillis() > deadline)
+      throw new CancellationException("Export deadline exceeded at " + describe());
+  }
+
+  void setTotalRows(long totalRows) {
+    this.totalRows = totalRows;
+  }
+
+  void setPhase(String phase) {
+    this.phase = phase;
+    this.key = null;
+    checkpoint();
+  }
+
+  /** Starts on a key (or sheet), with its number of rows */
+  synchronized void setKey(String key, boolean table, long rows) {
+    this.key = key;
+    this.table = table;
+    this.keyRowsWritten = 0;
+    this.keyTotalRows = rows;
+  }
+
+  synchronized void rowWritten() {
+    rowsWritten++;
+    keyRowsWritten++;
+    tick();
+  }
+
+  synchronized void cellEvaluated() {
+    cellsEvaluated++;
+    tick();
+  }
+
+  /** Counts a unit of work, and checks for cancellation every {@link #CHECK_EVERY} of them */
+  synchronized void tick() {
+    if (--untilCheck > 0) return;
+    untilCheck = CHECK_EVERY;
+    checkpoint();
+  }
+}
@@ -0,0 +1,292 @@
+package com.molnify.xlport.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Asynchronous exports, for exports that take longer than clients (or load balancers) are willing
+ * to wait for. A job is submitted and runs on a background pool of XLPORT_EXPORT_JOBS_THREADS
+ * threads (default one per core), while its progress (rows written out of the total) can be
+ * polled. The result is stored on local disk, in XLPORT_EXPORT_JOBS_DIR (default a directory in
+ * the system temp directory), and can be fetched until it expires, XLPORT_EXPORT_JOBS_TTL_SECONDS
+ * (default one hour) after the job finished. Expired jobs and results are removed in the
+ * background.
+ *
+ * <p>A job can be cancelled while it is queued or running. Jobs are kept in memory, so they do not
+ * survive a restart. Results left from an earlier run are removed once they have expired.
+ *
+ * @author kirsten
+ */
+public class ExportJobs {
+  private static final Logger log = Logger.getLogger(ExportJobs.class.getName());
+
+  private static final String SUFFIX = ".result", TMP_SUFFIX = ".tmp";
+  private static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(1);
+  // How often expired jobs are looked for, at most
+  private static final long MAX_CLEANUP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static Path dir = null;
+  private static long ttlMillis = DEFAULT_TTL_MS;
+  private static final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+  /** Created on first use, as most deployments never export asynchronously */
+  private static class Pool {
+    private static final AtomicInteger count = new AtomicInteger();
+    static final ExecutorService POOL =
+        Executors.newFixedThreadPool(
+            threads(),
+            r -> {
+              Thread t = new Thread(r, "xlport-export-job-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    static final ScheduledExecutorService CLEANUP =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "xlport-export-jobs-cleanup");
+              t.setDaemon(true);
+              return t;
+            });
+
+    static {
+      long interval = Math.max(1000, Math.min(MAX_CLEANUP_INTERVAL_MS, ttlMillis / 4));
+      CLEANUP.scheduleWithFixedDelay(
+          ExportJobs::removeExpired, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static int threads() {
+      String threads = System.getenv("XLPORT_EXPORT_JOBS_THREADS");
+      if (threads != null && !threads.trim().isEmpty()) return Integer.parseInt(threads.trim());
+      return Runtime.getRuntime().availableProcessors();
+    }
+  }
+
+  public enum State {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED,
+    CANCELLED
+  }
+
+  /** Does the work of a job, writing the result to out */
+  public interface Task {
+    void run(ExportContext context, JSONArray potentialErrors, OutputStream out) throws Exception;
+  }
+
+  /** A submitted export, and, once done, where its result is */
+  public static class Job {
+    public final String id, fileName, contentType;
+    public final ExportContext context = new ExportContext();
+    public final long createdAt = System.currentTimeMillis();
+    // Only read once the job is done, as the task adds to it while running
+    private final JSONArray potentialErrors = new JSONArray();
+    private volatile State state = State.QUEUED;
+    private volatile String failure = null;
+    private volatile long finishedAt = 0;
+
+    private Job(String id, String fileName, String contentType) {
+      this.id = id;
+      this.fileName = fileName;
+      this.contentType = contentType;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /** The status of the job, as returned to clients */
+    public JSONObject toJSON() {
+      State s = state;
+      JSONObject json =
+          new JSONObject()
+              .put("status", s == State.FAILED ? "error" : "ok")
+              .put("jobId", id)
+              .put("state", s.name().toLowerCase())
+              .put("rowsWritten", context.getRowsWritten())
+              .put("totalRows", context.getTotalRows())
+              .put("createdAt", createdAt);
+      if (s == State.RUNNING) json.put("phase", context.getPhase());
+      if (s == State.DONE || s == State.FAILED || s == State.CANCELLED) {
+        json.put("finishedAt", finishedAt).put("expiresAt", finishedAt + ttlMillis);
+        if (potentialErrors.length() > 0) json.put("errors", potentialErrors);
+        if (failure != null) json.put("message", failure);
+      }
+      return json;
+    }
+  }
+
+  static {
+    String jobsDir = System.getenv("XLPORT_EXPORT_JOBS_DIR");
+    String ttl = System.getenv("XLPORT_EXPORT_JOBS_TTL_SECONDS");
+    try {
+      configure(
+          jobsDir == null || jobsDir.trim().isEmpty()
+              ? Paths.get(System.getProperty("java.io.tmpdir"), "xlport-jobs")
+              : Paths.get(jobsDir.trim()),
+          ttl == null || ttl.trim().isEmpty()
+              ? DEFAULT_TTL_MS
+              : TimeUnit.SECONDS.toMillis(Long.parseLong(ttl.trim())));
+    } catch (IOException | NumberFormatException e) {
+      log.warning("Export jobs disabled, could not configure them: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sets where results are stored and for how long. Allows configuration as a library, and
+   * overrides the environment variables.
+   *
+   * @param directory where results are stored (created if missing)
+   * @param ttl how long a result is kept after its job finished, in milliseconds
+   */
+  public static synchronized void configure(Path directory, long ttl) throws IOException {
+    Files.createDirectories(directory);
+    dir = directory;
+    ttlMillis = ttl;
+    removeExpired();
+  }
+
+  /**
+   * Queues an export
+   *
+   * @param fileName the file name of the result, for when it is fetched
+   * @param contentType the content type of the result
+   * @param task does the export
+   * @return the job, to follow its progress
+   */
+  public static Job submit(String fileName, String contentType, Task task) {
+    Path directory;
+    synchronized (ExportJobs.class) {
+      directory = dir;
+    }
+    if (directory == null) throw new IllegalStateException("Export jobs not configured");
+    Job job = new Job(UUID.randomUUID().toString(), fileName, contentType);
+    jobs.put(job.id, job);
+    Pool.POOL.execute(() -> run(job, task, directory));
+    return job;
+  }
+
+  private static void run(Job job, Task task, Path directory) {
+    long ts = System.currentTimeMillis();
+    Path tmp = directory.resolve(job.id + TMP_SUFFIX);
+    try {
+      job.context.checkpoint(); // Cancelled while queued
+      job.state = State.RUNNING;
+      // Written to a temporary file, so that no one reads a result half written
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+        task.run(job.context, job.potentialErrors, out);
+      }
+      Files.move(tmp, result(directory, job.id), StandardCopyOption.ATOMIC_MOVE);
+      job.finishedAt = System.currentTimeMillis();
+      job.state = State.DONE;
+      log.info(
+          "Export job ["
+              + job.id
+              + "] done with "
+              + job.context.getRowsWritten()
+              + " rows in "
+              + (job.finishedAt - ts)
+              + " ms");
+    } catch (CancellationException e) {
+      log.info("Export job [" + job.id + "] stopped: " + e.getMessage());
+      job.failure = e.getMessage();
+      job.finishedAt = System.currentTimeMillis();
+      job.state = State.CANCELLED;
+    } catch (Throwable t) {
+      log.warning("Export job [" + job.id + "] failed: " + t.getMessage());
+      job.failure = t.getMessage() == null ? t.toString() : t.getMessage();
+      job.finishedAt = System.currentTimeMillis();
+      job.state = State.FAILED;
+    } finally {
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException e) {
+        log.warning("Could not remove [" + tmp + "]: " + e.getMessage());
+      }
+    }
+  }
+
+  /** @return the job, or null if there is no such job or it has expired */
+  public static Job get(String id) {
+    return id == null ? null : jobs.get(id);
+  }
+
+  /**
+   * Cancels a job. A queued job does not start, and a running job stops at its next check (see
+   * {@link ExportContext}).
+   *
+   * @return the job, or null if there is no such job or it has expired
+   */
+  public static Job cancel(String id) {
+    Job job = get(id);
+    if (job != null) job.context.cancel();
+    return job;
+  }
+
+  /**
+   * Opens the result of a job
+   *
+   * @return the result, or null if the job is not done or has expired
+   */
+  public static InputStream openResult(String id) throws IOException {
+    Job job = get(id);
+    if (job == null || job.state != State.DONE) return null;
+    Path directory;
+    synchronized (ExportJobs.class) {
+      directory = dir;
+    }
+    try {
+      return new BufferedInputStream(Files.newInputStream(result(directory, id)));
+    } catch (java.nio.file.NoSuchFileException e) {
+      return null; // Expired while opening
+    }
+  }
+
+  /** Removes jobs and results that have expired, including results left from an earlier run */
+  static synchronized void removeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<Job> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      Job job = it.next();
+      if (job.finishedAt > 0 && job.finishedAt + ttlMillis <= now) {
+        it.remove();
+        log.info("Export job [" + job.id + "] expired");
+      }
+    }
+    File[] files = dir == null ? null : dir.toFile().listFiles();
+    if (files == null) return;
+    for (File f : files) {
+      String name = f.getName();
+      if (!name.endsWith(SUFFIX) && !name.endsWith(TMP_SUFFIX)) continue;
+      String id = name.substring(0, name.lastIndexOf('.'));
+      // Results of known jobs go when their job does, temporary files only when left by a crash
+      if (jobs.containsKey(id) || f.lastModified() + ttlMillis > now) continue;
+      if (!f.delete()) log.warning("Could not remove expired result [" + f + "]");
+    }
+  }
+
+  private static Path result(Path directory, String id) {
+    return directory.resolve(id + SUFFIX);
+  }
+}
@@ -1,7 +1,11 @@
 package com.molnify.xlport.core;
 
+import com.molnify.xlport.jfr.ExportKeyEvent;
+import com.molnify.xlport.jfr.FormulaEvaluationEvent;
+import com.molnify.xlport.jfr.SheetTemplatesEvent;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.formula.eval.NotImplementedFunctionException;
@@ -12,7 +16,6 @@ import org.apache.poi.ss.util.CellRangeAddressList;
 import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.usermodel.*;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -45,57 +48,86 @@ public class Exporter {
    */
   public static void exportToExcel(
       JSONObject data, Template template, JSONArray potentialErrors, boolean overwriteFormatting) {
+    exportToExcel(data, template, potentialErrors, overwriteFormatting, new ExportContext());
+  }
+
+  /**
+   * Populates the given template workbook with data from the JSON object, reporting progress to the
+   * context.
+   *
+   * @param context the progress of the export, updated as rows are written
+   * @throws CancellationException if the context is cancelled, or past its deadline (with an error
+   *     in potentialErrors that says where the export stopped)
+   * @see #exportToExcel(JSONObject, Template, JSONArray, boolean)
+   */
+  public static void exportToExcel(
+      JSONObject data,
+      Template template,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      ExportContext context) {
     try { // Surround fully with try/catch to avoid HTTP 500 in the servlet
       // These are the sheets that are template for new sheets, and hence will be removed
-      Set<String> templateSheetsToRemove = new HashSet<>();
+      // Linked collections throughout, so that tables, names and styles are always created in the
+      // same order, and the same request gives the same workbook
+      Set<String> templateSheetsToRemove = new LinkedHashSet<>();
       // This is a map from sheet names to a map of (old) tableNames with an AreaReference for their
       // area
-      Map<String, Set<XSSFTable>> sheetToTables = new HashMap<>();
-      if (data.has(SHEET_TEMPLATE_NAME))
+      Map<String, Set<XSSFTable>> sheetToTables = new LinkedHashMap<>();
+      if (data.has(SHEET_TEMPLATE_NAME)) {
+        SheetTemplatesEvent sheetEvent = new SheetTemplatesEvent();
+        sheetEvent.begin();
+        int sheetsBefore = template.workbook.getNumberOfSheets();
+        context.setPhase("sheets");
         processSheetTemplates(
-            data, template, potentialErrors, templateSheetsToRemove, sheetToTables);
+            data, template, potentialErrors, templateSheetsToRemove, sheetToTables, context);
+        if (sheetEvent.shouldCommit()) {
+          sheetEvent.templateSheets = templateSheetsToRemove.size();
+          sheetEvent.sheetsCreated = template.workbook.getNumberOfSheets() - sheetsBefore;
+          sheetEvent.commit();
+        }
+      }
       // We're done with the template sheets now, so let's chuck them away
       for (String sheetToRemove : templateSheetsToRemove)
         template.workbook.removeSheetAt(template.workbook.getSheetIndex(sheetToRemove));
+      template.sheetsChanged();
       // All sheet template have been processed here, so remove it so the resulting JSON is easier
       // to read
       data.remove(SHEET_TEMPLATE_NAME);
       // System.out.println(data);
       // System.out.println(template.toString());
 
-      // We do this to ensure keys that point to tables that have formulas are processed last,
-      // in order to get all the data that they may look at be populated first
-      LinkedList<String> theKeys = new LinkedList<>();
-      for (String key : data.keySet()) {
-        if (template.items.get(key) != null && template.items.get(key).isTableAndHasFormulas())
-          theKeys.addLast(key);
-        else theKeys.addFirst(key);
-      }
+      // We do this to ensure keys that point to tables that have formulas are processed after
+      // the keys their formulas refer to, in order to get all the data that they may look at
+      // populated first
+      KeySchedule schedule = KeySchedule.of(data, template);
+      List<String> theKeys = schedule.getOrder();
+      context.setTotalRows(countRows(data, template, theKeys));
+      context.setPhase("data");
 
       // Here is the main loop through all the keys in the request. Now ordered based on the
-      // prioritization above
-      for (String key : theKeys) {
-        // This is the case where there is data for a specific sheet (with sheet scoped properties)
-        if (data.get(key) instanceof JSONObject
-            && (data.getJSONObject(key).has("_xlport_metadata")
-                && "sheet".equals(data.getJSONObject(key).getString("_xlport_metadata")))) {
-          for (String subKey : ((JSONObject) data.get(key)).keySet()) {
-            processThisKey(
-                data.getJSONObject(key),
-                template,
-                potentialErrors,
-                overwriteFormatting,
-                subKey,
-                key);
-          }
-        }
-        // ...and this is the normal case, with globally specified properties
-        else processThisKey(data, template, potentialErrors, overwriteFormatting, key, null);
-      }
+      // dependencies above, and with sheets populated in parallel if enabled
+      if (SheetWriters.isEnabled())
+        for (List<String> group : schedule.getGroups())
+          populateGroup(data, template, potentialErrors, overwriteFormatting, group, context);
+      else
+        for (String key : theKeys)
+          populate(data, template, potentialErrors, overwriteFormatting, key, context);
+      context.setPhase("evaluation");
+      FormulaEvaluationEvent evaluationEvent = new FormulaEvaluationEvent();
+      evaluationEvent.begin();
       FormulaEvaluator evaluator = template.workbook.getCreationHelper().createFormulaEvaluator();
       template.workbook.setForceFormulaRecalculation(
           true); // Will ask Excel to evaluate when opened
-      evaluator.evaluateAll();
+      evaluateAll(template.workbook, evaluator, context);
+      if (evaluationEvent.shouldCommit()) {
+        evaluationEvent.sheets = template.workbook.getNumberOfSheets();
+        evaluationEvent.commit();
+      }
+    } catch (CancellationException e) {
+      log.info(e.getMessage());
+      potentialErrors.put(context.toError(e.getMessage()));
+      throw e;
     } catch (Throwable t) {
       log.warning("Export failed: " + t.getMessage());
       potentialErrors.put(t.getMessage());
@@ -111,12 +143,141 @@ public class Exporter {
     }
   }
 
+  /** Populates a key: a property, a table, or the properties and tables of a sheet */
+  private static void populate(
+      JSONObject data,
+      Template template,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      String key,
+      ExportContext context) {
+    context.checkpoint();
+    // This is the case where there is data for a specific sheet (with sheet scoped properties)
+    if (isSheetData(data.get(key))) {
+      for (String subKey : ((JSONObject) data.get(key)).keySet()) {
+        processThisKey(
+            data.getJSONObject(key),
+            template,
+            potentialErrors,
+            overwriteFormatting,
+            subKey,
+            key,
+            context);
+      }
+    }
+    // ...and this is the normal case, with globally specified properties
+    else processThisKey(data, template, potentialErrors, overwriteFormatting, key, null, context);
+  }
+
+  /**
+   * Populates keys that do not depend on each other, with one writer per target sheet (see {@link
+   * SheetWriters}). Keys that replace the columns of a table change the tables of the workbook, so
+   * they are populated first, by this thread. Errors are added per sheet, in order
+   */
+  private static void populateGroup(
+      JSONObject data,
+      Template template,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      List<String> group,
+      ExportContext context) {
+    Map<String, List<String>> keysBySheet = new LinkedHashMap<>();
+    for (String key : group) {
+      if (replacesColumns(data.get(key)))
+        populate(data, template, potentialErrors, overwriteFormatting, key, context);
+      else
+        keysBySheet
+            .computeIfAbsent(targetSheet(data, template, key), s -> new ArrayList<>())
+            .add(key);
+    }
+    List<JSONArray> errors = new ArrayList<>();
+    List<Runnable> writers = new ArrayList<>();
+    for (List<String> keys : keysBySheet.values()) {
+      JSONArray sheetErrors = new JSONArray();
+      errors.add(sheetErrors);
+      writers.add(
+          () -> {
+            for (String key : keys)
+              populate(data, template, sheetErrors, overwriteFormatting, key, context);
+          });
+    }
+    try {
+      SheetWriters.run(writers);
+    } finally {
+      for (JSONArray sheetErrors : errors)
+        for (Object error : sheetErrors) potentialErrors.put(error);
+    }
+  }
+
+  private static boolean isSheetData(Object value) {
+    return value instanceof JSONObject
+        && "sheet".equals(((JSONObject) value).optString("_xlport_metadata"));
+  }
+
+  /** @return true if the value is a table with a columns spec, or a sheet with one */
+  private static boolean replacesColumns(Object value) {
+    if (!(value instanceof JSONObject)) return false;
+    JSONObject json = (JSONObject) value;
+    if (json.has("data") && json.has("columns")) return true;
+    if (isSheetData(json))
+      for (String subKey : json.keySet()) if (replacesColumns(json.get(subKey))) return true;
+    return false;
+  }
+
+  /** @return the (lower case) sheet that the key populates, or "" if none */
+  private static String targetSheet(JSONObject data, Template template, String key) {
+    if (isSheetData(data.get(key))) return key.toLowerCase(Locale.ROOT);
+    TemplateItem item = template.items.get(key);
+    if (item == null) return "";
+    String sheet = item.reference.split("!")[0];
+    if (sheet.startsWith("'")) sheet = sheet.substring(1, sheet.length() - 1);
+    return sheet.toLowerCase(Locale.ROOT);
+  }
+
+  /** As {@link FormulaEvaluator#evaluateAll()}, but checks for cancellation as it goes */
+  private static void evaluateAll(
+      Workbook workbook, FormulaEvaluator evaluator, ExportContext context) {
+    for (Sheet sheet : workbook)
+      for (Row row : sheet)
+        for (Cell cell : row)
+          if (cell.getCellType() == CellType.FORMULA) {
+            evaluator.evaluateFormulaCell(cell);
+            context.cellEvaluated();
+          }
+  }
+
+  /** The number of rows the keys will write: one per property, and one per table row */
+  private static long countRows(JSONObject data, Template template, List<String> keys) {
+    long rows = 0;
+    for (String key : keys) {
+      Object value = data.get(key);
+      if (value instanceof JSONObject
+          && "sheet".equals(((JSONObject) value).optString("_xlport_metadata"))) {
+        Map<String, TemplateItem> sheetItems = template.sheetScopedItems.get(key);
+        if (sheetItems == null) continue;
+        for (String subKey : ((JSONObject) value).keySet())
+          rows += countRows(sheetItems.get(subKey), ((JSONObject) value).get(subKey));
+      } else rows += countRows(template.items.get(key), value);
+    }
+    return rows;
+  }
+
+  private static long countRows(TemplateItem item, Object value) {
+    if (item == null) return 0;
+    if (!item.isTable()) return 1;
+    if (value instanceof JSONArray) return ((JSONArray) value).length();
+    if (value instanceof JSONObject && ((JSONObject) value).optJSONArray("data") != null)
+      return ((JSONObject) value).getJSONArray("data").length();
+    return 0;
+  }
+
   private static void processSheetTemplates(
       JSONObject data,
       Template template,
       JSONArray potentialErrors,
       Set<String> templateSheetsToRemove,
-      Map<String, Set<XSSFTable>> sheetToTables) {
+      Map<String, Set<XSSFTable>> sheetToTables,
+      ExportContext context) {
     // First of all, let's find out which Sheets that are templates
     JSONArray templates = data.getJSONArray(SHEET_TEMPLATE_NAME);
     for (Object t : templates) {
@@ -131,11 +292,11 @@ public class Exporter {
     // the new sheets
     for (String sheetName : templateSheetsToRemove) {
       log.info("Checking a sheet for tables... [" + sheetName + "]");
-      if (sheetToTables.get(sheetName) == null)
-        sheetToTables.put(
-            sheetName,
-            new HashSet<>()); // This avoid null check later, since all template sheets have a map
-      for (XSSFTable t : template.workbook.getSheet(sheetName).getTables()) {
+      // This avoid null check later, since all template sheets have a map
+      if (sheetToTables.get(sheetName) == null) sheetToTables.put(sheetName, new LinkedHashSet<>());
+      XSSFSheet templateSheet = template.getSheet(sheetName);
+      if (templateSheet == null) continue; // Reported when creating the sheets
+      for (XSSFTable t : templateSheet.getTables()) {
         t.getXSSFSheet().removeTable(t); // Weird call, but this is how it looks :-)
         sheetToTables.get(sheetName).add(t);
         log.info(
@@ -149,7 +310,7 @@ public class Exporter {
 
     // If there will be sheet additions (and removals), we need to handle named ranges on the old
     // and new sheets
-    Map<String, Map<String, String>> savedNamedRangesByOriginalSheetName = new HashMap<>();
+    Map<String, Map<String, String>> savedNamedRangesByOriginalSheetName = new LinkedHashMap<>();
     if (templateSheetsToRemove.size() > 0) {
       List<Name> namesToRemove = new ArrayList<>();
       for (Name n : template.workbook.getAllNames()) {
@@ -170,7 +331,7 @@ public class Exporter {
         // This name will be deleted as part of copy, we need to create a new and scope it
         if (templateSheetsToRemove.contains(sheetName)) {
           if (!savedNamedRangesByOriginalSheetName.containsKey(n.getSheetName()))
-            savedNamedRangesByOriginalSheetName.put(n.getSheetName(), new HashMap<>());
+            savedNamedRangesByOriginalSheetName.put(n.getSheetName(), new LinkedHashMap<>());
           Map<String, String> nameToFormula =
               savedNamedRangesByOriginalSheetName.get(n.getSheetName());
           if (formula.contains("!")) formula = formula.substring(formula.indexOf("!") + 1);
@@ -181,12 +342,25 @@ public class Exporter {
       }
 
       // Now we have saved away the names and are good to go to use the templates to create the new
-      // sheets
+      // sheets. The template sheets are looked up once, and keep their index as copies are appended
+      Map<String, XSSFSheet> templateSheets = new HashMap<>();
+      Map<String, Integer> templateSheetIndexes = new HashMap<>();
+      for (String sheetName : templateSheetsToRemove) {
+        XSSFSheet templateSheet = template.getSheet(sheetName);
+        if (templateSheet == null) continue;
+        templateSheets.put(sheetName, templateSheet);
+        templateSheetIndexes.put(sheetName, template.workbook.getSheetIndex(templateSheet));
+      }
+      // Copies by the template sheet they are copies of, to be moved in place once all are created
+      Map<String, List<String>> copiesByTemplateSheet = new HashMap<>();
       for (Object o : templates) {
         JSONObject sheetTemplate = (JSONObject) o;
         String toSheetName = sheetTemplate.getString("name");
+        context.setKey(toSheetName, false, 0);
+        context.checkpoint();
         String fromTemplateSheetName = sheetTemplate.getString("fromTemplateSheet");
-        if (template.workbook.getSheet(fromTemplateSheetName) == null) {
+        XSSFSheet templateSheet = templateSheets.get(fromTemplateSheetName);
+        if (templateSheet == null) {
           potentialErrors.put(
               new JSONObject()
                   .put(
@@ -199,36 +373,38 @@ public class Exporter {
           continue;
         }
         // JSONObject newData = sheetTemplate.getJSONObject("data");
-        int indexToCopy = template.workbook.getSheetIndex(fromTemplateSheetName);
+        int indexToCopy = templateSheetIndexes.get(fromTemplateSheetName);
 
-        // Copy the template sheet and name it with its new name. Make sure to position it correctly
-        // in the workbook
+        // Copy the template sheet and name it with its new name. It is appended, and positioned
+        // correctly in the workbook when all sheets are created (see placeSheetCopies)
         XSSFSheet copySheet = template.workbook.cloneSheet(indexToCopy, toSheetName);
-        template.workbook.setSheetOrder(toSheetName, indexToCopy);
+        int copyIndex = template.workbook.getNumberOfSheets() - 1;
+        copiesByTemplateSheet
+            .computeIfAbsent(templateSheet.getSheetName(), k -> new ArrayList<>())
+            .add(copySheet.getSheetName());
 
         // Add back named ranges from the template here and scope them to the sheet
         Map<String, String> m = savedNamedRangesByOriginalSheetName.get(fromTemplateSheetName);
-        if (m != null)
+        if (m != null) {
+          // Escape complex sheet names
+          String referenceSheetName;
+          if ((toSheetName.contains("-") || toSheetName.contains("+") || toSheetName.contains(" "))
+              && !toSheetName.contains("'")) {
+            referenceSheetName = "'" + toSheetName + "'";
+          } else referenceSheetName = toSheetName;
           for (Map.Entry<String, String> nameToMigrate : m.entrySet()) {
             // log.info("Adding back " + nameToMigrate.getKey() + " to sheet " + toSheetName + "
             // value " + nameToMigrate.getValue());
-            // Escape complex sheet names
-            String referenceSheetName;
-            if ((toSheetName.contains("-")
-                    || toSheetName.contains("+")
-                    || toSheetName.contains(" "))
-                && !toSheetName.contains("'")) {
-              referenceSheetName = "'" + toSheetName + "'";
-            } else referenceSheetName = toSheetName;
             String reference = referenceSheetName + "!" + nameToMigrate.getValue();
             XSSFName localName = template.workbook.createName();
-            localName.setSheetIndex(template.workbook.getSheetIndex(copySheet));
+            localName.setSheetIndex(copyIndex);
             localName.setNameName(nameToMigrate.getKey());
             localName.setRefersToFormula(reference);
             // When added to the template here, we can later just push into data to this reference
             template.addTemplateItemScoped(
                 new TemplateItem(nameToMigrate.getKey(), reference, toSheetName), toSheetName);
           }
+        }
 
         // Fix tab color
         if (sheetTemplate.has("tabColor") && sheetTemplate.get("tabColor") instanceof String) {
@@ -264,12 +440,34 @@ public class Exporter {
         // well as tables and push in the data
         Utils.translateSheetTemplateSpecToRoot(sheetTemplate, data);
       } // End of template sheet
+      placeSheetCopies(template.workbook, copiesByTemplateSheet);
       for (Name n : namesToRemove) {
         template.workbook.removeName(n);
       }
     }
   }
 
+  /**
+   * Moves the copies of template sheets, appended as they were created, to right before their
+   * template sheet (in the order they were created). Sheets are placed from the last position, so
+   * that sheets already in place are not moved, as every move goes through all sheets and names.
+   * Typically only the template sheet, and the sheets after it, are moved.
+   */
+  private static void placeSheetCopies(
+      XSSFWorkbook workbook, Map<String, List<String>> copiesByTemplateSheet) {
+    int copies = 0;
+    for (List<String> c : copiesByTemplateSheet.values()) copies += c.size();
+    List<String> order = new ArrayList<>();
+    for (int i = 0; i < workbook.getNumberOfSheets() - copies; i++) {
+      String sheetName = workbook.getSheetName(i);
+      List<String> c = copiesByTemplateSheet.get(sheetName);
+      if (c != null) order.addAll(c);
+      order.add(sheetName);
+    }
+    for (int i = order.size() - 1; i >= 0; i--)
+      if (!order.get(i).equals(workbook.getSheetName(i))) workbook.setSheetOrder(order.get(i), i);
+  }
+
   /**
    * @param sheetTemplate The JSON specification with data and columns
    * @param copySheet The sheet in which to create the table
@@ -287,36 +485,29 @@ public class Exporter {
         && sheetData.get(t.getName()) instanceof JSONObject
         && ((JSONObject) sheetData.get(t.getName())).has("columns")
         && ((JSONObject) sheetData.get(t.getName())).get("columns") instanceof JSONArray) {
-      // Idea here is to first remove all columns, and then add them back
-      // It seems difficult to mangle around columns while removing some
-      for (int i = 0; i <= (t.getEndColIndex() - t.getStartColIndex()); i++) {
-        Utils.removeColumn(copySheet, t.getStartColIndex());
-        // newT.removeColumn(i);
-      }
       JSONArray columns = sheetData.getJSONObject(t.getName()).getJSONArray("columns");
       newColumnCount = columns.length();
-      // This goes through the columns spec (from JSON) and adds all columns required
+      // This goes through the columns spec (from JSON) and finds the template column of each
       // Two ways to spec 1) "name" and "fromTemplateColumn", and 2) just "name"
       // (2) is same as setting "name" and "fromTemplateColumn" to the same
-      for (int i = columns.length() - 1; i >= 0; i--) {
-        Object columnObj = columns.get(i);
-        JSONObject c = (JSONObject) columnObj;
+      int[] fromColumns = new int[columns.length()];
+      for (int i = 0; i < columns.length(); i++) {
+        JSONObject c = columns.getJSONObject(i);
         String columnName = c.getString("name");
         String fromColumn;
         if (c.has("fromTemplateColumn")) fromColumn = c.getString("fromTemplateColumn");
         else fromColumn = columnName; // Support for convenience that only spec name
         log.info("Copying from column " + fromColumn + " into column " + columnName);
-        int columnIndexToCopyFrom = Utils.getColumnIndexFromTable(t, fromColumn);
-        Utils.copyColumn(
-            t.getSheetName(), columnIndexToCopyFrom, copySheet, t.getStartColIndex() - 1);
+        fromColumns[i] = Utils.getColumnIndexFromTable(t, fromColumn);
+      }
+      // Then replaces the columns of the table with them, all in one go
+      Utils.remapColumns(
+          t.getXSSFSheet(), fromColumns, copySheet, t.getStartColIndex(), t.getColumnCount());
+      for (int i = 0; i < columns.length(); i++) {
+        JSONObject c = columns.getJSONObject(i);
         Cell cel =
-            findAndCreateCellIfRequired(
-                copySheet.getWorkbook(),
-                copySheet.getSheetName(),
-                t.getStartRowIndex(),
-                t.getStartColIndex(),
-                new JSONArray());
-        cel.setCellValue(columnName);
+            findAndCreateCellIfRequired(copySheet, t.getStartRowIndex(), t.getStartColIndex() + i);
+        cel.setCellValue(c.getString("name"));
 
         // If there is a format also specified, apply it to the first data row in the table
         // This is the cell right below the header. The style will then be copied to all data rows
@@ -328,11 +519,7 @@ public class Exporter {
           cellStyle.setDataFormat(dataFormat.getFormat(format));
           Cell oneDown =
               findAndCreateCellIfRequired(
-                  copySheet.getWorkbook(),
-                  copySheet.getSheetName(),
-                  t.getStartRowIndex() + 1,
-                  t.getStartColIndex(),
-                  new JSONArray());
+                  copySheet, t.getStartRowIndex() + 1, t.getStartColIndex() + i);
           oneDown.setCellStyle(cellStyle);
           log.info(
               "Applying format ["
@@ -379,6 +566,7 @@ public class Exporter {
    * @param sheet Optionally set as a string. If set, the method will use the data from the
    *     JSONObject in "data" specified by "key", and use the sheet scoped template item in
    *     "template"
+   * @param context The progress of the export
    */
   private static void processThisKey(
       JSONObject data,
@@ -386,7 +574,31 @@ public class Exporter {
       JSONArray potentialErrors,
       boolean overwriteFormatting,
       String key,
-      String sheet) {
+      String sheet,
+      ExportContext context) {
+    ExportKeyEvent event = new ExportKeyEvent();
+    event.begin();
+    try {
+      populateKey(data, template, potentialErrors, overwriteFormatting, key, sheet, event, context);
+    } finally {
+      if (event.shouldCommit()) {
+        event.key = key;
+        event.sheet = sheet;
+        event.commit();
+      }
+    }
+  }
+
+  /** Does the actual work for {@link #processThisKey}, recording rows and cells in the event */
+  private static void populateKey(
+      JSONObject data,
+      Template template,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      String key,
+      String sheet,
+      ExportKeyEvent event,
+      ExportContext context) {
     // System.out.println("Key ["+key+"] sheet ["+sheet+"] data : " + data);
     /*log.info("template: " + template);
     log.info("template.items: " + template.items);
@@ -424,14 +636,22 @@ public class Exporter {
       if (sheetName.startsWith("'")) sheetName = sheetName.substring(1, sheetName.length() - 1);
       // if(sheetName.indexOf(" ") > 0) sheetName = "\"" + sheetName + "\"";
       String cellName = parts[1];
+      // Looked up once per key, rather than for every cell
+      XSSFSheet targetSheet = template.getSheet(sheetName);
+      if (targetSheet == null) potentialErrors.put("Sheet [" + sheetName + "] was not found");
       if (!cellName.contains(":")) { // Single cell case
         // log.info("Updating sheet ["+sheetName+"] cell ["+cellName+"] with value
         // ["+data.get(key)+"]");
         CellReference ref = new CellReference(cellName);
         XSSFCell c =
-            findAndCreateCellIfRequired(
-                template.workbook, sheetName, ref.getRow(), ref.getCol(), potentialErrors);
+            targetSheet == null
+                ? null
+                : findAndCreateCellIfRequired(targetSheet, ref.getRow(), ref.getCol());
+        context.setKey(key, false, 1);
+        context.rowWritten();
         if (c == null) return;
+        event.rows = 1;
+        event.cells = 1;
 
         try {
           // System.out.println("For sheet " + sheet + " data; " + data.get(key));
@@ -456,7 +676,8 @@ public class Exporter {
                 + sheetName
                 + "]");
         if (!item.isTable()) throw new IllegalStateException("This should be a table but is not");
-        clearOutTableFromReference(template.workbook, item.reference);
+        event.table = true;
+        clearOutTableFromReference(targetSheet, item.reference);
 
         JSONArray array;
         // Option 1: The table is specified with both data and columns. In that case, fix the
@@ -464,14 +685,12 @@ public class Exporter {
         if (data.get(key) instanceof JSONObject
             && data.getJSONObject(key).has("data")
             && data.getJSONObject(key).has("columns")) {
-          XSSFTable table = template.workbook.getTable(key);
-          template.workbook.getSheet(sheetName).removeTable(table);
+          XSSFTable table = template.getTable(key);
+          targetSheet.removeTable(table);
           XSSFTable newT =
               createNewTableFromJSONSpecAndExistingTable(
-                  new JSONObject().put("data", data),
-                  template.workbook.getSheet(sheetName),
-                  table,
-                  false);
+                  new JSONObject().put("data", data), targetSheet, table, false);
+          template.sheetsChanged();
           // We are actually already processing a template item, but this now needs to be replaced,
           // as the columns may have changed
           TemplateItem newItem = new TemplateItem(newT);
@@ -483,137 +702,173 @@ public class Exporter {
         else array = data.getJSONArray(key);
 
         if (array.length() == 0) return;
-        template.workbook.getTable(item.name).setDataRowCount(array.length());
+        context.setKey(key, true, array.length());
+        event.rows = array.length();
+        SharedParts.setDataRowCount(template.getTable(item.name), array.length());
 
         CellStyle[] styles = new CellStyle[item.getHeaders().size() + 1];
         ConditionalFormatting[] condFormatting =
             new ConditionalFormatting[item.getHeaders().size() + 1];
         log.info("Set up " + styles.length + " placeholders for formatting");
 
-        for (int i = 0; i < array.length(); i++) {
-          // log.info("Table round ["+i+"]");
-          JSONObject o;
-          try {
-            o = array.getJSONObject(i);
-          } catch (JSONException e) {
-            potentialErrors.put(
-                new JSONObject()
-                    .put("status", "error")
-                    .put(
-                        "message",
-                        "JSONArray ["
-                            + key
-                            + "] does not contain a JSONObject on position ["
-                            + i
-                            + "]. Skipping."));
+        // Values are prepared (possibly on other threads) while they are written here
+        List<String> headers = new ArrayList<>(item.getHeaders());
+        try (ValuePipeline.Rows rows =
+            ValuePipeline.prepare(array, headers, item, context.getStrings(key))) {
+          populateRows(
+              rows,
+              headers,
+              item,
+              targetSheet,
+              key,
+              array,
+              styles,
+              condFormatting,
+              potentialErrors,
+              overwriteFormatting,
+              event,
+              context);
+        }
+      }
+      // End table case
+    }
+  }
+
+  /** Writes the prepared rows of a table, and replicates the formatting of its first row */
+  private static void populateRows(
+      ValuePipeline.Rows rows,
+      List<String> headers,
+      TemplateItem item,
+      XSSFSheet targetSheet,
+      String key,
+      JSONArray array,
+      CellStyle[] styles,
+      ConditionalFormatting[] condFormatting,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      ExportKeyEvent event,
+      ExportContext context) {
+    // Rows that have the formatting of the first row already, which is not replicated to them again
+    int formatted = Math.max(1, context.getFormattedRows(key));
+    for (int i = 0; i < array.length(); i++) {
+      // log.info("Table round ["+i+"]");
+      context.rowWritten();
+      PreparedValue[] values = rows.next();
+      if (values == null) {
+        potentialErrors.put(
+            new JSONObject()
+                .put("status", "error")
+                .put(
+                    "message",
+                    "JSONArray ["
+                        + key
+                        + "] does not contain a JSONObject on position ["
+                        + i
+                        + "]. Skipping."));
+        continue;
+      }
+      for (int h = 0; h < values.length; h++) {
+        String iKey = headers.get(h);
+        // log.info("	Table key ["+iKey+"]");
+        int[] rowAndCol = item.getRowAndColumnForHeader(iKey);
+        if (rowAndCol == null) {
+          log.info("		Could not find [" + key + "." + iKey + "] in template");
+          continue;
+        }
+        int row = rowAndCol[0], col = rowAndCol[1];
+        XSSFCell c =
+            targetSheet == null ? null : findAndCreateCellIfRequired(targetSheet, row + i + 1, col);
+        event.cells++;
+
+        // Insert the data from the json into the workbook
+        boolean formattedAtCellLevel = false;
+        try {
+          formattedAtCellLevel = values[h].writeTo(c);
+        } catch (Exception e) {
+          log.info(
+              "Try to insert ["
+                  + (array.getJSONObject(i).has(iKey)
+                      ? array.getJSONObject(i).opt(iKey)
+                      : item.getFormulaForHeader(iKey))
+                  + "] into cell ["
+                  + (c == null ? "unknown" : c.getAddress().toString())
+                  + "]");
+          potentialErrors.put(e.getMessage());
+        }
+
+        // If the overwriteFormatting flag is set, skip format write down.
+        if (!overwriteFormatting) continue;
+
+        // Below is logic to replicate CellStyle, DataValidation and Conditional Formatting
+        int relCol = col - item.startingColumn;
+        // For first row, copy a) CellStyle, b) DataValidation, and c) ConditionalFormatting
+        if (i == 0) {
+          // log.info("First row for ["+iKey+"] column ["+col+"], address
+          // ["+c.getAddress().toString()+"]");
+          if (c == null) continue;
+          if (relCol >= styles.length) {
+            log.warning(
+                "This is a bug with relCol ["
+                    + relCol
+                    + "] and styles.length ["
+                    + styles.length
+                    + "]");
             continue;
           }
-          for (String iKey : item.getHeaders()) {
-            // log.info("	Table key ["+iKey+"]");
-            int[] rowAndCol = item.getRowAndColumnForHeader(iKey);
-            if (rowAndCol == null) {
-              log.info("		Could not find [" + key + "." + iKey + "] in template");
-              continue;
+          styles[relCol] = SharedParts.getStyle(c);
+          for (DataValidation dv : c.getSheet().getDataValidations()) {
+            for (CellRangeAddress cra : dv.getRegions().getCellRangeAddresses()) {
+              if (cra.isInRange(c) && array.length() > formatted) {
+                Utils.expandDataValidationRegion(
+                    c.getSheet(),
+                    dv.getRegions(),
+                    new CellRangeAddressList(row + 1 + formatted, row + array.length(), col, col));
+              }
             }
-            int row = rowAndCol[0], col = rowAndCol[1];
-            XSSFCell c =
-                findAndCreateCellIfRequired(
-                    template.workbook, sheetName, row + i + 1, col, potentialErrors);
-
-            // Insert the data from the json into the workbook
-            Object value;
-            if (o.has(iKey)) {
-              value = o.get(iKey);
-              if (o.isNull(iKey)) value = null; // Unexpected treatment of null in the JSON
-            } else value = item.getFormulaForHeader(iKey);
-
-            boolean formattedAtCellLevel = false;
-            try {
-              formattedAtCellLevel = insertDataFromJSONIntoCell(value, c);
-            } catch (Exception e) {
-              log.info(
-                  "Try to insert ["
-                      + value
-                      + "] into cell ["
-                      + (c == null ? "unknown" : c.getAddress().toString())
-                      + "]");
-              potentialErrors.put(e.getMessage());
+          }
+          SheetConditionalFormatting scf = c.getSheet().getSheetConditionalFormatting();
+          for (int j = 0; j < scf.getNumConditionalFormattings(); j++) {
+            ConditionalFormatting cf = scf.getConditionalFormattingAt(j);
+            for (CellRangeAddress cra : cf.getFormattingRanges()) {
+              if (cra.isInRange(c)) condFormatting[relCol] = cf;
             }
-
-            // If the overwriteFormatting flag is set, skip format write down.
-            if (!overwriteFormatting) continue;
-
-            // Below is logic to replicate CellStyle, DataValidation and Conditional Formatting
-            int relCol = col - item.startingColumn;
-            // For first row, copy a) CellStyle, b) DataValidation, and c) ConditionalFormatting
-            if (i == 0) {
-              // log.info("First row for ["+iKey+"] column ["+col+"], address
-              // ["+c.getAddress().toString()+"]");
-              if (c == null) continue;
-              if (relCol >= styles.length) {
-                log.warning(
-                    "This is a bug with relCol ["
-                        + relCol
-                        + "] and styles.length ["
-                        + styles.length
-                        + "]");
-                continue;
-              }
-              styles[relCol] = c.getCellStyle();
-              for (DataValidation dv : c.getSheet().getDataValidations()) {
-                for (CellRangeAddress cra : dv.getRegions().getCellRangeAddresses()) {
-                  if (cra.isInRange(c)) {
-                    Utils.expandDataValidationRegion(
-                        c.getSheet(),
-                        dv.getRegions(),
-                        new CellRangeAddressList(row + 2, row + array.length(), col, col));
-                  }
-                }
-              }
-              SheetConditionalFormatting scf = c.getSheet().getSheetConditionalFormatting();
-              for (int j = 0; j < scf.getNumConditionalFormattings(); j++) {
-                ConditionalFormatting cf = scf.getConditionalFormattingAt(j);
-                for (CellRangeAddress cra : cf.getFormattingRanges()) {
-                  if (cra.isInRange(c)) condFormatting[relCol] = cf;
-                }
-              }
-            } else { // If not first row, paste in the (a), (b) and (c) from above
-              int nr = c.getAddress().getRow(), nc = c.getAddress().getColumn();
-              if (formattedAtCellLevel) continue;
-
-              if (styles[relCol] != null) c.setCellStyle(styles[relCol]);
-              if (condFormatting[relCol] != null) {
-                CellRangeAddress[] a = condFormatting[relCol].getFormattingRanges();
-                CellRangeAddress[] aNew = new CellRangeAddress[a.length + 1];
-                for (int j = 0; j < a.length; j++) {
-                  aNew[j] = a[j];
-                }
-                aNew[a.length] = new CellRangeAddress(nr, nr, nc, nc);
-                condFormatting[relCol].setFormattingRanges(aNew);
-              }
+          }
+        } else { // If not first row, paste in the (a), (b) and (c) from above
+          int nr = c.getAddress().getRow(), nc = c.getAddress().getColumn();
+          if (formattedAtCellLevel || i < formatted) continue;
+
+          if (styles[relCol] != null) SharedParts.setStyle(c, styles[relCol]);
+          if (condFormatting[relCol] != null) {
+            CellRangeAddress[] a = condFormatting[relCol].getFormattingRanges();
+            CellRangeAddress[] aNew = new CellRangeAddress[a.length + 1];
+            for (int j = 0; j < a.length; j++) {
+              aNew[j] = a[j];
             }
+            aNew[a.length] = new CellRangeAddress(nr, nr, nc, nc);
+            condFormatting[relCol].setFormattingRanges(aNew);
           }
         }
       }
-      // End table case
     }
   }
 
   /** Clears out a table, excluding header + formula cells */
   public static void clearOutTableFromReference(Workbook workbook, String reference) {
+    clearOutTableFromReference(workbook.getSheet(reference.split("!")[0]), reference);
+  }
+
+  /** Clears out a table in a sheet already looked up, excluding header + formula cells */
+  public static void clearOutTableFromReference(Sheet sheet, String reference) {
     String[] sp = reference.split("!");
     if (sp.length != 2) {
       throw new IllegalStateException(
           "Cell reference should include sheet name [" + reference + "]");
     }
-    String sheetName = sp[0];
-
     String[] cells = sp[1].split(":");
     if (cells.length != 2) {
       throw new IllegalStateException("Cell reference should be two cells [" + sp[1] + "]");
     }
     CellReference s = new CellReference(cells[0]), e = new CellReference(cells[1]);
-    Sheet sheet = workbook.getSheet(sheetName);
     for (int row = s.getRow() + 1; row <= e.getRow(); row++)
       for (int col = s.getCol(); col <= e.getCol(); col++) {
         Row r = sheet.getRow(row);
@@ -621,7 +876,7 @@ public class Exporter {
         Cell c = r.getCell(col);
         if (c == null) continue;
         if (c.getCellType() == CellType.FORMULA || c.getCellType() == CellType.BLANK) continue;
-        else c.setCellValue("");
+        else SharedParts.setString((XSSFCell) c, "");
       }
   }
 
@@ -679,6 +934,11 @@ public class Exporter {
       potentialErrors.put("Sheet [" + sheetName + "] was not found");
       return null;
     }
+    return findAndCreateCellIfRequired(s, row, column);
+  }
+
+  /** Force get a cell in a sheet already looked up (create if it does not exist) */
+  public static XSSFCell findAndCreateCellIfRequired(Sheet s, int row, int column) {
     Row r = s.getRow(row);
     if (r == null) r = s.createRow(row);
     Cell c = r.getCell(column);
@@ -696,61 +956,6 @@ public class Exporter {
 
   public static boolean insertDataFromJSONIntoCell(
       Object value, XSSFCell c, String format, Integer indent) {
-    if (c == null) throw new IllegalArgumentException("Cell was null");
-    if (value == null) {
-      c.setBlank();
-      // c.setCellValue("");
-    }
-    // This is the unwrapping step - in case the value provided is JSON, then
-    // 1) Take "data" as the value
-    // 2) Check for "format" for cell-level formatting
-    // 3) Check for "indent" for cell-level indentation
-    else if (value instanceof JSONObject) {
-      JSONObject json = (JSONObject) value;
-      // System.out.println("Cool: " + json.toString());
-      if (json.has("data")) {
-        format = json.has("format") ? json.getString("format") : null;
-        indent =
-            json.has("indent") && json.get("indent") instanceof Integer
-                ? json.getInt("indent")
-                : null;
-        Object data = json.get("data");
-        insertDataFromJSONIntoCell(data, c, format, indent);
-      }
-    } else if (value instanceof Boolean) {
-      c.setCellValue((boolean) value);
-    } else if (value instanceof Number) {
-      c.setCellValue(((Number) value).doubleValue());
-    } else {
-      if (Utils.isFormattedAsDate(value.toString())) {
-        c.setCellValue(Utils.getAsDate(value.toString()));
-      } else if (value.toString().startsWith("=")) {
-        c.setCellFormula(value.toString().substring(1));
-      } else {
-        c.setCellValue(value.toString());
-      }
-    }
-    // Set cell-level formatting
-    if (format != null || indent != null) {
-      XSSFCellStyle cellStyle = c.getSheet().getWorkbook().createCellStyle();
-      // Make sure we start from the existing cell's style
-      cellStyle.cloneStyleFrom(c.getCellStyle());
-      if (format != null) {
-        // Swap "." and "," for locale-specific number formats
-        if (format.contains(".") && format.contains(","))
-          format = format.replace(".", "DOT").replace(",", ".").replace("DOT", ",");
-        XSSFDataFormat dataFormat = c.getSheet().getWorkbook().createDataFormat();
-        cellStyle.setDataFormat(dataFormat.getFormat(format));
-      }
-      if (indent != null) {
-        short s = indent.shortValue();
-        cellStyle.setIndention(s);
-        cellStyle.setAlignment(HorizontalAlignment.LEFT); // Discovered by Peter Albert
-        log.info("Setting indent [" + s + "] for cell [" + c.getAddress().formatAsString() + "]");
-      }
-      c.setCellStyle(cellStyle);
-      if (format != null) return true;
-    }
-    return false;
+    return PreparedValue.of(value, format, indent).writeTo(c);
   }
 }
@@ -2,9 +2,11 @@ package com.molnify.xlport.core;
 
 import static com.molnify.xlport.core.Utils.*;
 
+import com.molnify.xlport.jfr.ImportTableEvent;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 import org.apache.poi.ss.formula.eval.ErrorEval;
 import org.apache.poi.ss.usermodel.*;
@@ -67,14 +69,47 @@ public class Importer {
    */
   public static JSONObject importData(
       JSONObject request, XSSFWorkbook workbook, JSONArray potentialErrors, boolean evaluate) {
+    return importData(request, workbook, potentialErrors, evaluate, 0);
+  }
+
+  /**
+   * Imports data from the workbook according to the request specification, until a deadline. At the
+   * deadline, the import stops, and an error in potentialErrors says where, e.g., "table Orders
+   * 41200/90000 rows".
+   *
+   * @param deadline when to stop, in milliseconds since the epoch, or 0 for no deadline
+   * @return JSON object with the "properties" and/or "tables" imported before the deadline
+   * @see #importData(JSONObject, XSSFWorkbook, JSONArray, boolean)
+   */
+  public static JSONObject importData(
+      JSONObject request,
+      XSSFWorkbook workbook,
+      JSONArray potentialErrors,
+      boolean evaluate,
+      long deadline) {
+    JSONObject result = new JSONObject();
+    try {
+      importData(request, workbook, potentialErrors, evaluate, deadline, result);
+    } catch (CancellationException e) {
+      // The error is already in potentialErrors
+      log.info(e.getMessage());
+    }
+    return result;
+  }
+
+  private static void importData(
+      JSONObject request,
+      XSSFWorkbook workbook,
+      JSONArray potentialErrors,
+      boolean evaluate,
+      long deadline,
+      JSONObject result) {
     FormulaEvaluator evaluator = null;
     if (evaluate) {
       evaluator = workbook.getCreationHelper().createFormulaEvaluator();
       evaluator.setIgnoreMissingWorkbooks(true);
     }
 
-    JSONObject result = new JSONObject();
-
     // Two cases below: PROPERTIES and/or TABLES
     if (request.has(PROPERTIES)) {
       Set<String> props = new HashSet<>();
@@ -89,7 +124,7 @@ public class Importer {
         potentialErrors.put(
             "Properties is specified incorrectly. It should either be a JSON array or a single JSON"
                 + " object");
-        return result;
+        return;
       }
 
       // Wildcard support
@@ -108,6 +143,7 @@ public class Importer {
       for (Object o : props) {
         if (o instanceof String) {
           String key = (String) o;
+          checkDeadline(deadline, potentialErrors, "properties", key, 0, 1);
           for (XSSFName name : workbook.getNames(key)) {
             JSONObject jsonObjectToPlaceContent = resultProps;
             if (name == null) continue;
@@ -147,7 +183,7 @@ public class Importer {
         potentialErrors.put(
             "Tables is specified incorrectly. It should either be a JSON array or a single JSON"
                 + " object");
-        return result;
+        return;
       }
 
       // Wildcard support
@@ -184,16 +220,46 @@ public class Importer {
           if (!resultTables.has(sheetName)) resultTables.put(sheetName, new JSONObject());
           jsonObjectToPlaceContent = resultTables.getJSONObject(sheetName);
           JSONArray array =
-              getExcelTableAsArrayOfJSONObjects(tableName, headerNames, workbook, evaluator);
+              getExcelTableAsArrayOfJSONObjects(
+                  tableName, headerNames, workbook, evaluator, deadline, potentialErrors);
           jsonObjectToPlaceContent.put(displayTableName, array);
         } else {
           JSONArray array =
-              getExcelTableAsArrayOfJSONObjects(tableName, headerNames, workbook, evaluator);
+              getExcelTableAsArrayOfJSONObjects(
+                  tableName, headerNames, workbook, evaluator, deadline, potentialErrors);
           jsonObjectToPlaceContent.put(tableName, array);
         }
       }
     }
-    return result;
+  }
+
+  /**
+   * Stops the import, with an error that says where, if it is past its deadline
+   *
+   * @param phase "properties" or "tables"
+   */
+  private static void checkDeadline(
+      long deadline,
+      JSONArray potentialErrors,
+      String phase,
+      String key,
+      long rowsRead,
+      long totalRows) {
+    if (deadline <= 0 || System.currentTimeMillis() <= deadline) return;
+    String where =
+        "tables".equals(phase)
+            ? "table " + key + " " + rowsRead + "/" + totalRows + " rows"
+            : "property " + key;
+    String message = "Import deadline exceeded at " + where;
+    potentialErrors.put(
+        new JSONObject()
+            .put("status", "error")
+            .put("message", message)
+            .put("phase", phase)
+            .put("key", key)
+            .put("rowsRead", rowsRead)
+            .put("totalRows", totalRows));
+    throw new CancellationException(message);
   }
 
   /**
@@ -203,7 +269,12 @@ public class Importer {
       String tableName,
       List<String> headerNames,
       XSSFWorkbook workbook,
-      FormulaEvaluator evaluator) {
+      FormulaEvaluator evaluator,
+      long deadline,
+      JSONArray potentialErrors) {
+    ImportTableEvent event = new ImportTableEvent();
+    event.begin();
+    long cells = 0;
     JSONArray result = new JSONArray();
     List<XSSFTable> tables = getAllTables(workbook);
     for (XSSFTable t : tables) {
@@ -221,11 +292,20 @@ public class Importer {
 
         // Now loop through the table and pick out relevant columns
         for (int row = startingRow + 1; row <= t.getEndRowIndex(); row++) {
+          if ((row - startingRow) % ExportContext.CHECK_EVERY == 0)
+            checkDeadline(
+                deadline,
+                potentialErrors,
+                "tables",
+                tableName,
+                row - startingRow - 1,
+                t.getEndRowIndex() - startingRow);
           boolean rowEmtpySoFar = true;
           JSONObject dataForRow = new JSONObject();
           for (Entry<String, Integer> e : headerNameToColumn.entrySet()) {
             CellReference ref = new CellReference(t.getSheetName(), row, e.getValue(), true, true);
             Cell c = getNullSafeCellFromReference(ref, workbook);
+            cells++;
             if (evaluator == null) {
               boolean empty =
                   putCellContentsInJSON(
@@ -288,6 +368,13 @@ public class Importer {
         }
       }
     }
+    if (event.shouldCommit()) {
+      event.table = tableName;
+      event.evaluate = evaluator != null;
+      event.rows = result.length();
+      event.cells = cells;
+      event.commit();
+    }
     return result;
   }
 
@@ -0,0 +1,253 @@
+package com.molnify.xlport.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Updates a previous export result with a delta, rather than exporting everything again. Only the
+ * keys in the delta are written into the previous workbook, the rest of it stays as it was. The
+ * previous result is either an export in the {@link ExportCache}, by the id it was returned with,
+ * or a workbook sent with the request (base64 encoded).
+ *
+ * <p>The delta has the shape of the data of an export, and its keys are written as by {@link
+ * Exporter}: a property is overwritten, and an array replaces all rows of a table. In addition, a
+ * table can be given as {"rows": {"3": {"Qty": 5}}}, which only writes the given columns of the
+ * given rows (0 being the first data row). Sheets created from sheet templates are updated through
+ * "sheets", as when they were created, but no sheets are created.
+ *
+ * @author kirsten
+ */
+public class IncrementalExporter {
+  private static final Logger log = Logger.getLogger(IncrementalExporter.class.getName());
+
+  private static final String SHEET_TEMPLATE_NAME = "sheets";
+
+  /** @return true if the export request has a previous result to update */
+  public static boolean isIncremental(JSONObject request) {
+    return request.has("previous") || request.has("previousFile");
+  }
+
+  /**
+   * Opens the previous result of an incremental export request, to export the delta into. The
+   * properties of sheets created from sheet templates are scoped to their sheet, as they were when
+   * the sheets were created.
+   *
+   * @param request the export request, with "previous" (the id of an export in the export cache) or
+   *     "previousFile" (a base64 encoded workbook)
+   * @param originalFileName the file name of the template
+   * @throws IOException if the previous result is not in the export cache, or cannot be read
+   */
+  public static Template previous(JSONObject request, String originalFileName) throws IOException {
+    byte[] bytes;
+    if (request.has("previousFile")) {
+      try {
+        bytes = Base64.getMimeDecoder().decode(request.getString("previousFile"));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("previousFile is not base64 encoded: " + e.getMessage());
+      }
+    } else {
+      String id = request.getString("previous");
+      InputStream cached = ExportCache.open(id);
+      if (cached == null)
+        throw new IOException(
+            "Previous export ["
+                + id
+                + "] could not be found, it may have been evicted from the export cache");
+      try (InputStream in = cached) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utils.copyFromInputToOutput(in, out);
+        bytes = out.toByteArray();
+      }
+    }
+    Template template = TemplateManager.getTemplateFromBytes(bytes, originalFileName);
+    for (Name name : template.workbook.getAllNames()) {
+      if (name.getSheetIndex() < 0 || name.isFunctionName()) continue;
+      String sheet = template.workbook.getSheetName(name.getSheetIndex());
+      template.addTemplateItemScoped(
+          new TemplateItem(name.getNameName(), name.getRefersToFormula(), sheet), sheet);
+    }
+    return template;
+  }
+
+  /**
+   * Writes a delta into a previous export result
+   *
+   * @param delta the keys that changed, see above
+   * @param previous the previous export result, from {@link #previous}
+   * @param potentialErrors where errors are added
+   * @param overwriteFormatting as for {@link Exporter#exportToExcel}
+   * @param context the state of the export
+   */
+  public static void export(
+      JSONObject delta,
+      Template previous,
+      JSONArray potentialErrors,
+      boolean overwriteFormatting,
+      ExportContext context) {
+    JSONObject data = new JSONObject();
+    Map<String, JSONObject> patches = new TreeMap<>();
+    for (String key : delta.keySet()) {
+      Object value = delta.get(key);
+      if (SHEET_TEMPLATE_NAME.equals(key)) {
+        if (value instanceof JSONArray)
+          sheets((JSONArray) value, previous, data, patches, potentialErrors);
+      } else if (isRowPatch(value)) patches.put(key, ((JSONObject) value).getJSONObject("rows"));
+      else data.put(key, value);
+    }
+    log.info(
+        "Incremental export of "
+            + data.length()
+            + " keys and "
+            + patches.size()
+            + " tables with changed rows");
+
+    for (Map.Entry<String, JSONObject> patch : patches.entrySet()) {
+      context.checkpoint();
+      patchRows(previous, patch.getKey(), patch.getValue(), potentialErrors, context);
+    }
+    for (String key : data.keySet()) {
+      if (!(data.get(key) instanceof JSONArray)) continue;
+      // The rows the table had are formatted already, which would otherwise be added to the data
+      // validations and conditional formatting of the sheet again, on every update
+      XSSFTable table = table(previous, key);
+      if (table != null) context.setFormattedRows(key, table.getDataRowCount());
+      // Tables that get fewer rows than they had would otherwise keep the rest
+      removeRowsAfter(previous, key, data.getJSONArray(key).length());
+    }
+    Exporter.exportToExcel(data, previous, potentialErrors, overwriteFormatting, context);
+  }
+
+  /** Puts the data of sheets that exist into the data, as the exporter does when it creates them */
+  private static void sheets(
+      JSONArray sheets,
+      Template previous,
+      JSONObject data,
+      Map<String, JSONObject> patches,
+      JSONArray potentialErrors) {
+    for (Object o : sheets) {
+      if (!(o instanceof JSONObject)) continue;
+      JSONObject spec = (JSONObject) o;
+      String name = spec.optString("name");
+      if (previous.getSheet(name) == null) {
+        potentialErrors.put(
+            error(
+                "Sheet [" + name + "] is not in the previous export, export in full to create it"));
+        continue;
+      }
+      JSONObject sheetData = spec.optJSONObject("data");
+      if (sheetData == null) continue;
+      JSONObject rest = new JSONObject();
+      for (String key : sheetData.keySet()) {
+        if (isRowPatch(sheetData.get(key)))
+          patches.put(
+              Utils.collapseName(name, key), sheetData.getJSONObject(key).getJSONObject("rows"));
+        else rest.put(key, sheetData.get(key));
+      }
+      Utils.translateSheetTemplateSpecToRoot(
+          new JSONObject().put("name", name).put("data", rest), data);
+    }
+  }
+
+  private static boolean isRowPatch(Object value) {
+    return value instanceof JSONObject && ((JSONObject) value).optJSONObject("rows") != null;
+  }
+
+  /** Writes the given columns of the given rows of a table */
+  private static void patchRows(
+      Template previous,
+      String key,
+      JSONObject rows,
+      JSONArray potentialErrors,
+      ExportContext context) {
+    TemplateItem item = previous.items.get(key);
+    XSSFTable table = table(previous, key);
+    if (table == null) {
+      potentialErrors.put(error("Table [" + key + "] is not in the previous export"));
+      return;
+    }
+    XSSFSheet sheet = table.getXSSFSheet();
+    int dataRows = table.getDataRowCount();
+    context.setKey(key, true, rows.length());
+    Map<Integer, String> indexes = new TreeMap<>();
+    for (String index : rows.keySet()) {
+      try {
+        indexes.put(Integer.parseInt(index.trim()), index);
+      } catch (NumberFormatException e) {
+        potentialErrors.put(error("Row [" + index + "] of table [" + key + "] is not a number"));
+      }
+    }
+    for (Map.Entry<Integer, String> e : indexes.entrySet()) {
+      int i = e.getKey();
+      JSONObject row = rows.optJSONObject(e.getValue());
+      context.rowWritten();
+      if (i < 0 || i >= dataRows || row == null) {
+        potentialErrors.put(
+            error(
+                "Row ["
+                    + e.getValue()
+                    + "] of table ["
+                    + key
+                    + "] is not one of its "
+                    + dataRows
+                    + " rows, or not a JSONObject"));
+        continue;
+      }
+      for (String column : row.keySet()) {
+        int[] rowAndCol = item.getRowAndColumnForHeader(column);
+        if (rowAndCol == null) {
+          potentialErrors.put(error("Column [" + column + "] is not in table [" + key + "]"));
+          continue;
+        }
+        XSSFCell c =
+            Exporter.findAndCreateCellIfRequired(sheet, rowAndCol[0] + i + 1, rowAndCol[1]);
+        try {
+          // As for tables, null in the JSON is a blank cell
+          PreparedValue.of(row.isNull(column) ? null : row.get(column)).writeTo(c);
+        } catch (RuntimeException ex) {
+          log.info("Try to insert [" + row.opt(column) + "] into cell [" + c.getAddress() + "]");
+          potentialErrors.put(ex.getMessage());
+        }
+      }
+    }
+  }
+
+  /** Removes the cells of the rows of a table after its first rows (keeping at least one) */
+  private static void removeRowsAfter(Template previous, String key, int rows) {
+    XSSFTable table = table(previous, key);
+    if (table == null) return;
+    XSSFSheet sheet = table.getXSSFSheet();
+    int from = table.getStartRowIndex() + 1 + Math.max(rows, 1);
+    for (int r = from; r <= table.getEndRowIndex(); r++) {
+      Row row = sheet.getRow(r);
+      if (row == null) continue;
+      for (int col = table.getStartColIndex(); col <= table.getEndColIndex(); col++) {
+        Cell c = row.getCell(col);
+        if (c != null) row.removeCell(c);
+      }
+      if (row.getPhysicalNumberOfCells() == 0) sheet.removeRow(row);
+    }
+  }
+
+  /** @return the table of the previous export with the key, or null if it is not a table */
+  private static XSSFTable table(Template previous, String key) {
+    TemplateItem item = previous.items.get(key);
+    return item == null || !item.isTable() ? null : previous.getTable(item.name);
+  }
+
+  private static JSONObject error(String message) {
+    return new JSONObject().put("status", "error").put("message", message);
+  }
+}
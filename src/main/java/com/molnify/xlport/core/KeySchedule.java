@@ -0,0 +1,297 @@
+package com.molnify.xlport.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.json.JSONObject;
+
+/**
+ * The order in which the exporter populates the keys of a request. A table with formulas that
+ * refer to another key (a table, as in "Rates[Rate]", a named range, or a cell range inside one) is
+ * populated after it, as structured references are resolved to the size of the table when the
+ * formulas are written. The references are found when the template is processed (see {@link
+ * TemplateItem#getFormulaReferences()}).
+ *
+ * <p>Keys are otherwise populated as before: properties and tables without formulas first, then
+ * tables with formulas. Keys are also put in groups, where the keys of a group only depend on keys
+ * in earlier groups, so that the keys of a group can be prepared concurrently.
+ *
+ * @author kirsten
+ */
+public class KeySchedule {
+  private static final Logger log = Logger.getLogger(KeySchedule.class.getName());
+
+  private static final Pattern CELL = Pattern.compile("\\$?[A-Za-z]{1,3}\\$?[0-9]+");
+  private static final Pattern COLUMN = Pattern.compile("\\$?[A-Za-z]{1,3}");
+
+  private final List<String> order;
+  private final List<List<String>> groups;
+
+  private KeySchedule(List<String> order, List<List<String>> groups) {
+    this.order = Collections.unmodifiableList(order);
+    this.groups = Collections.unmodifiableList(groups);
+  }
+
+  /** @return all keys, each after the keys it depends on */
+  public List<String> getOrder() {
+    return order;
+  }
+
+  /** @return the keys in groups, in order, where keys only depend on keys in earlier groups */
+  public List<List<String>> getGroups() {
+    return groups;
+  }
+
+  /**
+   * Schedules the keys of the data
+   *
+   * @param data the data of the request, after sheet templates have been processed
+   * @param template the template, with items for all sheets
+   */
+  public static KeySchedule of(JSONObject data, Template template) {
+    // As before: keys that point to tables with formulas last, in order to get all the data that
+    // they may look at populated first. This is the order when there is nothing else to go by
+    LinkedList<String> keys = new LinkedList<>();
+    for (String key : data.keySet()) {
+      if (template.items.get(key) != null && template.items.get(key).isTableAndHasFormulas())
+        keys.addLast(key);
+      else keys.addFirst(key);
+    }
+    Map<String, Integer> position = new HashMap<>();
+    for (String key : keys) position.put(key, position.size());
+
+    Map<String, Set<String>> dependencies = dependencies(data, template, keys);
+
+    // Topological order, taking the first key in the order above whenever there is a choice
+    Map<String, Integer> waitingFor = new HashMap<>();
+    Map<String, List<String>> dependents = new HashMap<>();
+    PriorityQueue<String> ready = new PriorityQueue<>((a, b) -> position.get(a) - position.get(b));
+    for (String key : keys) {
+      Set<String> d = dependencies.get(key);
+      waitingFor.put(key, d.size());
+      for (String on : d) dependents.computeIfAbsent(on, k -> new ArrayList<>()).add(key);
+      if (d.isEmpty()) ready.add(key);
+    }
+    List<String> order = new ArrayList<>(keys.size());
+    Map<String, Integer> level = new HashMap<>();
+    List<List<String>> groups = new ArrayList<>();
+    Set<String> remaining = new LinkedHashSet<>(keys);
+    while (!remaining.isEmpty()) {
+      String key = ready.poll();
+      if (key == null) {
+        // Formulas that refer to each other, so one of them has to go first
+        key = remaining.iterator().next();
+        log.warning("Formulas of [" + key + "] depend on keys that depend on it, populated first");
+      }
+      remaining.remove(key);
+      order.add(key);
+      int l = 0;
+      for (String on : dependencies.get(key))
+        if (level.containsKey(on)) l = Math.max(l, level.get(on) + 1);
+      level.put(key, l);
+      while (groups.size() <= l) groups.add(new ArrayList<>());
+      groups.get(l).add(key);
+      for (String dependent : dependents.getOrDefault(key, Collections.emptyList()))
+        if (remaining.contains(dependent) && waitingFor.merge(dependent, -1, Integer::sum) == 0)
+          ready.add(dependent);
+    }
+    return new KeySchedule(order, groups);
+  }
+
+  /** The keys each key depends on, from the formula references of the items it populates */
+  private static Map<String, Set<String>> dependencies(
+      JSONObject data, Template template, List<String> keys) {
+    // What populates what: names (ignoring case, as in formulas) and cell ranges by sheet
+    Map<String, String> keyByName = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    Map<String, List<Object[]>> rangesBySheet = new HashMap<>();
+    Map<String, List<TemplateItem>> itemsByKey = new LinkedHashMap<>();
+    for (String key : keys) {
+      List<TemplateItem> items = new ArrayList<>();
+      Object value = data.get(key);
+      if (value instanceof JSONObject
+          && "sheet".equals(((JSONObject) value).optString("_xlport_metadata"))) {
+        Map<String, TemplateItem> sheetItems = template.sheetScopedItems.get(key);
+        if (sheetItems != null)
+          for (String subKey : ((JSONObject) value).keySet())
+            if (sheetItems.get(subKey) != null) items.add(sheetItems.get(subKey));
+      } else if (template.items.get(key) != null) {
+        items.add(template.items.get(key));
+        keyByName.put(key, key);
+      }
+      itemsByKey.put(key, items);
+      for (TemplateItem item : items) {
+        CellRangeAddress range = range(item.reference);
+        if (range != null)
+          rangesBySheet
+              .computeIfAbsent(sheet(item.reference), k -> new ArrayList<>())
+              .add(new Object[] {range, key});
+      }
+    }
+
+    Map<String, Set<String>> dependencies = new HashMap<>();
+    for (Map.Entry<String, List<TemplateItem>> e : itemsByKey.entrySet()) {
+      Set<String> on = new LinkedHashSet<>();
+      for (TemplateItem item : e.getValue())
+        for (String reference : item.getFormulaReferences()) {
+          if (reference.contains("!")) {
+            CellRangeAddress range = range(reference);
+            if (range == null) continue;
+            for (Object[] r : rangesBySheet.getOrDefault(sheet(reference), Collections.emptyList()))
+              if (((CellRangeAddress) r[0]).intersects(range)) on.add((String) r[1]);
+          } else if (keyByName.containsKey(reference)) on.add(keyByName.get(reference));
+        }
+      on.remove(e.getKey());
+      dependencies.put(e.getKey(), on);
+    }
+    return dependencies;
+  }
+
+  /** The (unquoted, lower case) sheet of a reference such as "'My sheet'!A1:B2" */
+  private static String sheet(String reference) {
+    String sheet = reference.substring(0, reference.lastIndexOf('!'));
+    if (sheet.startsWith("'") && sheet.endsWith("'") && sheet.length() > 1)
+      sheet = sheet.substring(1, sheet.length() - 1).replace("''", "'");
+    return sheet.toLowerCase(Locale.ROOT);
+  }
+
+  /** The range of a reference such as "Sheet1!$A$1:$B$2", or null if it is not a cell range */
+  private static CellRangeAddress range(String reference) {
+    int bang = reference.lastIndexOf('!');
+    if (bang < 0) return null;
+    try {
+      AreaReference area =
+          new AreaReference(reference.substring(bang + 1), SpreadsheetVersion.EXCEL2007);
+      return new CellRangeAddress(
+          area.getFirstCell().getRow(),
+          area.getLastCell().getRow(),
+          area.getFirstCell().getCol(),
+          area.getLastCell().getCol());
+    } catch (RuntimeException e) {
+      return null; // E.g., a sheet scoped name, or a broken reference
+    }
+  }
+
+  /**
+   * The references in a formula: names (of named ranges and tables, as in "Rates[Rate]") and cell
+   * ranges, with their sheet (e.g., "'My sheet'!A1:B2", or sheet!A1 for one without sheet)
+   *
+   * @param formula the formula, with or without "="
+   * @param sheet the sheet of the formula, for cell references without sheet
+   */
+  static Set<String> references(String formula, String sheet) {
+    Set<String> references = new LinkedHashSet<>();
+    int i = 0, n = formula.length();
+    String qualifier = null; // The sheet of the next reference, if any
+    while (i < n) {
+      char ch = formula.charAt(i);
+      if (ch == '"') { // A string, with "" for quotes
+        i++;
+        while (i < n && (formula.charAt(i) != '"' || (i + 1 < n && formula.charAt(i + 1) == '"')))
+          i += formula.charAt(i) == '"' ? 2 : 1;
+        i++;
+        qualifier = null;
+      } else if (ch == '#') { // An error, e.g., #N/A or #REF!
+        i++;
+        while (i < n && (Character.isLetterOrDigit(formula.charAt(i)) || formula.charAt(i) == '/'))
+          i++;
+        if (i < n && (formula.charAt(i) == '!' || formula.charAt(i) == '?')) i++;
+        qualifier = null;
+      } else if (ch == '[') { // Columns of a table, or of the same table as the formula
+        i = skipBrackets(formula, i);
+      } else if (ch == '\'') { // A quoted sheet name
+        int start = i++;
+        while (i < n && (formula.charAt(i) != '\'' || (i + 1 < n && formula.charAt(i + 1) == '\'')))
+          i += formula.charAt(i) == '\'' ? 2 : 1;
+        i++;
+        if (i < n && formula.charAt(i) == '!') {
+          qualifier = formula.substring(start, i);
+          i++;
+        }
+      } else if (Character.isDigit(ch) || ch == '.') { // A number
+        while (i < n && (Character.isDigit(formula.charAt(i)) || formula.charAt(i) == '.')) i++;
+        if (i < n && (formula.charAt(i) == 'E' || formula.charAt(i) == 'e')) {
+          i++;
+          if (i < n && (formula.charAt(i) == '+' || formula.charAt(i) == '-')) i++;
+          while (i < n && Character.isDigit(formula.charAt(i))) i++;
+        }
+        qualifier = null;
+      } else if (Character.isLetter(ch) || ch == '_' || ch == '\\' || ch == '$') {
+        int start = i;
+        while (i < n && isNameChar(formula.charAt(i))) i++;
+        String token = formula.substring(start, i);
+        char next = i < n ? formula.charAt(i) : ' ';
+        if (next == '!') {
+          qualifier = token;
+          i++;
+          continue;
+        } else if (next == '(') {
+          // A function
+        } else if (next == '[') {
+          references.add(token);
+          i = skipBrackets(formula, i);
+        } else if (CELL.matcher(token).matches() || COLUMN.matcher(token).matches()) {
+          String range = token;
+          if (next == ':') {
+            int end = i + 1;
+            while (end < n && isNameChar(formula.charAt(end))) end++;
+            String to = formula.substring(i + 1, end);
+            if (CELL.matcher(to).matches() || COLUMN.matcher(to).matches()) {
+              range = token + ":" + to;
+              i = end;
+            }
+          }
+          // Whole columns, e.g., A:A
+          if (!CELL.matcher(token).matches()) {
+            if (range.equals(token)) range = null; // A name, after all
+            else range = range.replace(":", "1:") + SpreadsheetVersion.EXCEL2007.getMaxRows();
+          }
+          if (range != null)
+            references.add((qualifier == null ? quote(sheet) : qualifier) + "!" + range);
+          else references.add(token);
+        } else if (!token.equalsIgnoreCase("TRUE") && !token.equalsIgnoreCase("FALSE")) {
+          references.add(qualifier == null ? token : qualifier + "!" + token);
+        }
+        qualifier = null;
+      } else {
+        i++;
+        qualifier = null;
+      }
+    }
+    return references;
+  }
+
+  private static boolean isNameChar(char ch) {
+    return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.' || ch == '\\' || ch == '$';
+  }
+
+  /** @return the index after the brackets that start at i (which may be nested) */
+  private static int skipBrackets(String formula, int i) {
+    int depth = 0;
+    for (; i < formula.length(); i++) {
+      char ch = formula.charAt(i);
+      if (ch == '\'') i++; // Escapes the next character in a column name
+      else if (ch == '[') depth++;
+      else if (ch == ']' && --depth == 0) return i + 1;
+    }
+    return i;
+  }
+
+  private static String quote(String sheet) {
+    if (sheet == null) return "";
+    return "'" + sheet.replace("'", "''") + "'";
+  }
+}
@@ -0,0 +1,173 @@
+package com.molnify.xlport.core;
+
+import java.util.Date;
+import java.util.logging.Logger;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.json.JSONObject;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+/**
+ * A JSON value converted into what is written into a cell. This is the part of {@link
+ * Exporter#insertDataFromJSONIntoCell} that does not touch the workbook (unwrapping "data",
+ * "format" and "indent", and telling dates, formulas, numbers and text apart), so that it can be
+ * done on other threads than the one writing the workbook (see {@link ValuePipeline}). Immutable.
+ *
+ * @author kirsten
+ */
+final class PreparedValue {
+  private static final Logger log = Logger.getLogger(PreparedValue.class.getName());
+
+  static final PreparedValue BLANK = new PreparedValue(Type.BLANK, 0, null, null, null, null);
+
+  private enum Type {
+    NONE, // A JSON object without "data", only formats the cell
+    BLANK,
+    BOOLEAN,
+    NUMBER,
+    DATE,
+    FORMULA,
+    TEXT,
+    INLINE_TEXT // Text that is written into the cell, rather than the shared strings table
+  }
+
+  private final Type type;
+  private final double number;
+  private final Object value; // Boolean, Date (or null, if it could not be parsed) or String
+  private final String format;
+  private final Integer indent;
+  // Thrown when written, as it would have been when the value was inserted
+  private final RuntimeException error;
+
+  private PreparedValue(
+      Type type,
+      double number,
+      Object value,
+      String format,
+      Integer indent,
+      RuntimeException error) {
+    this.type = type;
+    this.number = number;
+    this.value = value;
+    this.format = format;
+    this.indent = indent;
+    this.error = error;
+  }
+
+  static PreparedValue of(Object value) {
+    return of(value, null, null);
+  }
+
+  /**
+   * @param value the JSON value, may be null
+   * @param format the cell-level format, or null
+   * @param indent the cell-level indentation, or null
+   */
+  static PreparedValue of(Object value, String format, Integer indent) {
+    // Swap "." and "," for locale-specific number formats
+    if (format != null && format.contains(".") && format.contains(","))
+      format = format.replace(".", "DOT").replace(",", ".").replace("DOT", ",");
+    try {
+      // This is the unwrapping step - in case the value provided is JSON, then
+      // 1) Take "data" as the value
+      // 2) Check for "format" for cell-level formatting
+      // 3) Check for "indent" for cell-level indentation
+      if (value instanceof JSONObject) {
+        JSONObject json = (JSONObject) value;
+        if (!json.has("data")) return new PreparedValue(Type.NONE, 0, null, format, indent, null);
+        format = json.has("format") ? json.getString("format") : null;
+        indent =
+            json.has("indent") && json.get("indent") instanceof Integer
+                ? json.getInt("indent")
+                : null;
+        return of(json.get("data"), format, indent);
+      }
+      if (value == null)
+        return format == null && indent == null
+            ? BLANK
+            : new PreparedValue(Type.BLANK, 0, null, format, indent, null);
+      if (value instanceof Boolean)
+        return new PreparedValue(Type.BOOLEAN, 0, value, format, indent, null);
+      if (value instanceof Number)
+        return new PreparedValue(
+            Type.NUMBER, ((Number) value).doubleValue(), null, format, indent, null);
+      String s = value.toString();
+      if (Utils.isFormattedAsDate(s))
+        return new PreparedValue(Type.DATE, 0, Utils.getAsDate(s), format, indent, null);
+      if (s.startsWith("="))
+        return new PreparedValue(Type.FORMULA, 0, s.substring(1), format, indent, null);
+      return new PreparedValue(Type.TEXT, 0, s, format, indent, null);
+    } catch (RuntimeException e) {
+      return new PreparedValue(Type.NONE, 0, null, null, null, e);
+    }
+  }
+
+  /** @return the value, with text written into the cell rather than the shared strings table */
+  PreparedValue inline() {
+    if (type != Type.TEXT) return this;
+    return new PreparedValue(Type.INLINE_TEXT, 0, value, format, indent, error);
+  }
+
+  /**
+   * Writes the value into the cell, with cell-level formatting if any. Strings and styles are
+   * written through {@link SharedParts}, so that cells of different sheets can be written at once.
+   *
+   * @return true if the cell got a cell-level format
+   */
+  boolean writeTo(XSSFCell c) {
+    if (c == null) throw new IllegalArgumentException("Cell was null");
+    if (error != null) throw error;
+    switch (type) {
+      case BLANK:
+        SharedParts.setBlank(c);
+        break;
+      case BOOLEAN:
+        c.setCellValue((Boolean) value);
+        break;
+      case NUMBER:
+        c.setCellValue(number);
+        break;
+      case DATE:
+        c.setCellValue((Date) value);
+        break;
+      case FORMULA:
+        c.setCellFormula((String) value);
+        break;
+      case TEXT:
+        SharedParts.setString(c, (String) value);
+        break;
+      case INLINE_TEXT:
+        setInlineString(c, (String) value);
+        break;
+      default:
+        break;
+    }
+    // Set cell-level formatting
+    if (format != null || indent != null) {
+      SharedParts.format(c, format, indent);
+      if (indent != null)
+        log.info(
+            "Setting indent [" + indent + "] for cell [" + c.getAddress().formatAsString() + "]");
+      if (format != null) return true;
+    }
+    return false;
+  }
+
+  /** As {@link XSSFCell#setCellValue(String)}, but without the shared strings table */
+  private static void setInlineString(XSSFCell c, String value) {
+    // Formula cells get the value as their cached result, and too long values the usual error
+    if (c.getCellType() == CellType.FORMULA
+        || value.length() > SpreadsheetVersion.EXCEL2007.getMaxTextLength()) {
+      SharedParts.setString(c, value);
+      return;
+    }
+    CTCell cell = c.getCTCell();
+    if (cell.isSetV()) cell.unsetV();
+    cell.setT(STCellType.INLINE_STR);
+    // The rich text string takes care of leading and trailing spaces
+    cell.setIs(new XSSFRichTextString(value).getCTRst());
+  }
+}
@@ -0,0 +1,98 @@
+package com.molnify.xlport.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Writes to the parts of a workbook that all its sheets share: shared strings and cell styles (and
+ * the calculation chain, when formulas are removed, e.g., when a table is resized). Everything else
+ * a sheet is made of is its own part, so sheets can be populated by one thread each (see {@link
+ * SheetWriters}) as long as shared parts are only written here, under the lock of the workbook.
+ *
+ * <p>Cell-level formats are deduplicated, so that cells with the same style, format and indent
+ * share one style, rather than getting one each.
+ *
+ * @author kirsten
+ */
+final class SharedParts {
+  // Style index by base style, format and indent, per workbook. Indexes rather than styles, which
+  // would keep their workbook from being collected
+  private static final Map<XSSFWorkbook, Map<String, Integer>> formatted =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  private SharedParts() {}
+
+  static void setString(XSSFCell c, String value) {
+    synchronized (c.getSheet().getWorkbook()) {
+      // An inline string (see PreparedValue#inline) would otherwise be left in the cell
+      if (c.getCTCell().isSetIs()) c.getCTCell().unsetIs();
+      c.setCellValue(value);
+    }
+  }
+
+  static void setBlank(XSSFCell c) {
+    synchronized (c.getSheet().getWorkbook()) {
+      c.setBlank();
+    }
+  }
+
+  static XSSFCellStyle getStyle(XSSFCell c) {
+    synchronized (c.getSheet().getWorkbook()) {
+      return c.getCellStyle();
+    }
+  }
+
+  static void setStyle(XSSFCell c, CellStyle style) {
+    synchronized (c.getSheet().getWorkbook()) {
+      c.setCellStyle(style);
+    }
+  }
+
+  /**
+   * Resizes a table. The cells of the rows removed from a table are blanked, which updates the
+   * calculation chain for formulas, and the header cells are read through the shared strings.
+   */
+  static void setDataRowCount(XSSFTable table, int rows) {
+    synchronized (table.getXSSFSheet().getWorkbook()) {
+      table.setDataRowCount(rows);
+    }
+  }
+
+  /**
+   * Gives the cell its style, with a format and indentation
+   *
+   * @param format the format, or null to keep the format of the style
+   * @param indent the indentation (aligning left), or null to keep that of the style
+   */
+  static void format(XSSFCell c, String format, Integer indent) {
+    XSSFWorkbook workbook = c.getSheet().getWorkbook();
+    synchronized (workbook) {
+      XSSFCellStyle base = c.getCellStyle();
+      Map<String, Integer> styles = formatted.computeIfAbsent(workbook, w -> new HashMap<>());
+      String key = base.getIndex() + "|" + format + "|" + indent;
+      Integer index = styles.get(key);
+      if (index != null) {
+        c.setCellStyle(workbook.getCellStyleAt(index));
+        return;
+      }
+      XSSFCellStyle cellStyle = workbook.createCellStyle();
+      // Make sure we start from the existing cell's style
+      cellStyle.cloneStyleFrom(base);
+      if (format != null) cellStyle.setDataFormat(workbook.createDataFormat().getFormat(format));
+      if (indent != null) {
+        cellStyle.setIndention(indent.shortValue());
+        cellStyle.setAlignment(HorizontalAlignment.LEFT); // Discovered by Peter Albert
+      }
+      styles.put(key, (int) cellStyle.getIndex());
+      c.setCellStyle(cellStyle);
+    }
+  }
+}
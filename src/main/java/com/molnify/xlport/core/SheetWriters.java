@@ -0,0 +1,99 @@
+package com.molnify.xlport.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Populates the sheets of a workbook in parallel, on a pool of XLPORT_SHEET_THREADS threads
+ * (default 1, i.e., sheets are populated one after the other by the exporting thread). Each sheet
+ * is its own part of the workbook, so one thread per sheet can write its cells, as long as the
+ * parts that sheets share are written through {@link SharedParts}. Keys that depend on each other
+ * are still populated in order, see {@link KeySchedule#getGroups()}.
+ *
+ * @author kirsten
+ */
+public class SheetWriters {
+  private static int threads = threads();
+  private static ExecutorService pool = null;
+
+  private static int threads() {
+    String threads = System.getenv("XLPORT_SHEET_THREADS");
+    if (threads != null && !threads.trim().isEmpty()) return Integer.parseInt(threads.trim());
+    return 1;
+  }
+
+  /**
+   * Sets the number of threads that populate sheets. Allows configuration as a library, and
+   * overrides the environment variable.
+   *
+   * @param threads the number of threads, or 1 to populate sheets on the exporting thread
+   */
+  public static synchronized void configure(int threads) {
+    if (pool != null) pool.shutdown();
+    pool = null;
+    SheetWriters.threads = Math.max(1, threads);
+  }
+
+  /** @return the number of threads that populate sheets */
+  static synchronized int getThreads() {
+    return threads;
+  }
+
+  /** @return true if sheets are populated in parallel */
+  public static synchronized boolean isEnabled() {
+    return threads > 1;
+  }
+
+  /** Created on first use, as most exports never need it */
+  private static synchronized ExecutorService pool() {
+    if (pool == null) {
+      AtomicInteger count = new AtomicInteger();
+      pool =
+          Executors.newFixedThreadPool(
+              threads,
+              r -> {
+                Thread t = new Thread(r, "xlport-sheet-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return pool;
+  }
+
+  /**
+   * Runs the writers, each of which populates its own sheet, and waits for all of them
+   *
+   * @param writers the writers, which must not write to the same sheet
+   * @throws RuntimeException the first exception thrown by a writer, once all have finished
+   */
+  static void run(List<Runnable> writers) {
+    if (writers.size() < 2 || !isEnabled()) {
+      for (Runnable writer : writers) writer.run();
+      return;
+    }
+    ExecutorService executor = pool();
+    List<Future<?>> futures = new ArrayList<>(writers.size());
+    for (Runnable writer : writers) futures.add(executor.submit(writer));
+    Throwable failure = null;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (InterruptedException e) {
+        for (Future<?> f : futures) f.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Export interrupted while populating sheets");
+      } catch (ExecutionException e) {
+        if (failure == null) failure = e.getCause();
+      }
+    }
+    if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+    if (failure instanceof Error) throw (Error) failure;
+    if (failure != null) throw new IllegalStateException("Could not populate sheet", failure);
+  }
+}
@@ -3,9 +3,12 @@ package com.molnify.xlport.core;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 /**
@@ -17,12 +20,18 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
  */
 public class Template implements Closeable {
   public String originalFileName = null;
-  public HashMap<String, TemplateItem> items = new HashMap<>();
+  // Linked, so that items are processed in the order of the template (deterministic output)
+  public HashMap<String, TemplateItem> items = new LinkedHashMap<>();
   // This is here to allow for sheet scoped template items. When properties have been copied as a
   // part of the logic
   // to create new sheets from a template sheet, the named ranges become sheet scoped
-  public HashMap<String, Map<String, TemplateItem>> sheetScopedItems = new HashMap<>();
+  public HashMap<String, Map<String, TemplateItem>> sheetScopedItems = new LinkedHashMap<>();
   public XSSFWorkbook workbook = null;
+  // Sheets and tables by name, as the workbook looks them up by going through all of them. Built on
+  // first use, and forgotten when sheets or tables change (see sheetsChanged). Synchronized, as
+  // sheets may be populated in parallel (see SheetWriters)
+  private Map<String, XSSFSheet> sheetsByName = null;
+  private Map<String, XSSFTable> tablesByName = null;
 
   public void addTemplateItem(TemplateItem item) {
     items.put(item.name, item);
@@ -30,16 +39,55 @@ public class Template implements Closeable {
 
   public void addTemplateItemScoped(TemplateItem item, String sheet) {
     if (sheetScopedItems.get(sheet) == null)
-      sheetScopedItems.put(sheet, new HashMap<String, TemplateItem>());
+      sheetScopedItems.put(sheet, new LinkedHashMap<String, TemplateItem>());
     sheetScopedItems.get(sheet).put(item.name, item);
   }
 
+  /**
+   * As {@link XSSFWorkbook#getSheet(String)}, but without going through all sheets every time
+   *
+   * @return the sheet with the name (ignoring case), or null if there is none
+   */
+  public synchronized XSSFSheet getSheet(String name) {
+    if (sheetsByName == null) {
+      sheetsByName = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (Sheet s : workbook) sheetsByName.putIfAbsent(s.getSheetName(), (XSSFSheet) s);
+    }
+    return sheetsByName.get(name);
+  }
+
+  /**
+   * As {@link XSSFWorkbook#getTable(String)}, but without going through all tables every time
+   *
+   * @return the table with the name (ignoring case), or null if there is none
+   */
+  public synchronized XSSFTable getTable(String name) {
+    if (tablesByName == null) {
+      tablesByName = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (Sheet s : workbook)
+        for (XSSFTable t : ((XSSFSheet) s).getTables())
+          if (t.getName() != null) tablesByName.putIfAbsent(t.getName(), t);
+    }
+    return tablesByName.get(name);
+  }
+
+  /** To be called when sheets or tables have been added, removed or renamed */
+  public synchronized void sheetsChanged() {
+    sheetsByName = null;
+    tablesByName = null;
+  }
+
   public String getOriginalFileSuffix() {
-    if (originalFileName == null) return "";
+    return getFileSuffix(originalFileName);
+  }
+
+  /** The suffix of a file name (after the first dot), or "" if none */
+  public static String getFileSuffix(String fileName) {
+    if (fileName == null) return "";
     else {
-      int dotPosition = originalFileName.indexOf(".");
-      if (dotPosition < 0 || dotPosition == originalFileName.length()) return "";
-      else return originalFileName.substring(dotPosition + 1);
+      int dotPosition = fileName.indexOf(".");
+      if (dotPosition < 0 || dotPosition == fileName.length()) return "";
+      else return fileName.substring(dotPosition + 1);
     }
   }
 
@@ -0,0 +1,182 @@
+package com.molnify.xlport.core;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.SheetConditionalFormatting;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * What a template is made of, and what an export into it will cost. The statistics are those of the
+ * processed template (see {@link TemplateManager#processTemplate}): sheets, named ranges, tables
+ * with their columns and formula columns, data validations, conditional formatting rules, styles,
+ * defined names and formula cells.
+ *
+ * <p>The estimate of an export counts the cells it will write and the formula cells it will
+ * evaluate, from the data of the request, a number of rows for every table, or the size of the
+ * payload. Memory and time follow from per cell costs, which are rough (measured on exports of
+ * generated templates with POI 5), and can be set with {@link #configure} to match a deployment.
+ *
+ * @author kirsten
+ */
+public class TemplateAnalysis {
+  /** Bytes of JSON per cell, for estimates from the size of the payload, e.g., "Col1":"abc", */
+  public static final int PAYLOAD_BYTES_PER_CELL = 20;
+
+  private static final String SHEET_TEMPLATE_NAME = "sheets";
+
+  private static long bytesPerCell = 1000, nanosPerCell = 15_000, nanosPerFormulaCell = 30_000;
+
+  /**
+   * Sets the costs that estimates are based on. Allows configuration as a library, e.g., from
+   * measurements of the exports of a deployment.
+   *
+   * @param bytesPerCell heap used by a cell of a workbook in memory
+   * @param nanosPerCell time to write a cell
+   * @param nanosPerFormulaCell time to evaluate a formula cell
+   */
+  public static synchronized void configure(
+      long bytesPerCell, long nanosPerCell, long nanosPerFormulaCell) {
+    TemplateAnalysis.bytesPerCell = bytesPerCell;
+    TemplateAnalysis.nanosPerCell = nanosPerCell;
+    TemplateAnalysis.nanosPerFormulaCell = nanosPerFormulaCell;
+  }
+
+  /** @return the statistics of a processed template */
+  public static JSONObject analyze(Template template) {
+    JSONArray sheets = new JSONArray(), tables = new JSONArray();
+    long cells = 0, formulaCells = 0, dataValidations = 0, conditionalFormattingRules = 0;
+    for (Sheet s : template.workbook) {
+      XSSFSheet sheet = (XSSFSheet) s;
+      long sheetCells = 0, sheetFormulaCells = 0, sheetRules = 0;
+      for (Row row : sheet)
+        for (Cell cell : row) {
+          sheetCells++;
+          if (cell.getCellType() == CellType.FORMULA) sheetFormulaCells++;
+        }
+      SheetConditionalFormatting scf = sheet.getSheetConditionalFormatting();
+      for (int i = 0; i < scf.getNumConditionalFormattings(); i++)
+        sheetRules += scf.getConditionalFormattingAt(i).getNumberOfRules();
+      int sheetValidations = sheet.getDataValidations().size();
+      sheets.put(
+          new JSONObject()
+              .put("name", sheet.getSheetName())
+              .put("cells", sheetCells)
+              .put("formulaCells", sheetFormulaCells)
+              .put("tables", sheet.getTables().size())
+              .put("dataValidations", sheetValidations)
+              .put("conditionalFormattingRules", sheetRules));
+      cells += sheetCells;
+      formulaCells += sheetFormulaCells;
+      dataValidations += sheetValidations;
+      conditionalFormattingRules += sheetRules;
+      for (XSSFTable table : sheet.getTables()) {
+        TemplateItem item = template.items.get(table.getName());
+        if (item == null) continue;
+        tables.put(
+            new JSONObject()
+                .put("name", table.getName())
+                .put("sheet", sheet.getSheetName())
+                .put("columns", item.getHeaders().size())
+                .put("formulaColumns", formulaColumns(item))
+                .put("dataRows", table.getDataRowCount()));
+      }
+    }
+    int namedRanges = 0;
+    for (TemplateItem item : template.items.values()) if (!item.isTable()) namedRanges++;
+    return new JSONObject()
+        .put("sheets", template.workbook.getNumberOfSheets())
+        .put("namedRanges", namedRanges)
+        .put("tables", tables)
+        .put("dataValidations", dataValidations)
+        .put("conditionalFormattingRules", conditionalFormattingRules)
+        .put("styles", template.workbook.getNumCellStyles())
+        .put("definedNames", template.workbook.getAllNames().size())
+        .put("cells", cells)
+        .put("formulaCells", formulaCells)
+        .put("sheetDetails", sheets);
+  }
+
+  /**
+   * Estimates an export into a template, from the first of these in the request: "data" (as for an
+   * export), "rowsPerTable" (the number of rows of every table, with all properties set), or
+   * "payloadBytes" (the size of the data in bytes)
+   *
+   * @param template the processed template
+   * @param request the request
+   * @return the cells written, formula cells evaluated, and estimated heap and time
+   */
+  public static JSONObject estimate(Template template, JSONObject request) {
+    long[] written = new long[2]; // Cells, and formula cells among them
+    if (request.optJSONObject("data") != null)
+      count(template, request.getJSONObject("data"), written);
+    else if (request.has("rowsPerTable")) {
+      long rows = request.getLong("rowsPerTable");
+      for (TemplateItem item : template.items.values()) count(item, rows, written);
+    } else if (request.has("payloadBytes"))
+      written[0] = request.getLong("payloadBytes") / PAYLOAD_BYTES_PER_CELL;
+    long templateCells = 0, templateFormulaCells = 0;
+    for (Sheet sheet : template.workbook)
+      for (Row row : sheet)
+        for (Cell cell : row) {
+          templateCells++;
+          if (cell.getCellType() == CellType.FORMULA) templateFormulaCells++;
+        }
+    long formulaCells = templateFormulaCells + written[1];
+    long bytes, nanos;
+    synchronized (TemplateAnalysis.class) {
+      bytes = (templateCells + written[0]) * bytesPerCell;
+      nanos = written[0] * nanosPerCell + formulaCells * nanosPerFormulaCell;
+    }
+    return new JSONObject()
+        .put("cells", written[0])
+        .put("formulaCells", formulaCells)
+        .put("memoryBytes", bytes)
+        .put("timeMs", nanos / 1_000_000);
+  }
+
+  /** Counts the cells that the data will write, as the exporter goes through it */
+  private static void count(Template template, JSONObject data, long[] written) {
+    for (String key : data.keySet()) {
+      Object value = data.get(key);
+      if (SHEET_TEMPLATE_NAME.equals(key) && value instanceof JSONArray) {
+        // Every new sheet has the items of its template sheet
+        for (Object spec : (JSONArray) value)
+          if (spec instanceof JSONObject && ((JSONObject) spec).optJSONObject("data") != null)
+            count(template, ((JSONObject) spec).getJSONObject("data"), written);
+      } else if (value instanceof JSONObject
+          && "sheet".equals(((JSONObject) value).optString("_xlport_metadata")))
+        count(template, (JSONObject) value, written);
+      else {
+        TemplateItem item = template.items.get(key);
+        if (item == null) continue;
+        if (!item.isTable()) count(item, 1, written);
+        else if (value instanceof JSONArray) count(item, ((JSONArray) value).length(), written);
+        else if (value instanceof JSONObject && ((JSONObject) value).optJSONArray("data") != null)
+          count(item, ((JSONObject) value).getJSONArray("data").length(), written);
+      }
+    }
+  }
+
+  /** Counts the cells of a property, or of a table with the number of rows */
+  private static void count(TemplateItem item, long rows, long[] written) {
+    if (!item.isTable()) {
+      written[0]++;
+      return;
+    }
+    written[0] += rows * item.getHeaders().size();
+    // The formulas of the first row are there already
+    written[1] += Math.max(0, rows - 1) * formulaColumns(item);
+  }
+
+  private static int formulaColumns(TemplateItem item) {
+    int formulas = 0;
+    for (String header : item.getHeaders())
+      if (item.getFormulaForHeader(header) != null) formulas++;
+    return formulas;
+  }
+}
@@ -0,0 +1,82 @@
+package com.molnify.xlport.core;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Templates as bytes in memory, so that loading a template (see {@link
+ * TemplateManager#getTemplate}) does not read it from its source, e.g., GCS, again. Each template
+ * is kept with its version (see {@link TemplateManager#getTemplateVersion}), and is only served
+ * while the version is unchanged. Templates without a version (Google Sheets) are not cached.
+ *
+ * <p>Templates are put here when they are warmed up (see {@link TemplateWarmup}), so the cache
+ * holds the templates that are known to be used, rather than every template ever requested. Local
+ * templates are replaced when their files change (see {@link TemplateWatcher}).
+ *
+ * @author kirsten
+ */
+public class TemplateCache {
+  private static final Logger log = Logger.getLogger(TemplateCache.class.getName());
+
+  private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  // The templates that have been cached, including those removed since, as they changed
+  private static final Set<String> tracked = ConcurrentHashMap.newKeySet();
+
+  private static class Entry {
+    final String version;
+    final byte[] bytes;
+
+    Entry(String version, byte[] bytes) {
+      this.version = version;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Caches a template
+   *
+   * @param id the template identifier
+   * @param version the version the bytes are of, read before the bytes were
+   * @param bytes the template as xlsx
+   */
+  public static void put(String id, String version, byte[] bytes) {
+    if (id == null || version == null || bytes == null) return;
+    entries.put(id, new Entry(version, bytes));
+    tracked.add(id);
+  }
+
+  /** @return the cached bytes of the template, or null if not cached or changed since */
+  public static byte[] get(String id) {
+    Entry entry = id == null ? null : entries.get(id);
+    if (entry == null) return null;
+    if (entry.version.equals(TemplateManager.getTemplateVersion(id))) return entry.bytes;
+    entries.remove(id, entry);
+    log.info("Template [" + id + "] has changed, removed from the template cache");
+    return null;
+  }
+
+  /**
+   * @return true if the template has been cached, even if it has been removed since (e.g., when a
+   *     request found that it had changed), so that it is cached again once reloaded
+   */
+  public static boolean isTracked(String id) {
+    return id != null && tracked.contains(id);
+  }
+
+  /** Removes a template, e.g., when it is known to have changed */
+  public static void invalidate(String id) {
+    if (id != null) entries.remove(id);
+  }
+
+  public static void clear() {
+    entries.clear();
+    tracked.clear();
+  }
+
+  /** @return the number of cached templates */
+  public static int size() {
+    return entries.size();
+  }
+}
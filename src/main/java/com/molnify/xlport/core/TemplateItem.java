@@ -1,6 +1,8 @@
 package com.molnify.xlport.core;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map.Entry;
 import java.util.Set;
 import org.apache.poi.ss.usermodel.Cell;
@@ -21,8 +23,11 @@ public class TemplateItem {
 
   public String name, reference, sheet;
   public int startingColumn = -1;
-  private final HashMap<String, int[]> tableHeaders = new HashMap<>();
-  private final HashMap<String, String> tableFormulas = new HashMap<>();
+  // In column order, so that headers are always iterated the same way
+  private final LinkedHashMap<String, int[]> tableHeaders = new LinkedHashMap<>();
+  private final LinkedHashMap<String, String> tableFormulas = new LinkedHashMap<>();
+  // What the formulas refer to, for the order in which keys are populated (see KeySchedule)
+  private final Set<String> formulaReferences = new LinkedHashSet<>();
 
   public TemplateItem(String name, String reference, String sheet) {
     if (name == null || reference == null)
@@ -67,6 +72,7 @@ public class TemplateItem {
     // formula = formula.replace("[]", "");
     // System.out.println("Saving formula: " + formula);
     tableFormulas.put(headerName, "=" + formula);
+    formulaReferences.addAll(KeySchedule.references(formula, sheet));
   }
 
   public Set<String> getHeaders() {
@@ -77,6 +83,14 @@ public class TemplateItem {
     return tableFormulas.get(headerName);
   }
 
+  /**
+   * @return the names (of named ranges and tables) and cell ranges (with their sheet) that the
+   *     formulas of the table refer to
+   */
+  public Set<String> getFormulaReferences() {
+    return Collections.unmodifiableSet(formulaReferences);
+  }
+
   public int[] getRowAndColumnForHeader(String headerName) {
     return tableHeaders.get(headerName);
   }
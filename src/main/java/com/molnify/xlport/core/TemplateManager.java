@@ -9,15 +9,23 @@ import com.google.api.services.storage.Storage.Objects.Get;
 import com.google.api.services.storage.StorageScopes;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.molnify.xlport.jfr.TemplateLoadEvent;
 import com.molnify.xlport.servlet.InitXlPort;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 import org.apache.poi.EncryptedDocumentException;
@@ -99,14 +107,39 @@ public class TemplateManager {
    * @return the loaded and processed template, or null if not found
    */
   public static Template getTemplate(String id) {
+    TemplateLoadEvent event = new TemplateLoadEvent();
+    event.begin();
     long t = System.currentTimeMillis();
     Template template = new Template();
     final String dummyTemplateName = "template1.xlsx";
 
-    if (id == null || dummyTemplateName.equals(id) || "dummy".equals(id) || id.contains("..")) {
+    // Warmed up templates are opened from memory, as long as they have not changed
+    byte[] cached = id == null || isGoogleSheet(id) ? null : TemplateCache.get(id);
+    if (cached != null) {
+      event.source = "cache";
+      try {
+        template = getTemplateFromBytes(cached, getOriginalFileName(id));
+        log.info(
+            "Template ["
+                + template.originalFileName
+                + "] opened from the template cache in "
+                + (System.currentTimeMillis() - t)
+                + " ms");
+        commit(event, id, template);
+        return template;
+      } catch (IOException e) {
+        log.warning("Failed to open cached template [" + id + "]: " + e.getMessage());
+        TemplateCache.invalidate(id);
+        template = new Template();
+      }
+    }
+
+    if (isDummy(id)) {
+      event.source = "local";
       template.workbook = (XSSFWorkbook) getWorkbookForFile("/WEB-INF/", dummyTemplateName);
       template.originalFileName = dummyTemplateName;
-    } else if (id.startsWith("http") && id.contains("google.com/")) {
+    } else if (isGoogleSheet(id)) {
+      event.source = "google-sheets";
       try {
         template.workbook = WorkbookFetcherGoogleSheets.fetchGoogleSheetsTemplate(id);
         template.originalFileName = WorkbookFetcherGoogleSheets.getIdFromUrl(id);
@@ -114,8 +147,12 @@ public class TemplateManager {
         log.warning("Failed to fetch Google Sheet: " + e.getMessage());
       }
     } else if (USE_GCS) {
+      event.source = "gcs";
       ByteArrayOutputStream baos = getWithFullIdFromGCS(id);
-      if (baos == null) return null;
+      if (baos == null) {
+        commit(event, id, null);
+        return null;
+      }
       ByteArrayInputStream inStream = new ByteArrayInputStream(baos.toByteArray());
       try {
         template.workbook = (XSSFWorkbook) WorkbookFactory.create(inStream);
@@ -124,6 +161,7 @@ public class TemplateManager {
       }
       template.originalFileName = id;
     } else {
+      event.source = "local";
       template.workbook = (XSSFWorkbook) getWorkbookForFile("/WEB-INF/templates/", id);
       template.originalFileName = id;
     }
@@ -135,9 +173,155 @@ public class TemplateManager {
             + (System.currentTimeMillis() - t)
             + " ms (cacheable, apart from first request)");
     processTemplate(template);
+    commit(event, id, template);
+    return template;
+  }
+
+  /**
+   * Reads a template as bytes, without parsing it, so that it can be opened many times (see {@link
+   * #getTemplateFromBytes}). Google Sheets are fetched, and written as xlsx.
+   *
+   * @param id the template identifier, as for {@link #getTemplate}
+   * @return the template as xlsx, or null if not found
+   */
+  public static byte[] getTemplateBytes(String id) {
+    try {
+      if (isDummy(id)) return getLocalBytes("/WEB-INF/", "template1.xlsx");
+      if (isGoogleSheet(id)) {
+        try (XSSFWorkbook workbook = WorkbookFetcherGoogleSheets.fetchGoogleSheetsTemplate(id)) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          workbook.write(out);
+          return out.toByteArray();
+        }
+      }
+      if (USE_GCS) {
+        ByteArrayOutputStream baos = getWithFullIdFromGCS(id);
+        return baos == null ? null : baos.toByteArray();
+      }
+      return getLocalBytes("/WEB-INF/templates/", id);
+    } catch (IOException e) {
+      log.warning("Failed to read template [" + id + "]: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static byte[] getLocalBytes(String dir, String fileName) throws IOException {
+    if (context == null) {
+      File file = new File("src/main/webapp" + dir + fileName);
+      return file.isFile() ? java.nio.file.Files.readAllBytes(file.toPath()) : null;
+    }
+    try (InputStream in = context.getResourceAsStream(dir + fileName)) {
+      if (in == null) return null;
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  /** @return the ids of the templates in /WEB-INF/templates, sorted */
+  public static List<String> getLocalTemplateIds() {
+    List<String> ids = new ArrayList<>();
+    if (context == null) {
+      File[] files = new File("src/main/webapp/WEB-INF/templates/").listFiles();
+      if (files != null) for (File file : files) if (file.isFile()) ids.add(file.getName());
+    } else {
+      Set<String> paths = context.getResourcePaths("/WEB-INF/templates/");
+      if (paths != null)
+        for (String path : paths)
+          if (!path.endsWith("/")) ids.add(path.substring(path.lastIndexOf('/') + 1));
+    }
+    ids.removeIf(id -> !id.toLowerCase(Locale.ROOT).endsWith(".xlsx"));
+    Collections.sort(ids);
+    return ids;
+  }
+
+  /** @return the directory of local templates, or null if not on disk (e.g., in a war) */
+  public static File getLocalTemplateDirectory() {
+    String path =
+        context == null
+            ? "src/main/webapp/WEB-INF/templates"
+            : context.getRealPath("/WEB-INF/templates");
+    if (path == null) return null;
+    File dir = new File(path);
+    return dir.isDirectory() ? dir : null;
+  }
+
+  /**
+   * Opens and processes a template from bytes, e.g., from {@link #getTemplateBytes}
+   *
+   * @param bytes the template as xlsx
+   * @param originalFileName the file name of the template
+   */
+  public static Template getTemplateFromBytes(byte[] bytes, String originalFileName)
+      throws IOException {
+    Template template = new Template();
+    template.workbook = new XSSFWorkbook(new ByteArrayInputStream(bytes));
+    template.originalFileName = originalFileName;
+    processTemplate(template);
     return template;
   }
 
+  private static boolean isDummy(String id) {
+    return id == null || "template1.xlsx".equals(id) || "dummy".equals(id) || id.contains("..");
+  }
+
+  private static boolean isGoogleSheet(String id) {
+    return id.startsWith("http") && id.contains("google.com/");
+  }
+
+  /**
+   * A version of a template, that changes whenever the template does, without loading it. For local
+   * templates this is the modification time and size of the file, for GCS the generation of the
+   * object.
+   *
+   * @param id the template identifier
+   * @return the version, or null if not known (e.g., Google Sheets), or the template does not exist
+   */
+  public static String getTemplateVersion(String id) {
+    try {
+      if (isDummy(id)) return getLocalVersion("/WEB-INF/", "template1.xlsx");
+      if (isGoogleSheet(id)) return null;
+      if (USE_GCS) {
+        if (!GCS_INITIALIZED) initGCS();
+        StorageObject object = storage.objects().get(GCS_BUCKET_NAME, GCS_PATH + id).execute();
+        return "gcs:" + object.getGeneration();
+      }
+      return getLocalVersion("/WEB-INF/templates/", id);
+    } catch (IOException e) {
+      log.info("No version of template [" + id + "]: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static String getLocalVersion(String dir, String fileName) throws IOException {
+    if (context == null) {
+      File file = new File("src/main/webapp" + dir + fileName);
+      return file.isFile() ? "file:" + file.lastModified() + ":" + file.length() : null;
+    }
+    URL url = context.getResource(dir + fileName);
+    if (url == null) return null;
+    URLConnection connection = url.openConnection();
+    try (InputStream ignored = connection.getInputStream()) {
+      return "file:" + connection.getLastModified() + ":" + connection.getContentLengthLong();
+    }
+  }
+
+  /** The file name of the template with the id, as in {@link Template#originalFileName} */
+  public static String getOriginalFileName(String id) {
+    if (isDummy(id)) return "template1.xlsx";
+    if (isGoogleSheet(id)) return WorkbookFetcherGoogleSheets.getIdFromUrl(id);
+    return id;
+  }
+
+  private static void commit(TemplateLoadEvent event, String id, Template template) {
+    if (!event.shouldCommit()) return;
+    event.templateId = id;
+    event.found = template != null && template.workbook != null;
+    if (event.found) {
+      event.sheets = template.workbook.getNumberOfSheets();
+      event.items = template.items.size();
+    }
+    event.commit();
+  }
+
   public static void processTemplate(Template template) {
     // Process all single names in the workbook, and all tables
     long ts = System.currentTimeMillis();
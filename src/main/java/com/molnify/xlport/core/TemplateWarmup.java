@@ -0,0 +1,143 @@
+package com.molnify.xlport.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Warms up templates at startup, so that the first requests after a deploy do not pay for loading
+ * templates, and for the export path being interpreted rather than compiled. Every template is read
+ * into the {@link TemplateCache}, processed, and exported into once with synthetic data, in
+ * parallel. Until all templates are warmed up, or XLPORT_WARMUP_TIMEOUT_MS (default 120000) has
+ * passed, {@link #isDone()} is false, and /ready reports that the service is not ready.
+ *
+ * <p>Warm-up is enabled by setting XLPORT_WARMUP to true. The templates are those listed in
+ * XLPORT_WARMUP_TEMPLATES (comma separated ids, e.g., of templates in GCS), or else all templates
+ * in /WEB-INF/templates.
+ *
+ * @author kirsten
+ */
+public class TemplateWarmup {
+  private static final Logger log = Logger.getLogger(TemplateWarmup.class.getName());
+
+  /** The number of rows of every table in the synthetic export */
+  public static final int ROWS = 10;
+
+  public static final long DEFAULT_TIMEOUT_MS = 120_000;
+
+  private static volatile CountDownLatch remaining = new CountDownLatch(0);
+  private static volatile long deadline = 0;
+
+  /** Starts warm-up as configured by the environment variables, if enabled */
+  public static void startFromEnvironment() {
+    String warmup = System.getenv("XLPORT_WARMUP");
+    if (warmup == null || !"TRUE".equalsIgnoreCase(warmup.trim())) return;
+    List<String> ids = new ArrayList<>();
+    String templates = System.getenv("XLPORT_WARMUP_TEMPLATES");
+    if (templates != null && !templates.trim().isEmpty()) {
+      for (String id : templates.split(",")) if (!id.trim().isEmpty()) ids.add(id.trim());
+    } else ids = TemplateManager.getLocalTemplateIds();
+    String timeout = System.getenv("XLPORT_WARMUP_TIMEOUT_MS");
+    start(
+        ids,
+        timeout != null && !timeout.trim().isEmpty()
+            ? Long.parseLong(timeout.trim())
+            : DEFAULT_TIMEOUT_MS);
+  }
+
+  /**
+   * Starts warming up templates in the background. Allows configuration as a library.
+   *
+   * @param ids the template identifiers
+   * @param timeoutMs how long {@link #isDone()} waits for warm-up, at most
+   */
+  public static synchronized void start(List<String> ids, long timeoutMs) {
+    CountDownLatch latch = new CountDownLatch(ids.size());
+    remaining = latch;
+    deadline = System.currentTimeMillis() + timeoutMs;
+    if (ids.isEmpty()) return;
+    log.info("Warming up " + ids.size() + " templates " + ids);
+    AtomicInteger count = new AtomicInteger();
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            Math.min(Runtime.getRuntime().availableProcessors(), ids.size()),
+            r -> {
+              Thread t = new Thread(r, "xlport-warmup-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    for (String id : ids)
+      pool.execute(
+          () -> {
+            try {
+              warmUp(id);
+            } catch (IOException | RuntimeException e) {
+              log.warning("Failed to warm up template [" + id + "]: " + e.getMessage());
+            } finally {
+              latch.countDown();
+            }
+          });
+    pool.shutdown();
+  }
+
+  /** @return true once all templates are warmed up, or the timeout has passed */
+  public static boolean isDone() {
+    return remaining.getCount() == 0 || System.currentTimeMillis() >= deadline;
+  }
+
+  /** @return true if all templates were warmed up within the time */
+  public static boolean await(long timeoutMs) throws InterruptedException {
+    return remaining.await(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** @return true if the template was found and warmed up */
+  static boolean warmUp(String id) throws IOException {
+    long t = System.currentTimeMillis();
+    // The version first, so that a template that changes while it is read is read again later
+    String version = TemplateManager.getTemplateVersion(id);
+    byte[] bytes = TemplateManager.getTemplateBytes(id);
+    if (bytes == null) {
+      log.warning("Template [" + id + "] could not be found, not warmed up");
+      return false;
+    }
+    TemplateCache.put(id, version, bytes);
+    try (Template template =
+        TemplateManager.getTemplateFromBytes(bytes, TemplateManager.getOriginalFileName(id))) {
+      Exporter.exportToExcel(syntheticData(template), template, new JSONArray(), true);
+      template.workbook.write(new ByteArrayOutputStream());
+    }
+    log.info("Template [" + id + "] warmed up in " + (System.currentTimeMillis() - t) + " ms");
+    return true;
+  }
+
+  /** @return data for every property and table of the template, numbers and text alternating */
+  static JSONObject syntheticData(Template template) {
+    JSONObject data = new JSONObject();
+    for (TemplateItem item : template.items.values()) {
+      if (!item.isTable()) {
+        data.put(item.name, "Warm-up");
+        continue;
+      }
+      JSONArray rows = new JSONArray();
+      for (int r = 0; r < ROWS; r++) {
+        JSONObject row = new JSONObject();
+        int c = 0;
+        for (String header : item.getHeaders())
+          if (item.getFormulaForHeader(header) == null)
+            row.put(header, c++ % 2 == 0 ? (Object) (r + 1) : "Warm-up " + (r + 1));
+        rows.put(row);
+      }
+      data.put(item.name, rows);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,149 @@
+package com.molnify.xlport.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Reloads local templates in the {@link TemplateCache} when their files change, so that a changed
+ * template is used without a restart, and without the first export after the change reading it. The
+ * directory of local templates is watched by a {@link WatchService}, and a template that is cached
+ * is read and processed again in the background, then swapped into the cache in one step. Exports
+ * that have already opened the template finish with the old version, later ones get the new one.
+ * Changes are collected until the directory has been quiet for half a second, as a file is usually
+ * written in several steps.
+ *
+ * <p>Enabled by setting XLPORT_WATCH_TEMPLATES to true (default: true if XLPORT_WARMUP is, i.e.,
+ * when templates are cached), for templates on disk only.
+ *
+ * @author kirsten
+ */
+public class TemplateWatcher {
+  private static final Logger log = Logger.getLogger(TemplateWatcher.class.getName());
+
+  private static final long QUIET_MS = 500;
+
+  private static WatchService watcher = null;
+
+  /** Starts watching as configured by the environment variables, if enabled */
+  public static void startFromEnvironment() {
+    String watch = System.getenv("XLPORT_WATCH_TEMPLATES");
+    if (watch == null || watch.trim().isEmpty()) watch = System.getenv("XLPORT_WARMUP");
+    if (watch == null || !"TRUE".equalsIgnoreCase(watch.trim())) return;
+    File dir = TemplateManager.getLocalTemplateDirectory();
+    if (dir == null) {
+      log.info("Templates are not in a directory on disk, changes to them are not watched");
+      return;
+    }
+    try {
+      start(dir.toPath());
+    } catch (IOException e) {
+      log.warning("Failed to watch templates in " + dir + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Starts watching a directory of templates, a file in which has the id of its name. Allows
+   * configuration as a library.
+   *
+   * @return false if already watching
+   */
+  public static synchronized boolean start(Path dir) throws IOException {
+    if (watcher != null) return false;
+    WatchService service = FileSystems.getDefault().newWatchService();
+    dir.register(
+        service,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+    watcher = service;
+    Thread t = new Thread(() -> watch(service), "xlport-template-watcher");
+    t.setDaemon(true);
+    t.start();
+    log.info("Watching templates in " + dir + " for changes");
+    return true;
+  }
+
+  public static synchronized void stop() {
+    if (watcher == null) return;
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      log.warning("Failed to stop watching templates: " + e.getMessage());
+    }
+    watcher = null;
+  }
+
+  private static void watch(WatchService service) {
+    try {
+      while (true) {
+        Set<String> changed = new TreeSet<>();
+        WatchKey key = service.take();
+        // Collect changes until the files have been written
+        while (key != null) {
+          for (WatchEvent<?> event : key.pollEvents())
+            if (event.context() instanceof Path)
+              changed.add(((Path) event.context()).getFileName().toString());
+          key.reset();
+          key = service.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+        }
+        for (String id : changed) {
+          try {
+            reload(id);
+          } catch (RuntimeException e) {
+            log.warning("Failed to reload template [" + id + "]: " + e.getMessage());
+          }
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      log.info("Stopped watching templates");
+    }
+  }
+
+  /**
+   * Reads and processes a cached template again, and swaps it into the cache. Templates that have
+   * never been cached are left to be read when requested.
+   *
+   * @return true if the template was reloaded
+   */
+  static boolean reload(String id) {
+    // Also if a request found the change first, and removed the template from the cache
+    if (!TemplateCache.isTracked(id)) return false;
+    long t = System.currentTimeMillis();
+    // The version first, so that a template that changes while it is read is read again later
+    String version = TemplateManager.getTemplateVersion(id);
+    byte[] bytes = TemplateManager.getTemplateBytes(id);
+    if (version == null || bytes == null) {
+      log.info("Template [" + id + "] was removed, removed from the template cache");
+      TemplateCache.invalidate(id);
+      return false;
+    }
+    // Only swapped in once it is known to process, a half written file is not
+    try (Template template =
+        TemplateManager.getTemplateFromBytes(bytes, TemplateManager.getOriginalFileName(id))) {
+      log.info(
+          "Template ["
+              + id
+              + "] changed, with "
+              + template.items.size()
+              + " named ranges and tables");
+    } catch (IOException | RuntimeException e) {
+      log.warning("Changed template [" + id + "] could not be processed: " + e.getMessage());
+      TemplateCache.invalidate(id);
+      return false;
+    }
+    TemplateCache.put(id, version, bytes);
+    log.info("Template [" + id + "] reloaded in " + (System.currentTimeMillis() - t) + " ms");
+    return true;
+  }
+}
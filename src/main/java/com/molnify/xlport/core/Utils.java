@@ -1,7 +1,10 @@
 package com.molnify.xlport.core;
 
+import com.molnify.xlport.jfr.WorkbookWriteEvent;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,9 +13,14 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
@@ -74,8 +82,9 @@ public class Utils {
         sheetScoped.put(key, data.get(key));
       }
     }
-    log.fine("Sheet spec: " + sheetSpec);
-    log.fine("Root: " + root);
+    // Suppliers, as the root grows with every sheet and is expensive to write out
+    log.fine(() -> "Sheet spec: " + sheetSpec);
+    log.fine(() -> "Root: " + root);
   }
 
   // Used to create a new unique name for an item (named range or tablename)
@@ -186,9 +195,12 @@ public class Utils {
 
   public static void copyColumn(
       String fromSheetName, int fromColumn, XSSFSheet toSheet, int toColumn) {
-    XSSFSheet fromSheet = toSheet.getWorkbook().getSheet(fromSheetName);
+    copyColumn(toSheet.getWorkbook().getSheet(fromSheetName), fromColumn, toSheet, toColumn);
+  }
+
+  public static void copyColumn(
+      XSSFSheet fromSheet, int fromColumn, XSSFSheet toSheet, int toColumn) {
     Map<Integer, XSSFCellStyle> styleMap = new HashMap<>();
-    JSONArray potentialErrors = new JSONArray();
     // Make space for the column that will be copied
     int lastFilledColumn = getLastFilledColumn(toSheet);
     log.info("Copy column " + toColumn + " with last filled " + lastFilledColumn);
@@ -199,13 +211,165 @@ public class Utils {
       if (r == null) continue;
       XSSFCell c = r.getCell(fromColumn);
       if (c == null) continue;
-      XSSFCell toCell =
-          Exporter.findAndCreateCellIfRequired(
-              toSheet.getWorkbook(), toSheet.getSheetName(), i, toColumn + 1, potentialErrors);
+      XSSFCell toCell = Exporter.findAndCreateCellIfRequired(toSheet, i, toColumn + 1);
       copyCell(c, toCell, styleMap);
     }
   }
 
+  /**
+   * Replaces columns of a sheet with copies of columns of another (or the same) sheet, in one pass
+   * over the rows. This is what {@link #removeColumn} and {@link #copyColumn} do one column at a
+   * time, without going through every row (and shifting the rest of the sheet) per column.
+   *
+   * <p>Cells are copied with their style, value and formula (as is, like {@link #copyCell}), in
+   * every row of the from sheet. Columns after the replaced ones are shifted once, with their
+   * formulas, merged regions, conditional formatting and names, by the difference in the number of
+   * columns. Merged regions in the replaced columns are copied along with the columns they span.
+   *
+   * @param fromSheet the sheet to copy columns from, may be toSheet
+   * @param fromColumns for each new column, the index of the column in fromSheet to copy
+   * @param toSheet the sheet whose columns are replaced
+   * @param firstColumn the index of the first column to replace
+   * @param columnCount the number of columns to replace
+   */
+  public static void remapColumns(
+      XSSFSheet fromSheet, int[] fromColumns, XSSFSheet toSheet, int firstColumn, int columnCount) {
+    // Everything is read before anything is written, as the columns may be copied from the columns
+    // being replaced
+    Map<Integer, CellCopy[]> rows = new HashMap<>();
+    for (Row r : fromSheet) {
+      CellCopy[] cells = new CellCopy[fromColumns.length];
+      for (int j = 0; j < fromColumns.length; j++) {
+        XSSFCell c = (XSSFCell) r.getCell(fromColumns[j]);
+        if (c != null) cells[j] = new CellCopy(c);
+      }
+      rows.put(r.getRowNum(), cells);
+    }
+    List<CellRangeAddress> mergedRegions = fromSheet.getMergedRegions();
+    int lastColumn = firstColumn + columnCount - 1;
+    // Make (or take) space for the new columns, by shifting the columns after the replaced ones,
+    // including merged regions that go past the last filled column
+    int lastShiftedColumn = getLastFilledColumn(toSheet) - 1;
+    List<Integer> mergedToRemove = new ArrayList<>();
+    for (int i = 0; i < toSheet.getNumMergedRegions(); i++) {
+      CellRangeAddress region = toSheet.getMergedRegion(i);
+      if (region.getLastColumn() >= firstColumn && region.getFirstColumn() <= lastColumn)
+        mergedToRemove.add(i);
+      else lastShiftedColumn = Math.max(lastShiftedColumn, region.getLastColumn());
+    }
+    toSheet.removeMergedRegions(mergedToRemove);
+    int shift = fromColumns.length - columnCount;
+    boolean shifted = shift != 0 && lastColumn < lastShiftedColumn;
+    if (shifted) toSheet.shiftColumns(lastColumn + 1, lastShiftedColumn, shift);
+
+    // Without a shift, the replaced columns past the new ones are not taken by the columns after
+    int lastCleared = firstColumn + fromColumns.length - 1;
+    if (!shifted) lastCleared = Math.max(lastCleared, lastColumn);
+    Map<Integer, XSSFCellStyle> styleMap = new HashMap<>();
+    for (Row r : toSheet)
+      for (int col = firstColumn; col <= lastCleared; col++) {
+        Cell c = r.getCell(col);
+        if (c != null) r.removeCell(c);
+      }
+    for (Map.Entry<Integer, CellCopy[]> e : rows.entrySet()) {
+      CellCopy[] cells = e.getValue();
+      for (int j = 0; j < cells.length; j++)
+        if (cells[j] != null)
+          cells[j].to(
+              Exporter.findAndCreateCellIfRequired(toSheet, e.getKey(), firstColumn + j), styleMap);
+    }
+
+    // A merged region is copied if all the columns it spans are copied next to each other
+    for (CellRangeAddress region : mergedRegions)
+      for (int j = 0; j < fromColumns.length; j++) {
+        if (fromColumns[j] != region.getFirstColumn()) continue;
+        int width = region.getLastColumn() - region.getFirstColumn();
+        boolean spanned = j + width < fromColumns.length;
+        for (int k = 1; spanned && k <= width; k++)
+          spanned = fromColumns[j + k] == region.getFirstColumn() + k;
+        if (spanned)
+          toSheet.addMergedRegionUnsafe(
+              new CellRangeAddress(
+                  region.getFirstRow(),
+                  region.getLastRow(),
+                  firstColumn + j,
+                  firstColumn + j + width));
+      }
+  }
+
+  /** The style and value (or formula) of a cell, to write into another cell */
+  private static class CellCopy {
+    final Workbook workbook;
+    final XSSFCellStyle style;
+    final CellType type;
+    final Object value;
+
+    CellCopy(XSSFCell c) {
+      workbook = c.getSheet().getWorkbook();
+      style = c.getCellStyle();
+      type = c.getCellType();
+      switch (type) {
+        case STRING:
+          value = c.getStringCellValue();
+          break;
+        case NUMERIC:
+          value = c.getNumericCellValue();
+          break;
+        case BOOLEAN:
+          value = c.getBooleanCellValue();
+          break;
+        case ERROR:
+          value = c.getErrorCellValue();
+          break;
+        case FORMULA:
+          value = c.getCellFormula();
+          break;
+        default:
+          value = null;
+      }
+    }
+
+    /** @param styleMap styles already cloned into c's workbook, or null to not copy style */
+    void to(XSSFCell c, Map<Integer, XSSFCellStyle> styleMap) {
+      if (styleMap != null) {
+        if (workbook == c.getSheet().getWorkbook()) {
+          c.setCellStyle(style);
+        } else {
+          int stHashCode = style.hashCode();
+          XSSFCellStyle newCellStyle = styleMap.get(stHashCode);
+          if (newCellStyle == null) {
+            newCellStyle = c.getSheet().getWorkbook().createCellStyle();
+            newCellStyle.cloneStyleFrom(style);
+            styleMap.put(stHashCode, newCellStyle);
+          }
+          c.setCellStyle(newCellStyle);
+        }
+      }
+      switch (type) {
+        case STRING:
+          c.setCellValue((String) value);
+          break;
+        case NUMERIC:
+          c.setCellValue((Double) value);
+          break;
+        case BLANK:
+          c.setCellType(CellType.BLANK);
+          break;
+        case BOOLEAN:
+          c.setCellValue((Boolean) value);
+          break;
+        case ERROR:
+          c.setCellErrorValue((Byte) value);
+          break;
+        case FORMULA:
+          c.setCellFormula((String) value);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
   public static void removeColumn(Sheet sheet, int column) {
     int lastFilledColumn = getLastFilledColumn(sheet);
     log.info("Shifting " + column + " last filled + " + lastFilledColumn);
@@ -242,42 +406,7 @@ public class Utils {
 
   public static void copyCell(
       XSSFCell oldCell, XSSFCell newCell, Map<Integer, XSSFCellStyle> styleMap) {
-    if (styleMap != null) {
-      if (oldCell.getSheet().getWorkbook() == newCell.getSheet().getWorkbook()) {
-        newCell.setCellStyle(oldCell.getCellStyle());
-      } else {
-        int stHashCode = oldCell.getCellStyle().hashCode();
-        XSSFCellStyle newCellStyle = styleMap.get(stHashCode);
-        if (newCellStyle == null) {
-          newCellStyle = newCell.getSheet().getWorkbook().createCellStyle();
-          newCellStyle.cloneStyleFrom(oldCell.getCellStyle());
-          styleMap.put(stHashCode, newCellStyle);
-        }
-        newCell.setCellStyle(newCellStyle);
-      }
-    }
-    switch (oldCell.getCellType()) {
-      case STRING:
-        newCell.setCellValue(oldCell.getStringCellValue());
-        break;
-      case NUMERIC:
-        newCell.setCellValue(oldCell.getNumericCellValue());
-        break;
-      case BLANK:
-        newCell.setCellType(CellType.BLANK);
-        break;
-      case BOOLEAN:
-        newCell.setCellValue(oldCell.getBooleanCellValue());
-        break;
-      case ERROR:
-        newCell.setCellErrorValue(oldCell.getErrorCellValue());
-        break;
-      case FORMULA:
-        newCell.setCellFormula(oldCell.getCellFormula());
-        break;
-      default:
-        break;
-    }
+    new CellCopy(oldCell).to(newCell, styleMap);
   }
 
   public static List<XSSFTable> getAllTables(XSSFWorkbook workbook) {
@@ -307,7 +436,7 @@ public class Utils {
       if (exists) log.warning("Overwrote " + out.getCanonicalPath());
     }
     try (FileOutputStream stream = new FileOutputStream(out)) {
-      template.workbook.write(stream);
+      writeWorkbook(template.workbook, stream);
       stream.flush();
     } catch (IOException e) {
       throw e;
@@ -316,6 +445,119 @@ public class Utils {
     }
   }
 
+  /**
+   * Writes the workbook to the stream (without closing it), recorded as a {@link
+   * WorkbookWriteEvent} when Flight Recorder is running
+   */
+  public static void writeWorkbook(Workbook workbook, OutputStream out) throws IOException {
+    WorkbookWriteEvent event = new WorkbookWriteEvent();
+    if (!event.isEnabled()) {
+      workbook.write(out);
+      return;
+    }
+    event.begin();
+    CountingOutputStream counter = new CountingOutputStream(out);
+    workbook.write(counter);
+    event.sheets = workbook.getNumberOfSheets();
+    event.bytes = counter.count;
+    event.commit();
+  }
+
+  // 1980-01-01 00:00, the earliest date a zip file can hold
+  private static final short ZIP_TIME = 0, ZIP_DATE = (1 << 5) | 1;
+
+  /** True if the file starts like a zip file (e.g., xlsx) */
+  public static boolean isZip(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      byte[] magic = new byte[4];
+      return in.read(magic) == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3
+          && magic[3] == 4;
+    }
+  }
+
+  /**
+   * Writes the workbook to the stream (without closing it), byte for byte the same every time the
+   * same workbook is written. The workbook is written to memory first, to fix the zip metadata
+   * (see {@link #normalizeZip(ByteBuffer)}), so this takes more memory than {@link #writeWorkbook}.
+   */
+  public static void writeWorkbookDeterministic(Workbook workbook, OutputStream out)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeWorkbook(workbook, bytes);
+    byte[] zip = bytes.toByteArray();
+    normalizeZip(ByteBuffer.wrap(zip));
+    out.write(zip);
+  }
+
+  /** Fixes the zip metadata of a file, in place (see {@link #normalizeZip(ByteBuffer)}) */
+  public static void normalizeZip(Path path) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      normalizeZip(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage() + ": " + path, e);
+    }
+  }
+
+  /**
+   * Sets the modification time of all entries of a zip file (e.g., a written workbook) to a fixed
+   * value, in place. POI stamps each entry with the time of writing, so that otherwise identical
+   * workbooks differ (the entries are already written in a fixed order). Only the headers are
+   * rewritten, the entries are not recompressed.
+   *
+   * @throws IllegalArgumentException if the buffer does not hold a zip file
+   */
+  public static void normalizeZip(ByteBuffer zip) {
+    zip.order(ByteOrder.LITTLE_ENDIAN);
+    // The end of central directory record is last, followed by a comment of up to 64 kB
+    int eocd = -1;
+    for (int pos = zip.limit() - 22; pos >= Math.max(0, zip.limit() - 22 - 65535); pos--)
+      if (zip.getInt(pos) == 0x06054b50) {
+        eocd = pos;
+        break;
+      }
+    if (eocd < 0) throw new IllegalArgumentException("Not a zip file");
+    int count = zip.getShort(eocd + 10) & 0xffff;
+    long offset = zip.getInt(eocd + 16) & 0xffffffffL;
+    if (offset == 0xffffffffL) {
+      log.warning("Not normalizing zip64 file");
+      return;
+    }
+    int pos = (int) offset;
+    for (int i = 0; i < count; i++) {
+      if (zip.getInt(pos) != 0x02014b50) throw new IllegalArgumentException("Corrupt zip file");
+      zip.putShort(pos + 12, ZIP_TIME).putShort(pos + 14, ZIP_DATE);
+      int local = zip.getInt(pos + 42);
+      if (zip.getInt(local) != 0x04034b50) throw new IllegalArgumentException("Corrupt zip file");
+      zip.putShort(local + 10, ZIP_TIME).putShort(local + 12, ZIP_DATE);
+      int nameLength = zip.getShort(pos + 28) & 0xffff,
+          extraLength = zip.getShort(pos + 30) & 0xffff,
+          commentLength = zip.getShort(pos + 32) & 0xffff;
+      pos += 46 + nameLength + extraLength + commentLength;
+    }
+  }
+
+  /** Keeps track of the number of bytes passed through to the underlying stream */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
   public static List<String> diffTwoWorkbooksAndReturnErrors(Workbook expected, Workbook actual) {
     List<String> errors = new ArrayList<>();
     if (expected.getNumberOfSheets() != actual.getNumberOfSheets())
@@ -495,17 +737,6 @@ public class Utils {
     }
   }
 
-  public static File saveContentsOfUrlAsTmpFile(String urlString) throws IOException {
-    log.info("Will download data from [" + urlString + "]");
-    File tmp = File.createTempFile("exported-pdf-" + new Random().nextInt(1000000), ".pdf");
-    try (FileOutputStream out = new FileOutputStream(tmp)) {
-      Utils.copyFromInputToOutput(getInputStreamFromURL(urlString), out);
-    } catch (IOException e) {
-      throw e;
-    }
-    return tmp;
-  }
-
   // Used for testing only
   public static InputStream getInputStreamFromURL(String urlString) throws IOException {
     URL url = new URL(urlString);
@@ -0,0 +1,218 @@
+package com.molnify.xlport.core;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Prepares the values of table rows (see {@link PreparedValue}) on a pool of XLPORT_PREPARE_THREADS
+ * threads (default one per core), while the exporting thread writes them into the workbook, which
+ * is not thread safe. Rows are prepared in batches of {@link #BATCH_ROWS}, and at most a few
+ * batches per thread are prepared ahead of the writer, so that memory stays bounded whatever the
+ * number of rows. Tables of a single batch, or when there is only one thread, are prepared by the
+ * writer as it goes.
+ *
+ * @author kirsten
+ */
+public class ValuePipeline {
+  /** Rows per batch, prepared by one thread */
+  public static final int BATCH_ROWS = 1000;
+
+  /** Rows looked at to tell whether the strings of a column are mostly distinct */
+  public static final int ADAPTIVE_ROWS = 1000;
+
+  // Batches in flight per thread, keeping threads busy while the writer takes batches in order
+  private static final int BATCHES_PER_THREAD = 2;
+
+  private static int threads = threads();
+  private static ExecutorService pool = null;
+
+  private static int threads() {
+    String threads = System.getenv("XLPORT_PREPARE_THREADS");
+    if (threads != null && !threads.trim().isEmpty()) return Integer.parseInt(threads.trim());
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Sets the number of threads that prepare values. Allows configuration as a library, and
+   * overrides the environment variable.
+   *
+   * @param threads the number of threads, or 1 to prepare values on the exporting thread
+   */
+  public static synchronized void configure(int threads) {
+    if (pool != null) pool.shutdown();
+    pool = null;
+    ValuePipeline.threads = Math.max(1, threads);
+  }
+
+  /** @return the number of threads that prepare values */
+  static synchronized int getThreads() {
+    return threads;
+  }
+
+  /** Created on first use, as small exports never need it */
+  private static synchronized ExecutorService pool() {
+    if (pool == null) {
+      AtomicInteger count = new AtomicInteger();
+      pool =
+          Executors.newFixedThreadPool(
+              threads,
+              r -> {
+                Thread t = new Thread(r, "xlport-prepare-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return pool;
+  }
+
+  /**
+   * The prepared rows of a table, in order. For each row, there is a value for each header (the
+   * formula of the column, if the row has no value for it), or null if the row is not a JSON
+   * object. Close it when done, so that batches no longer needed are not prepared.
+   *
+   * @param array the rows
+   * @param headers the headers of the table
+   * @param item the table, for the formulas of its columns
+   * @param strings how the strings of the table are written
+   */
+  static Rows prepare(
+      JSONArray array, List<String> headers, TemplateItem item, ExportContext.Strings strings) {
+    PreparedValue[] formulas = new PreparedValue[headers.size()];
+    for (int j = 0; j < formulas.length; j++)
+      formulas[j] = PreparedValue.of(item.getFormulaForHeader(headers.get(j)));
+    boolean[] inline = inlineColumns(array, headers, strings);
+    ExecutorService executor;
+    int inFlight;
+    synchronized (ValuePipeline.class) {
+      executor = threads > 1 && array.length() > BATCH_ROWS ? pool() : null;
+      inFlight = threads * BATCHES_PER_THREAD;
+    }
+    return new Rows(array, headers, formulas, inline, executor, inFlight);
+  }
+
+  /** @return whether the strings of each column are written inline */
+  static boolean[] inlineColumns(
+      JSONArray array, List<String> headers, ExportContext.Strings strings) {
+    boolean[] inline = new boolean[headers.size()];
+    if (strings == ExportContext.Strings.INLINE) Arrays.fill(inline, true);
+    if (strings != ExportContext.Strings.ADAPTIVE) return inline;
+    // Inline where more than half of the strings are distinct, as sharing them saves little
+    int rows = Math.min(array.length(), ADAPTIVE_ROWS);
+    for (int j = 0; j < inline.length; j++) {
+      Set<String> distinct = new HashSet<>();
+      int count = 0;
+      for (int i = 0; i < rows; i++) {
+        JSONObject row = array.optJSONObject(i);
+        Object value = row == null ? null : row.opt(headers.get(j));
+        if (value instanceof JSONObject) value = ((JSONObject) value).opt("data");
+        if (!(value instanceof String)) continue;
+        count++;
+        distinct.add((String) value);
+      }
+      inline[j] = count > 0 && distinct.size() * 2 > count;
+    }
+    return inline;
+  }
+
+  private static PreparedValue[] prepareRow(
+      JSONArray array, int i, List<String> headers, PreparedValue[] formulas, boolean[] inline) {
+    Object row = array.opt(i);
+    if (!(row instanceof JSONObject)) return null;
+    JSONObject o = (JSONObject) row;
+    PreparedValue[] values = new PreparedValue[formulas.length];
+    for (int j = 0; j < values.length; j++) {
+      String header = headers.get(j);
+      if (o.has(header))
+        // Unexpected treatment of null in the JSON
+        values[j] = PreparedValue.of(o.isNull(header) ? null : o.get(header));
+      else values[j] = formulas[j];
+      if (inline[j]) values[j] = values[j].inline();
+    }
+    return values;
+  }
+
+  /** The prepared rows of a table, see {@link #prepare} */
+  static class Rows implements Iterator<PreparedValue[]>, AutoCloseable {
+    private final JSONArray array;
+    private final List<String> headers;
+    private final PreparedValue[] formulas;
+    private final boolean[] inline;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<PreparedValue[][]>> inFlight = new ArrayDeque<>();
+    private int next = 0, submitted = 0;
+    private PreparedValue[][] batch = null;
+
+    private Rows(
+        JSONArray array,
+        List<String> headers,
+        PreparedValue[] formulas,
+        boolean[] inline,
+        ExecutorService executor,
+        int maxInFlight) {
+      this.array = array;
+      this.headers = headers;
+      this.formulas = formulas;
+      this.inline = inline;
+      this.executor = executor;
+      this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < array.length();
+    }
+
+    @Override
+    public PreparedValue[] next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      int i = next++;
+      if (executor == null) return prepareRow(array, i, headers, formulas, inline);
+      if (i % BATCH_ROWS == 0) batch = take();
+      return batch[i % BATCH_ROWS];
+    }
+
+    /** The next batch, once prepared, keeping the pool busy with the batches after it */
+    private PreparedValue[][] take() {
+      while (inFlight.size() < maxInFlight && submitted < array.length()) {
+        int from = submitted, to = Math.min(array.length(), from + BATCH_ROWS);
+        inFlight.add(
+            executor.submit(
+                () -> {
+                  PreparedValue[][] rows = new PreparedValue[to - from][];
+                  for (int i = from; i < to; i++)
+                    rows[i - from] = prepareRow(array, i, headers, formulas, inline);
+                  return rows;
+                }));
+        submitted = to;
+      }
+      try {
+        return inFlight.poll().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Export interrupted while preparing values");
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Could not prepare values", e.getCause());
+      }
+    }
+
+    @Override
+    public void close() {
+      for (Future<PreparedValue[][]> f : inFlight) f.cancel(true);
+      inFlight.clear();
+    }
+  }
+}
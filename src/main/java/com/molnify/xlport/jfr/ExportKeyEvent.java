@@ -0,0 +1,29 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Emitted for every key in an export request, i.e., a single named range or a table */
+@Name("com.molnify.xlport.ExportKey")
+@Label("Export Key")
+@Category({"xlPort", "Export"})
+@Description("Population of a single named range or table")
+public class ExportKeyEvent extends jdk.jfr.Event {
+  @Label("Key")
+  public String key;
+
+  @Label("Sheet")
+  @Description("Set when the key is sheet scoped")
+  public String sheet;
+
+  @Label("Table")
+  public boolean table;
+
+  @Label("Rows")
+  public int rows;
+
+  @Label("Cells")
+  public long cells;
+}
@@ -0,0 +1,16 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Emitted around the evaluation of all formulas in a workbook after export */
+@Name("com.molnify.xlport.FormulaEvaluation")
+@Label("Formula Evaluation")
+@Category({"xlPort", "Export"})
+@Description("Evaluation of all formulas in the workbook")
+public class FormulaEvaluationEvent extends jdk.jfr.Event {
+  @Label("Sheets")
+  public int sheets;
+}
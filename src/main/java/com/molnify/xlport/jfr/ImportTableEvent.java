@@ -0,0 +1,26 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Emitted around {@code Importer.getExcelTableAsArrayOfJSONObjects} */
+@Name("com.molnify.xlport.ImportTable")
+@Label("Import Table")
+@Category({"xlPort", "Import"})
+@Description("Extraction of a table as JSON")
+public class ImportTableEvent extends jdk.jfr.Event {
+  @Label("Table")
+  public String table;
+
+  @Label("Evaluate")
+  @Description("Whether formulas were evaluated while reading")
+  public boolean evaluate;
+
+  @Label("Rows")
+  public int rows;
+
+  @Label("Cells")
+  public long cells;
+}
@@ -0,0 +1,19 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Emitted around {@code Exporter.processSheetTemplates}, i.e., creation of sheets from templates */
+@Name("com.molnify.xlport.SheetTemplates")
+@Label("Sheet Templates")
+@Category({"xlPort", "Export"})
+@Description("Creation of new sheets from template sheets")
+public class SheetTemplatesEvent extends jdk.jfr.Event {
+  @Label("Template Sheets")
+  public int templateSheets;
+
+  @Label("Sheets Created")
+  public int sheetsCreated;
+}
@@ -0,0 +1,33 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emitted around {@code TemplateManager.getTemplate}, covering both fetching the workbook and
+ * processing its named ranges and tables.
+ */
+@Name("com.molnify.xlport.TemplateLoad")
+@Label("Template Load")
+@Category({"xlPort", "Template"})
+@Description("Loading and processing of an Excel template")
+public class TemplateLoadEvent extends jdk.jfr.Event {
+  @Label("Template Id")
+  public String templateId;
+
+  @Label("Source")
+  @Description("Where the template was read from (local, gcs, google-sheets or cache)")
+  public String source;
+
+  @Label("Sheets")
+  public int sheets;
+
+  @Label("Template Items")
+  @Description("Number of named ranges and tables found in the template")
+  public int items;
+
+  @Label("Found")
+  public boolean found;
+}
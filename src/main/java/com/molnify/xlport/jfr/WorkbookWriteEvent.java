@@ -0,0 +1,21 @@
+package com.molnify.xlport.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Emitted around the serialization of a workbook to a stream */
+@Name("com.molnify.xlport.WorkbookWrite")
+@Label("Workbook Write")
+@Category({"xlPort", "Export"})
+@Description("Serialization of a workbook as xlsx")
+public class WorkbookWriteEvent extends jdk.jfr.Event {
+  @Label("Sheets")
+  public int sheets;
+
+  @Label("Bytes Written")
+  @DataAmount
+  public long bytes;
+}
@@ -7,6 +7,9 @@ package com.molnify.xlport.pdf;
  * @author kirsten
  */
 public class ExportFormat {
+  /** Where Google serves exports of spreadsheets, the document id is appended to this */
+  public static final String GOOGLE_EXPORT_URL = "https://docs.google.com/spreadsheets/d/";
+
   // Flags taken from https://gist.github.com/Spencer-Easton/78f9867a691e549c9c70
   private int sheetId = -1;
   private int startRow = -1, endRow = -1, startColumn = -1, endColumn = -1;
@@ -29,8 +32,13 @@ public class ExportFormat {
   }
 
   public String getExportURLForId(String documentId) {
+    return getExportURLForId(GOOGLE_EXPORT_URL, documentId);
+  }
+
+  /** The export URL of a document, served from a base URL other than Google's */
+  public String getExportURLForId(String baseUrl, String documentId) {
     StringBuffer urlString = new StringBuffer();
-    urlString.append("https://docs.google.com/spreadsheets/d/");
+    urlString.append(baseUrl);
     urlString.append(documentId);
     urlString.append("/export?");
     urlString.append("format=").append(format).append("&");
@@ -66,8 +74,8 @@ public class ExportFormat {
       urlString.append("ir=").append(false).append("&");
       urlString.append("ic=").append(false).append("&");
       urlString.append("r1=").append(startRow).append("&");
-      urlString.append("c1=").append(endRow).append("&");
-      urlString.append("r2=").append(startColumn).append("&");
+      urlString.append("c1=").append(startColumn).append("&");
+      urlString.append("r2=").append(endRow).append("&");
       urlString.append("c2=").append(endColumn).append("&");
     }
 
@@ -121,9 +129,7 @@ public class ExportFormat {
   }
 
   public ExportFormat setExportRange(int startRow, int endRow, int startColumn, int endColumn) {
-    if (startRow <= endRow
-        || startColumn <= endColumn
-        || startRow * endRow * startColumn * endColumn == 0)
+    if (startRow > endRow || startColumn > endColumn || startRow <= 0 || startColumn <= 0)
       throw new IllegalArgumentException("Illegal export range");
     namedRange = null;
     this.startRow = startRow;
@@ -178,6 +184,97 @@ public class ExportFormat {
     return this;
   }
 
+  public int getSheetId() {
+    return sheetId;
+  }
+
+  /** The named range to export, or null */
+  public String getExportRangeName() {
+    return namedRange;
+  }
+
+  /** The (one based, inclusive) rows and columns to export, or -1 for all */
+  public int getStartRow() {
+    return startRow;
+  }
+
+  public int getEndRow() {
+    return endRow;
+  }
+
+  public int getStartColumn() {
+    return startColumn;
+  }
+
+  public int getEndColumn() {
+    return endColumn;
+  }
+
+  /** True if margins are set. Margins are in inches */
+  public boolean hasMargins() {
+    return marginTop >= 0;
+  }
+
+  public float getMarginTop() {
+    return marginTop;
+  }
+
+  public float getMarginBottom() {
+    return marginBottom;
+  }
+
+  public float getMarginLeft() {
+    return marginLeft;
+  }
+
+  public float getMarginRight() {
+    return marginRight;
+  }
+
+  public FormatEnum getFormat() {
+    return format;
+  }
+
+  public SizeEnum getSize() {
+    return size;
+  }
+
+  public AlignmentHorizontalEnum getAlignmentHorizontal() {
+    return alignmentHorizontal;
+  }
+
+  public AlignmentVerticalEnum getAlignmentVertical() {
+    return alignmentVertical;
+  }
+
+  public boolean isPortrait() {
+    return portrait;
+  }
+
+  public boolean isPrintTitle() {
+    return printTitle;
+  }
+
+  public boolean isRepeatRowHeaders() {
+    return repeatRowHeaders;
+  }
+
+  public boolean isShowPageNumbers() {
+    return showPageNumbers;
+  }
+
+  public boolean isShowGridLines() {
+    return showGridLines;
+  }
+
+  public boolean isPrintNotes() {
+    return printNotes;
+  }
+
+  public boolean isAttachment() {
+    return attachment;
+  }
+
   public enum AlignmentHorizontalEnum {
     LEFT,
     CENTER,
@@ -204,17 +301,25 @@ public class ExportFormat {
   }
 
   public enum SizeEnum {
-    LETTER,
-    TABLOID,
-    LEGAL,
-    STATEMENT,
-    EXECUTIVE,
-    FOLIO,
-    A3,
-    A4,
-    A5,
-    B4,
-    B5;
+    LETTER(612, 792),
+    TABLOID(792, 1224),
+    LEGAL(612, 1008),
+    STATEMENT(396, 612),
+    EXECUTIVE(522, 756),
+    FOLIO(612, 936),
+    A3(842, 1191),
+    A4(595, 842),
+    A5(420, 595),
+    B4(709, 1001),
+    B5(499, 709);
+
+    /** Portrait dimensions in points (1/72 inch) */
+    public final float width, height;
+
+    SizeEnum(float width, float height) {
+      this.width = width;
+      this.height = height;
+    }
 
     public String toString() {
       return Integer.toString(ordinal());
@@ -1,30 +1,50 @@
 package com.molnify.xlport.pdf;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.Permission;
-import com.molnify.xlport.core.Utils;
 import com.molnify.xlport.servlet.InitXlPort;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import org.apache.poi.ss.usermodel.Workbook;
 
 /**
- * This is a class that manages export (from Excel) to PDF
+ * This is a class that manages export (from Excel) to PDF. PDFs are either rendered locally by
+ * {@link PDFRenderer}, or by Google Drive (upload, then download through an export URL). Which one
+ * is set by the environment variable XLPORT_PDF_RENDERER ("local" or "drive"). By default, Drive is
+ * used if a Google credential is configured, otherwise local rendering.
+ *
+ * <p>All Drive calls share one client (and transport, which keeps connections alive between
+ * exports). Google needs a moment after the upload before the export URL serves the PDF, so the
+ * download polls it with exponential backoff. Uploaded files are deleted asynchronously, in
+ * batches, by a background thread. The Drive API and export URLs can be pointed elsewhere (e.g., to
+ * a local stand-in when testing) with XLPORT_DRIVE_ROOT_URL and XLPORT_DRIVE_EXPORT_URL.
  *
  * @author kirsten
  */
@@ -34,48 +54,291 @@ public class PDFExporter {
 
   private static GoogleCredential credential = null;
   private static final List<String> SCOPES = Collections.singletonList(DriveScopes.DRIVE_FILE);
+  private static String RENDERER = System.getenv("XLPORT_PDF_RENDERER");
+
+  private static String rootUrl = env("XLPORT_DRIVE_ROOT_URL", Drive.DEFAULT_ROOT_URL),
+      exportUrl = env("XLPORT_DRIVE_EXPORT_URL", ExportFormat.GOOGLE_EXPORT_URL);
+  private static final int EXPORT_TIMEOUT_MS =
+      Integer.parseInt(env("XLPORT_DRIVE_EXPORT_TIMEOUT_MS", "30000"));
+  private static final int INITIAL_BACKOFF_MS = 100, MAX_BACKOFF_MS = 2000;
+
+  // Drive accepts at most 100 calls in one batch request
+  private static final int MAX_DELETES_PER_BATCH = 100, CLEANUP_DELAY_MS = 1000;
+
+  private static final HttpTransport transport = new NetHttpTransport();
+  private static volatile Drive drive = null;
+  private static final LinkedBlockingQueue<String> pendingDeletes = new LinkedBlockingQueue<>();
+  private static Thread cleaner = null;
+  private static final AtomicInteger inFlightDeletes = new AtomicInteger();
 
+  private static String env(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /** True if PDFs should be rendered locally, rather than through Google Drive */
+  public static boolean useLocalRenderer() {
+    if (RENDERER != null && !RENDERER.trim().isEmpty())
+      return "local".equalsIgnoreCase(RENDERER.trim());
+    return credential == null;
+  }
+
+  /**
+   * Sets the renderer, "local" or "drive". Allows configuration as a library, and overrides
+   * XLPORT_PDF_RENDERER.
+   */
+  public static void setRenderer(String renderer) {
+    RENDERER = renderer;
+  }
+
+  /**
+   * Points the Drive client and the export URL elsewhere than Google, e.g., to a local stand-in.
+   * Allows configuration as a library, and overrides XLPORT_DRIVE_ROOT_URL and
+   * XLPORT_DRIVE_EXPORT_URL.
+   *
+   * @param driveRootUrl root of the Drive API, e.g., "http://localhost:8080/"
+   * @param exportBaseUrl prefix of export URLs, to which the document id is appended
+   */
+  public static synchronized void setDriveEndpoints(String driveRootUrl, String exportBaseUrl) {
+    rootUrl = driveRootUrl.endsWith("/") ? driveRootUrl : driveRootUrl + "/";
+    exportUrl = exportBaseUrl;
+    drive = null;
+  }
+
+  /**
+   * Uploads a workbook to Drive (as a Google spreadsheet), readable by anyone with the id. The
+   * workbook is written straight into the request body, without a temporary file.
+   *
+   * @return the id of the uploaded document
+   */
   public static String uploadAndReturnId(Workbook workbook) throws Exception {
-    String tmpFileName = "xlport-temp-pdfexport" + new Random().nextInt(1000000),
-        tmpSuffix = ".xlsx";
-    File copiedFile = File.createTempFile(tmpFileName, tmpSuffix);
-    try (FileOutputStream fileOutputStream = new FileOutputStream(copiedFile); ) {
-      workbook.write(fileOutputStream);
-    } catch (IOException e) {
-      throw e;
-    }
     String MIME = "application/vnd.google-apps.spreadsheet";
     Permission permission = new Permission().setType("anyone").setRole("writer");
     com.google.api.services.drive.model.File fileMetaData =
         new com.google.api.services.drive.model.File();
-    fileMetaData.setName(tmpFileName + tmpSuffix);
+    fileMetaData.setName("xlport-temp-pdfexport" + new Random().nextInt(1000000) + ".xlsx");
     fileMetaData.setMimeType(MIME);
-    FileContent fc = new FileContent(MIME, copiedFile);
-    com.google.api.services.drive.model.File uploadedFile =
-        driveApi().files().create(fileMetaData, fc).setFields("id").execute();
-    String id = uploadedFile.getId();
+    Drive.Files.Create create =
+        driveApi().files().create(fileMetaData, new WorkbookContent(MIME, workbook));
+    create.setFields("id");
+    // A single request, rather than a resumable upload (which takes two). Not gzipped, as the
+    // workbook already is a zip file
+    create.setDisableGZipContent(true);
+    create.getMediaHttpUploader().setDirectUploadEnabled(true);
+    String id = create.execute().getId();
     driveApi().permissions().create(id, permission).execute();
     return id;
   }
 
-  public static String toFile(Workbook workbook, ExportFormat format) throws Exception {
+  /**
+   * Downloads an uploaded document through its export URL. Until Google has the export ready (and
+   * the permission in place) the URL answers with an error or a sign-in page, so it is polled with
+   * exponential backoff, for at most XLPORT_DRIVE_EXPORT_TIMEOUT_MS (default 30 seconds).
+   *
+   * @param id the id of the uploaded document
+   * @param format the export format
+   * @param out where the exported document is written (not closed)
+   * @throws IOException if the export fails, or is not ready in time
+   */
+  public static void downloadExport(String id, ExportFormat format, OutputStream out)
+      throws IOException {
+    URL url = new URL(format.getExportURLForId(exportUrl, id));
+    ExponentialBackOff backOff =
+        new ExponentialBackOff.Builder()
+            .setInitialIntervalMillis(INITIAL_BACKOFF_MS)
+            .setMaxIntervalMillis(MAX_BACKOFF_MS)
+            .setMaxElapsedTimeMillis(EXPORT_TIMEOUT_MS)
+            .build();
+    int attempt = 0;
+    while (true) {
+      attempt++;
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setInstanceFollowRedirects(true);
+      int status = conn.getResponseCode();
+      String contentType = conn.getContentType();
+      boolean signInPage = contentType != null && contentType.startsWith("text/html");
+      if (status == HttpURLConnection.HTTP_OK && !signInPage) {
+        try (InputStream in = conn.getInputStream()) {
+          copy(in, out);
+        }
+        log.info("Downloaded export of [" + id + "] after " + attempt + " attempt(s)");
+        return;
+      }
+      if (!retryable(status))
+        throw new IOException("Export of [" + id + "] failed with HTTP status " + status);
+      discard(conn);
+      long wait = backOff.nextBackOffMillis();
+      if (wait == BackOff.STOP)
+        throw new IOException(
+            "Export of [" + id + "] not ready after " + attempt + " attempts, giving up");
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for export of [" + id + "]");
+      }
+    }
+  }
+
+  private static boolean retryable(int status) {
+    return status == HttpURLConnection.HTTP_OK
+        || status == HttpURLConnection.HTTP_UNAUTHORIZED
+        || status == HttpURLConnection.HTTP_FORBIDDEN
+        || status == HttpURLConnection.HTTP_NOT_FOUND
+        || status == 429
+        || status >= 500;
+  }
+
+  /** Reads what is left of a response, so that the connection can be kept alive and reused */
+  private static void discard(HttpURLConnection conn) {
+    InputStream in = conn.getErrorStream();
+    try {
+      if (in == null) in = conn.getInputStream();
+      copy(in, null);
+      in.close();
+    } catch (IOException e) {
+      conn.disconnect();
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) if (out != null) out.write(buffer, 0, len);
+    if (out != null) out.flush();
+  }
+
+  /**
+   * Exports a workbook to PDF, locally or through Drive, and writes it to a stream (e.g., a servlet
+   * response) as it is produced, without temporary files.
+   *
+   * @param out where the PDF is written (not closed)
+   */
+  public static void toStream(Workbook workbook, ExportFormat format, OutputStream out)
+      throws Exception {
+    if (useLocalRenderer()) {
+      PDFRenderer.render(workbook, format, out);
+      return;
+    }
     String id = uploadAndReturnId(workbook);
-    String url = format.getExportURLForId(id);
-    File tmp = Utils.saveContentsOfUrlAsTmpFile(url);
-    driveApi().files().delete(id);
+    log.info("Uploaded for PDF export with id: " + id);
+    try {
+      downloadExport(id, format, out);
+    } finally {
+      deleteLater(id);
+    }
+  }
+
+  public static String toFile(Workbook workbook, ExportFormat format) throws Exception {
+    File tmp = File.createTempFile("xlport-temp-pdfexport", ".pdf");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      toStream(workbook, format, out);
+    }
     return tmp.getAbsolutePath();
   }
 
+  /**
+   * Queues an uploaded document for deletion. Documents are deleted by a background thread, in
+   * batches, so that the export does not wait for it.
+   */
+  public static void deleteLater(String id) {
+    synchronized (pendingDeletes) {
+      inFlightDeletes.incrementAndGet();
+      pendingDeletes.add(id);
+      if (cleaner == null) {
+        cleaner = new Thread(PDFExporter::cleanUp, "xlport-drive-cleanup");
+        cleaner.setDaemon(true);
+        cleaner.start();
+      }
+    }
+  }
+
+  private static void cleanUp() {
+    while (true) {
+      List<String> ids = new ArrayList<>();
+      try {
+        ids.add(pendingDeletes.take());
+        // Give other exports a moment to finish, so that their deletes share the batch
+        Thread.sleep(CLEANUP_DELAY_MS);
+      } catch (InterruptedException e) {
+        // Delete what has been taken, then keep going (the thread is a daemon)
+      }
+      pendingDeletes.drainTo(ids, MAX_DELETES_PER_BATCH - ids.size());
+      delete(ids);
+    }
+  }
+
+  private static void delete(List<String> ids) {
+    try {
+      BatchRequest batch = driveApi().batch();
+      for (String id : ids)
+        driveApi()
+            .files()
+            .delete(id)
+            .queue(
+                batch,
+                new JsonBatchCallback<Void>() {
+                  @Override
+                  public void onSuccess(Void v, HttpHeaders headers) {}
+
+                  @Override
+                  public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                    log.warning("Could not delete [" + id + "] from Drive: " + error.getMessage());
+                  }
+                });
+      batch.execute();
+      log.info("Deleted " + ids.size() + " exported document(s) from Drive");
+    } catch (IOException | RuntimeException e) {
+      // Logged only, the thread must stay alive for the deletes that follow
+      log.warning("Could not delete " + ids + " from Drive: " + e.getMessage());
+    } finally {
+      synchronized (inFlightDeletes) {
+        inFlightDeletes.addAndGet(-ids.size());
+        inFlightDeletes.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits until the queued deletes have been sent to Drive, e.g., before shutting down.
+   *
+   * @param timeoutMs the longest time to wait
+   * @return true if there was nothing left to delete in time
+   */
+  public static boolean awaitCleanup(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (inFlightDeletes) {
+      while (inFlightDeletes.get() > 0) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) return false;
+        inFlightDeletes.wait(left);
+      }
+    }
+    return true;
+  }
+
   private static Drive driveApi() {
-    JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-    HttpTransport transport = new NetHttpTransport();
-    return new Drive.Builder(transport, jsonFactory, credential)
-        .setApplicationName("xlport")
-        .build();
+    Drive api = drive;
+    if (api == null) {
+      synchronized (PDFExporter.class) {
+        if (drive == null) {
+          JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+          drive =
+              new Drive.Builder(transport, jsonFactory, credential)
+                  .setRootUrl(rootUrl)
+                  .setApplicationName("xlport")
+                  .build();
+        }
+        api = drive;
+      }
+    }
+    return api;
   }
 
   static {
     try {
+      if (InitXlPort.getGoogleCredential() == null)
+        throw new IOException("No Google credential configured");
       InputStream fis =
           new ByteArrayInputStream(
               InitXlPort.getGoogleCredential().toString().getBytes(StandardCharsets.UTF_8));
@@ -84,7 +347,8 @@ public class PDFExporter {
           "Loaded Google credential (for sheets access) for service account: "
               + credential.getServiceAccountId());
     } catch (IOException e) {
-      log.info("Error loading credentials data.");
+      log.info("Error loading credentials data (" + e.getMessage() + ")");
+      if (RENDERER == null) log.info("PDFs will be rendered locally");
     }
   }
 }
@@ -0,0 +1,917 @@
+package com.molnify.xlport.pdf;
+
+import com.molnify.xlport.pdf.ExportFormat.AlignmentHorizontalEnum;
+import com.molnify.xlport.pdf.ExportFormat.AlignmentVerticalEnum;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.PageMargin;
+import org.apache.poi.ss.usermodel.VerticalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.PaneInformation;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+
+/**
+ * Renders a (populated) workbook to PDF in process, as an alternative to the round trip through
+ * Google Drive in {@link PDFExporter}.
+ *
+ * <p>Rendering is done in two phases. The layout phase reads the workbook (cell values through
+ * {@link DataFormatter}, fonts, fills, borders, merged regions, column widths, row heights and the
+ * print area) and splits each sheet into pages of positioned boxes. Sheets, and then pages, are
+ * laid out concurrently (on XLPORT_PDF_THREADS threads, by default one per core). The paint phase
+ * then draws the pages in order, with PDFBox. Fonts are mapped to the standard 14 PDF fonts, so no
+ * fonts are embedded, and characters outside of WinAnsi are replaced.
+ *
+ * <p>The options of {@link ExportFormat} are honored: size, orientation, margins (in inches),
+ * gridlines, page numbers, title, repeated header rows (the frozen rows), alignment on the page,
+ * sheet (by index) and export range. Notes are not printed.
+ *
+ * <p>Usage:
+ *
+ * <pre>{@code
+ * PDFRenderer.render(template.workbook, new ExportFormat().setPortrait(false), outputStream);
+ * }</pre>
+ *
+ * @author kirsten
+ */
+public class PDFRenderer {
+  private static final Logger log = Logger.getLogger(PDFRenderer.class.getName());
+
+  private static final float POINTS_PER_INCH = 72, PADDING = 2, LINE_SPACING = 1.2f;
+  private static final float FOOTER_FONT_SIZE = 9, TITLE_FONT_SIZE = 10;
+  private static final Color GRIDLINE_COLOR = new Color(208, 208, 208);
+
+  private static final int THREADS = threads();
+
+  private static int threads() {
+    String threads = System.getenv("XLPORT_PDF_THREADS");
+    try {
+      if (threads != null) return Math.max(1, Integer.parseInt(threads.trim()));
+    } catch (NumberFormatException e) {
+      log.warning("XLPORT_PDF_THREADS is not a number: " + threads);
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  // Created on first use, so that no threads are started unless PDFs are rendered
+  private static class LayoutPool {
+    static final ExecutorService POOL =
+        Executors.newFixedThreadPool(
+            THREADS,
+            runnable -> {
+              Thread thread = new Thread(runnable, "xlport-pdf-layout");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Renders the workbook as PDF to the output stream (which is not closed) */
+  public static void render(Workbook workbook, ExportFormat format, OutputStream out)
+      throws IOException {
+    long ts = System.currentTimeMillis();
+    List<Page> pages =
+        layout((XSSFWorkbook) workbook, format, THREADS > 1 ? LayoutPool.POOL : null);
+    paint(pages, format, out);
+    log.info(
+        "Rendered " + pages.size() + " PDF pages in " + (System.currentTimeMillis() - ts) + " ms");
+  }
+
+  /**
+   * The layout phase: all pages of all sheets to print, in order. Sheets are first planned (sizes
+   * and page breaks), then every page is laid out, both concurrently on the executor if there is
+   * one. Laying out only reads the workbook.
+   */
+  static List<Page> layout(XSSFWorkbook workbook, ExportFormat format, ExecutorService executor) {
+    Map<Integer, StyleInfo> styles = new ConcurrentHashMap<>();
+    List<Callable<List<Callable<Page>>>> plans = new ArrayList<>();
+    for (int sheetIndex : sheetsToPrint(workbook, format))
+      plans.add(() -> planSheet(workbook, sheetIndex, format, styles));
+    List<Callable<Page>> pages = new ArrayList<>();
+    for (List<Callable<Page>> sheetPages : invokeAll(executor, plans)) pages.addAll(sheetPages);
+    return invokeAll(executor, pages);
+  }
+
+  /** Runs the tasks on the executor (or in this thread, if null), with results in order */
+  private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+    List<T> results = new ArrayList<>(tasks.size());
+    try {
+      if (executor == null || tasks.size() < 2) {
+        for (Callable<T> task : tasks) results.add(task.call());
+        return results;
+      }
+      for (Future<T> future : executor.invokeAll(tasks)) results.add(future.get());
+      return results;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException("PDF layout failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("PDF layout interrupted", e);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException("PDF layout failed", e);
+    }
+  }
+
+  static List<Integer> sheetsToPrint(XSSFWorkbook workbook, ExportFormat format) {
+    List<Integer> sheets = new ArrayList<>();
+    if (format.getExportRangeName() != null) {
+      Name name = workbook.getName(format.getExportRangeName());
+      if (name == null)
+        throw new IllegalArgumentException(
+            "Export range [" + format.getExportRangeName() + "] does not exist");
+      AreaReference area =
+          new AreaReference(name.getRefersToFormula(), workbook.getSpreadsheetVersion());
+      sheets.add(workbook.getSheetIndex(area.getFirstCell().getSheetName()));
+    } else if (format.getSheetId() >= 0) {
+      if (format.getSheetId() >= workbook.getNumberOfSheets())
+        throw new IllegalArgumentException("There is no sheet " + format.getSheetId());
+      sheets.add(format.getSheetId());
+    } else {
+      for (int i = 0; i < workbook.getNumberOfSheets(); i++)
+        if (!workbook.isSheetHidden(i) && !workbook.isSheetVeryHidden(i)) sheets.add(i);
+    }
+    return sheets;
+  }
+
+  /**
+   * Plans one sheet: sizes, scale and page breaks. Returns the tasks that lay out each page, in
+   * order (down, then over, as in Excel). The tasks are independent of each other.
+   */
+  static List<Callable<Page>> planSheet(
+      XSSFWorkbook workbook, int sheetIndex, ExportFormat format, Map<Integer, StyleInfo> styles) {
+    XSSFSheet sheet = workbook.getSheetAt(sheetIndex);
+    List<Callable<Page>> pages = new ArrayList<>();
+    CellRangeAddress range = printRange(workbook, sheetIndex, format);
+    if (range == null) return pages;
+
+    float pageWidth = format.getSize().width, pageHeight = format.getSize().height;
+    if (!format.isPortrait()) {
+      pageWidth = format.getSize().height;
+      pageHeight = format.getSize().width;
+    }
+    float top, bottom, left, right;
+    if (format.hasMargins()) {
+      top = format.getMarginTop() * POINTS_PER_INCH;
+      bottom = format.getMarginBottom() * POINTS_PER_INCH;
+      left = format.getMarginLeft() * POINTS_PER_INCH;
+      right = format.getMarginRight() * POINTS_PER_INCH;
+    } else {
+      top = (float) sheet.getMargin(PageMargin.TOP) * POINTS_PER_INCH;
+      bottom = (float) sheet.getMargin(PageMargin.BOTTOM) * POINTS_PER_INCH;
+      left = (float) sheet.getMargin(PageMargin.LEFT) * POINTS_PER_INCH;
+      right = (float) sheet.getMargin(PageMargin.RIGHT) * POINTS_PER_INCH;
+    }
+    float printableWidth = pageWidth - left - right, printableHeight = pageHeight - top - bottom;
+    if (printableWidth <= 0 || printableHeight <= 0)
+      throw new IllegalArgumentException("The margins leave no space on the page");
+
+    // Column widths and row heights, in points
+    int columns = range.getLastColumn() - range.getFirstColumn() + 1;
+    int rows = range.getLastRow() - range.getFirstRow() + 1;
+    float[] widths = new float[columns], heights = new float[rows];
+    float totalWidth = 0;
+    for (int c = 0; c < columns; c++) {
+      int column = range.getFirstColumn() + c;
+      widths[c] = sheet.isColumnHidden(column) ? 0 : sheet.getColumnWidthInPixels(column) * 0.75f;
+      totalWidth += widths[c];
+    }
+    for (int r = 0; r < rows; r++) {
+      XSSFRow row = sheet.getRow(range.getFirstRow() + r);
+      if (row == null) heights[r] = sheet.getDefaultRowHeightInPoints();
+      else heights[r] = row.getZeroHeight() ? 0 : row.getHeightInPoints();
+    }
+
+    // Scale as set in the sheet, or to fit the width if the sheet is set to fit to a page
+    float scale =
+        sheet.getPrintSetup().getScale() > 0 ? sheet.getPrintSetup().getScale() / 100f : 1;
+    if (sheet.getFitToPage() && sheet.getPrintSetup().getFitWidth() > 0 && totalWidth > 0)
+      scale = Math.min(1, printableWidth * sheet.getPrintSetup().getFitWidth() / totalWidth);
+    for (int c = 0; c < columns; c++) widths[c] *= scale;
+    for (int r = 0; r < rows; r++) heights[r] *= scale;
+
+    // Frozen rows are repeated on every page, if requested
+    int headerRows = 0;
+    PaneInformation pane = sheet.getPaneInformation();
+    if (format.isRepeatRowHeaders() && pane != null && pane.isFreezePane())
+      headerRows =
+          Math.max(0, Math.min(rows, pane.getHorizontalSplitPosition() - range.getFirstRow()));
+    float headerHeight = 0;
+    for (int r = 0; r < headerRows; r++) headerHeight += heights[r];
+    if (headerHeight > printableHeight / 2) {
+      headerRows = 0;
+      headerHeight = 0;
+    }
+
+    List<int[]> columnBands = bands(widths, 0, printableWidth);
+    List<int[]> rowBands = bands(heights, headerRows, printableHeight - headerHeight);
+    if (rowBands.isEmpty()) rowBands.add(new int[] {0, rows - 1});
+    else rowBands.get(0)[0] = 0;
+
+    Map<Long, CellRangeAddress> merged = new HashMap<>();
+    for (CellRangeAddress region : sheet.getMergedRegions())
+      for (int r = region.getFirstRow(); r <= region.getLastRow(); r++)
+        for (int c = region.getFirstColumn(); c <= region.getLastColumn(); c++)
+          merged.put(key(r, c), region);
+
+    LayoutContext context = new LayoutContext(styles, sheet, range, widths, heights, merged, scale);
+    String title = workbook.getProperties().getCoreProperties().getTitle();
+    float[] margins = {top, bottom, left, right};
+    float[] size = {pageWidth, pageHeight, printableWidth, printableHeight};
+    for (int[] columnBand : columnBands)
+      for (int[] rowBand : rowBands) {
+        // The rows on the page: header rows (except on the first row band) and the band itself
+        List<Integer> pageRows = new ArrayList<>();
+        if (rowBand[0] > 0) for (int r = 0; r < headerRows; r++) pageRows.add(r);
+        for (int r = rowBand[0]; r <= rowBand[1]; r++) pageRows.add(r);
+        String pageTitle =
+            format.isPrintTitle() ? (title != null ? title : sheet.getSheetName()) : null;
+        pages.add(
+            () -> layoutPage(context, format, size, margins, pageTitle, columnBand, pageRows));
+      }
+    return pages;
+  }
+
+  private static Page layoutPage(
+      LayoutContext context,
+      ExportFormat format,
+      float[] size,
+      float[] margins,
+      String title,
+      int[] columnBand,
+      List<Integer> pageRows) {
+    Page page = new Page(size[0], size[1], context.sheet.getSheetName());
+    page.title = title;
+    page.margins = margins;
+
+    float contentWidth = 0, contentHeight = 0;
+    for (int c = columnBand[0]; c <= columnBand[1]; c++) contentWidth += context.widths[c];
+    for (int r : pageRows) contentHeight += context.heights[r];
+    float x0 = margins[2] + offset(format.getAlignmentHorizontal(), size[2] - contentWidth);
+    float y0 = margins[0] + offset(format.getAlignmentVertical(), size[3] - contentHeight);
+
+    float[] columnEdges = new float[columnBand[1] - columnBand[0] + 2];
+    columnEdges[0] = x0;
+    for (int c = columnBand[0]; c <= columnBand[1]; c++)
+      columnEdges[c - columnBand[0] + 1] = columnEdges[c - columnBand[0]] + context.widths[c];
+    float[] rowEdges = new float[pageRows.size() + 1];
+    rowEdges[0] = y0;
+    for (int i = 0; i < pageRows.size(); i++)
+      rowEdges[i + 1] = rowEdges[i] + context.heights[pageRows.get(i)];
+    if (format.isShowGridLines()) {
+      page.columnEdges = columnEdges;
+      page.rowEdges = rowEdges;
+    }
+    // Not thread safe, so one per page. Formula cells show their cached values, as evaluating
+    // them would modify the workbook
+    DataFormatter formatter = new DataFormatter();
+    formatter.setUseCachedValuesForFormulaCells(true);
+    for (int i = 0; i < pageRows.size(); i++)
+      layoutRow(context, formatter, page, pageRows, i, rowEdges[i], columnBand, columnEdges);
+    return page;
+  }
+
+  /** The range of the sheet to print, or null if there is nothing to print */
+  static CellRangeAddress printRange(XSSFWorkbook workbook, int sheetIndex, ExportFormat format) {
+    XSSFSheet sheet = workbook.getSheetAt(sheetIndex);
+    if (format.getExportRangeName() != null) {
+      Name name = workbook.getName(format.getExportRangeName());
+      AreaReference area =
+          new AreaReference(name.getRefersToFormula(), workbook.getSpreadsheetVersion());
+      return new CellRangeAddress(
+          area.getFirstCell().getRow(),
+          area.getLastCell().getRow(),
+          area.getFirstCell().getCol(),
+          area.getLastCell().getCol());
+    }
+    if (format.getStartRow() > 0)
+      return new CellRangeAddress(
+          format.getStartRow() - 1,
+          format.getEndRow() - 1,
+          format.getStartColumn() - 1,
+          format.getEndColumn() - 1);
+    String printArea = workbook.getPrintArea(sheetIndex);
+    if (printArea != null) {
+      // Only the first area, if there are several
+      AreaReference area =
+          new AreaReference(printArea.split(",")[0], workbook.getSpreadsheetVersion());
+      return new CellRangeAddress(
+          area.getFirstCell().getRow(),
+          area.getLastCell().getRow(),
+          area.getFirstCell().getCol(),
+          area.getLastCell().getCol());
+    }
+
+    // The used range, ignoring trailing empty cells. It starts at the top left, as in Excel
+    int lastRow = -1, lastColumn = -1;
+    for (int r = sheet.getFirstRowNum(); r <= sheet.getLastRowNum() && r >= 0; r++) {
+      XSSFRow row = sheet.getRow(r);
+      if (row == null) continue;
+      for (Cell cell : row) {
+        if (cell.getCellType() == CellType.BLANK && !hasVisibleStyle((XSSFCell) cell)) continue;
+        lastRow = r;
+        lastColumn = Math.max(lastColumn, cell.getColumnIndex());
+      }
+    }
+    for (CellRangeAddress region : sheet.getMergedRegions()) {
+      lastRow = Math.max(lastRow, region.getLastRow());
+      lastColumn = Math.max(lastColumn, region.getLastColumn());
+    }
+    if (lastRow < 0) return null;
+    return new CellRangeAddress(0, lastRow, 0, lastColumn);
+  }
+
+  private static boolean hasVisibleStyle(XSSFCell cell) {
+    XSSFCellStyle style = cell.getCellStyle();
+    return style.getFillPattern() != FillPatternType.NO_FILL
+        || style.getBorderTop() != BorderStyle.NONE
+        || style.getBorderBottom() != BorderStyle.NONE
+        || style.getBorderLeft() != BorderStyle.NONE
+        || style.getBorderRight() != BorderStyle.NONE;
+  }
+
+  /** Splits the sizes into bands (first and last index) that fit in the available space */
+  private static List<int[]> bands(float[] sizes, int start, float available) {
+    List<int[]> bands = new ArrayList<>();
+    int first = start;
+    float used = 0;
+    for (int i = start; i < sizes.length; i++) {
+      if (used + sizes[i] > available && i > first) {
+        bands.add(new int[] {first, i - 1});
+        first = i;
+        used = 0;
+      }
+      used += sizes[i];
+    }
+    if (first < sizes.length) bands.add(new int[] {first, sizes.length - 1});
+    return bands;
+  }
+
+  private static float offset(Enum<?> alignment, float space) {
+    if (space <= 0 || alignment == null) return 0;
+    if (alignment == AlignmentHorizontalEnum.CENTER || alignment == AlignmentVerticalEnum.MIDDLE)
+      return space / 2;
+    if (alignment == AlignmentHorizontalEnum.RIGHT || alignment == AlignmentVerticalEnum.BOTTOM)
+      return space;
+    return 0;
+  }
+
+  private static long key(int row, int column) {
+    return ((long) row << 20) | column;
+  }
+
+  private static void layoutRow(
+      LayoutContext context,
+      DataFormatter formatter,
+      Page page,
+      List<Integer> pageRows,
+      int i,
+      float y,
+      int[] columnBand,
+      float[] columnEdges) {
+    CellRangeAddress range = context.range;
+    int r = pageRows.get(i), rowIndex = range.getFirstRow() + r;
+    XSSFRow row = context.sheet.getRow(rowIndex);
+    if (row == null || context.heights[r] == 0) return;
+    for (int c = columnBand[0]; c <= columnBand[1]; c++) {
+      int columnIndex = range.getFirstColumn() + c;
+      XSSFCell cell = row.getCell(columnIndex);
+      if (cell == null || context.widths[c] == 0) continue;
+
+      float x = columnEdges[c - columnBand[0]], width = context.widths[c];
+      float height = context.heights[r];
+      CellRangeAddress region = context.merged.get(key(rowIndex, columnIndex));
+      if (region != null) {
+        // Only the top left cell of a merged region is drawn, spanning the region (on this page)
+        if (region.getFirstRow() != rowIndex || region.getFirstColumn() != columnIndex) continue;
+        for (int mc = columnIndex + 1; mc <= region.getLastColumn(); mc++)
+          if (mc - range.getFirstColumn() <= columnBand[1])
+            width += context.widths[mc - range.getFirstColumn()];
+        // The rows of the region that follow on the page, which may end at the row band
+        for (int next = i + 1;
+            next < pageRows.size()
+                && pageRows.get(next) == r + next - i
+                && range.getFirstRow() + pageRows.get(next) <= region.getLastRow();
+            next++) height += context.heights[pageRows.get(next)];
+      }
+
+      CellBox box = new CellBox(x, y, width, height);
+      StyleInfo style = context.style(cell);
+      box.fill = style.fill;
+      for (int side = 0; side < 4; side++)
+        box.borders[side] = style.scaledBorder(side, context.scale);
+
+      CellType type = cell.getCellType();
+      if (type == CellType.FORMULA) type = cell.getCachedFormulaResultType();
+      String text = text(cell, type, style, formatter);
+      if (!text.isEmpty()) {
+        box.font = style.font;
+        box.fontSize = style.fontSize * context.scale;
+        box.color = style.color;
+        box.underline = style.underline;
+        box.horizontal = horizontal(style.horizontal, type);
+        box.vertical = style.vertical;
+
+        // Text that is not wrapped may overflow into empty cells to the right, as in Excel
+        float clipWidth = width;
+        if (!style.wrap && region == null && box.horizontal == HorizontalAlignment.LEFT)
+          for (int next = c + 1; next <= columnBand[1]; next++) {
+            XSSFCell neighbour = row.getCell(range.getFirstColumn() + next);
+            if (neighbour != null && neighbour.getCellType() != CellType.BLANK) break;
+            if (context.merged.containsKey(key(rowIndex, range.getFirstColumn() + next))) break;
+            clipWidth += context.widths[next];
+          }
+        box.clipWidth = clipWidth;
+        box.lines = lines(sanitize(text), box.font, box.fontSize, width - 2 * PADDING, style.wrap);
+      }
+      if (box.lines != null || box.fill != null || style.hasBorders) page.boxes.add(box);
+    }
+  }
+
+  /**
+   * The value of the cell as shown. The same as {@link DataFormatter#formatCellValue}, with cached
+   * values for formulas, but with the number format from the cached style
+   */
+  private static String text(
+      XSSFCell cell, CellType type, StyleInfo style, DataFormatter formatter) {
+    switch (type) {
+      case NUMERIC:
+        try {
+          return formatter.formatRawCellContents(
+              cell.getNumericCellValue(), style.formatIndex, style.formatString);
+        } catch (IllegalArgumentException e) {
+          // POI fails on some date formats it cannot parse, shown as General instead
+          return formatter.formatRawCellContents(cell.getNumericCellValue(), 0, "General");
+        }
+      case STRING:
+        return cell.getStringCellValue();
+      case BOOLEAN:
+        return cell.getBooleanCellValue() ? "TRUE" : "FALSE";
+      case ERROR:
+        return cell.getErrorCellString();
+      default:
+        return "";
+    }
+  }
+
+  private static HorizontalAlignment horizontal(HorizontalAlignment alignment, CellType type) {
+    if (alignment == HorizontalAlignment.CENTER
+        || alignment == HorizontalAlignment.CENTER_SELECTION
+        || alignment == HorizontalAlignment.RIGHT) return alignment;
+    if (alignment != HorizontalAlignment.GENERAL) return HorizontalAlignment.LEFT;
+    // General alignment depends on the type of the value
+    if (type == CellType.NUMERIC) return HorizontalAlignment.RIGHT;
+    if (type == CellType.BOOLEAN || type == CellType.ERROR) return HorizontalAlignment.CENTER;
+    return HorizontalAlignment.LEFT;
+  }
+
+  private static List<String> lines(
+      String text, StandardFont font, float fontSize, float width, boolean wrap) {
+    List<String> lines = new ArrayList<>();
+    for (String paragraph : text.split("\n", -1)) {
+      if (!wrap) {
+        lines.add(paragraph);
+        continue;
+      }
+      StringBuilder line = new StringBuilder();
+      for (String word : paragraph.split(" ")) {
+        String candidate = line.length() == 0 ? word : line + " " + word;
+        if (line.length() > 0 && textWidth(font, fontSize, candidate) > width) {
+          lines.add(line.toString());
+          line.setLength(0);
+          line.append(word);
+        } else {
+          line.setLength(0);
+          line.append(candidate);
+        }
+      }
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  /** The width of (sanitized) text, in points */
+  static float textWidth(StandardFont font, float fontSize, String text) {
+    float width = 0;
+    for (byte b : text.getBytes(WIN_ANSI)) width += font.widths[b & 0xff];
+    return width / 1000 * fontSize;
+  }
+
+  private static final Charset WIN_ANSI = Charset.forName("windows-1252");
+
+  // Characters in 0x80-0x9F of WinAnsi (cp1252), which the standard 14 fonts can show
+  private static final String WIN_ANSI_EXTRAS =
+      "\u20ac\u201a\u0192\u201e\u2026\u2020\u2021\u02c6\u2030\u0160\u2039\u0152\u017d"
+          + "\u2018\u2019\u201c\u201d\u2022\u2013\u2014\u02dc\u2122\u0161\u203a\u0153\u017e"
+          + "\u0178";
+
+  /** Replaces characters that cannot be shown with the standard 14 fonts */
+  static String sanitize(String text) {
+    StringBuilder s = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char ch = text.charAt(i);
+      if (ch == '\n' || (ch >= 32 && ch <= 126) || (ch >= 160 && ch <= 255)) s.append(ch);
+      else if (ch == '\r') continue;
+      else if (ch == '\t') s.append(' ');
+      else if (WIN_ANSI_EXTRAS.indexOf(ch) >= 0) s.append(ch);
+      else {
+        if (Character.isHighSurrogate(ch)) i++;
+        s.append('?');
+      }
+    }
+    return s.toString();
+  }
+
+  private static Color color(XSSFColor color) {
+    if (color == null || color.isAuto()) return null;
+    byte[] rgb = color.getRGBWithTint();
+    if (rgb == null) rgb = color.getRGB();
+    if (rgb == null) return null;
+    return new Color(rgb[0] & 0xff, rgb[1] & 0xff, rgb[2] & 0xff);
+  }
+
+  private static Border border(BorderStyle style, XSSFColor color) {
+    if (style == null || style == BorderStyle.NONE) return null;
+    float width;
+    switch (style) {
+      case MEDIUM:
+      case MEDIUM_DASHED:
+      case MEDIUM_DASH_DOT:
+      case MEDIUM_DASH_DOT_DOT:
+        width = 1;
+        break;
+      case THICK:
+      case DOUBLE:
+        width = 1.5f;
+        break;
+      case HAIR:
+        width = 0.25f;
+        break;
+      default:
+        width = 0.5f;
+    }
+    Color c = color(color);
+    return new Border(width, c == null ? Color.BLACK : c);
+  }
+
+  /** The paint phase: draws the pages, numbering them across all sheets */
+  static void paint(List<Page> pages, ExportFormat format, OutputStream out) throws IOException {
+    try (PDDocument document = new PDDocument()) {
+      for (int i = 0; i < pages.size(); i++) {
+        Page page = pages.get(i);
+        PDPage pdfPage = new PDPage(new PDRectangle(page.width, page.height));
+        document.addPage(pdfPage);
+        try (PDPageContentStream stream = new PDPageContentStream(document, pdfPage)) {
+          paintPage(stream, page);
+          if (format.isShowPageNumbers()) {
+            String number = Integer.toString(i + 1);
+            float width = textWidth(StandardFont.HELVETICA, FOOTER_FONT_SIZE, number);
+            text(
+                stream,
+                PDType1Font.HELVETICA,
+                FOOTER_FONT_SIZE,
+                Color.BLACK,
+                (page.width - width) / 2,
+                page.margins[1] / 2,
+                number);
+          }
+        }
+      }
+      // An empty document is not a valid PDF
+      if (pages.isEmpty())
+        document.addPage(
+            new PDPage(new PDRectangle(format.getSize().width, format.getSize().height)));
+      // The file identifier is seeded by the time of writing, unless set. Seeded by the content
+      // instead, so that the same workbook gives the same bytes
+      document.setDocumentId(contentHash(pages));
+      document.save(out);
+    }
+  }
+
+  private static long contentHash(List<Page> pages) {
+    long hash = 17;
+    for (Page page : pages) {
+      hash = 31 * hash + page.sheetName.hashCode();
+      for (CellBox box : page.boxes) {
+        hash = 31 * hash + Float.floatToIntBits(box.x);
+        hash = 31 * hash + Float.floatToIntBits(box.y);
+        if (box.lines != null) hash = 31 * hash + box.lines.hashCode();
+      }
+    }
+    return hash;
+  }
+
+  private static void paintPage(PDPageContentStream stream, Page page) throws IOException {
+    float h = page.height;
+    for (CellBox box : page.boxes)
+      if (box.fill != null) {
+        stream.setNonStrokingColor(box.fill);
+        stream.addRect(box.x, h - box.y - box.height, box.width, box.height);
+        stream.fill();
+      }
+
+    if (page.columnEdges != null) {
+      stream.setStrokingColor(GRIDLINE_COLOR);
+      stream.setLineWidth(0.25f);
+      float top = page.rowEdges[0], bottom = page.rowEdges[page.rowEdges.length - 1];
+      float left = page.columnEdges[0], right = page.columnEdges[page.columnEdges.length - 1];
+      for (float x : page.columnEdges) line(stream, x, h - top, x, h - bottom);
+      for (float y : page.rowEdges) line(stream, left, h - y, right, h - y);
+    }
+
+    for (CellBox box : page.boxes) {
+      if (box.lines == null) continue;
+      float lineHeight = box.fontSize * LINE_SPACING;
+      float textHeight = lineHeight * box.lines.size();
+      // The baseline of the first line, from the top of the page
+      float baseline;
+      if (box.vertical == VerticalAlignment.TOP) baseline = box.y + PADDING + box.fontSize;
+      else if (box.vertical == VerticalAlignment.CENTER)
+        baseline = box.y + (box.height - textHeight) / 2 + box.fontSize;
+      else baseline = box.y + box.height - textHeight - PADDING + box.fontSize;
+
+      stream.saveGraphicsState();
+      stream.addRect(box.x, h - box.y - box.height, box.clipWidth, box.height);
+      stream.clip();
+      for (String line : box.lines) {
+        float width = textWidth(box.font, box.fontSize, line);
+        float x;
+        if (box.horizontal == HorizontalAlignment.RIGHT) x = box.x + box.width - PADDING - width;
+        else if (box.horizontal == HorizontalAlignment.LEFT) x = box.x + PADDING;
+        else x = box.x + (box.width - width) / 2;
+        Color color = box.color != null ? box.color : Color.BLACK;
+        text(stream, box.font.font, box.fontSize, color, x, h - baseline, line);
+        if (box.underline) {
+          stream.setStrokingColor(color);
+          stream.setLineWidth(box.fontSize / 18);
+          line(stream, x, h - baseline - 1.5f, x + width, h - baseline - 1.5f);
+        }
+        baseline += lineHeight;
+      }
+      stream.restoreGraphicsState();
+    }
+
+    for (CellBox box : page.boxes) {
+      float top = h - box.y, bottom = h - box.y - box.height;
+      float left = box.x, right = box.x + box.width;
+      if (box.borders[0] != null) border(stream, box.borders[0], left, top, right, top);
+      if (box.borders[1] != null) border(stream, box.borders[1], left, bottom, right, bottom);
+      if (box.borders[2] != null) border(stream, box.borders[2], left, top, left, bottom);
+      if (box.borders[3] != null) border(stream, box.borders[3], right, top, right, bottom);
+    }
+
+    if (page.title != null)
+      text(
+          stream,
+          PDType1Font.HELVETICA_BOLD,
+          TITLE_FONT_SIZE,
+          Color.BLACK,
+          page.margins[2],
+          h - page.margins[0] / 2,
+          sanitize(page.title));
+  }
+
+  private static void border(
+      PDPageContentStream stream, Border border, float x1, float y1, float x2, float y2)
+      throws IOException {
+    stream.setStrokingColor(border.color);
+    stream.setLineWidth(border.width);
+    line(stream, x1, y1, x2, y2);
+  }
+
+  private static void line(PDPageContentStream stream, float x1, float y1, float x2, float y2)
+      throws IOException {
+    stream.moveTo(x1, y1);
+    stream.lineTo(x2, y2);
+    stream.stroke();
+  }
+
+  private static void text(
+      PDPageContentStream stream,
+      PDType1Font font,
+      float size,
+      Color color,
+      float x,
+      float y,
+      String text)
+      throws IOException {
+    stream.setNonStrokingColor(color);
+    stream.beginText();
+    stream.setFont(font, size);
+    stream.newLineAtOffset(x, y);
+    stream.showText(text);
+    stream.endText();
+  }
+
+  /** The state shared while laying out the pages of one sheet */
+  private static class LayoutContext {
+    final Map<Integer, StyleInfo> styles;
+    final XSSFSheet sheet;
+    final CellRangeAddress range;
+    final float[] widths, heights;
+    final Map<Long, CellRangeAddress> merged;
+    final float scale;
+
+    LayoutContext(
+        Map<Integer, StyleInfo> styles,
+        XSSFSheet sheet,
+        CellRangeAddress range,
+        float[] widths,
+        float[] heights,
+        Map<Long, CellRangeAddress> merged,
+        float scale) {
+      this.styles = styles;
+      this.sheet = sheet;
+      this.range = range;
+      this.widths = widths;
+      this.heights = heights;
+      this.merged = merged;
+      this.scale = scale;
+    }
+
+    StyleInfo style(XSSFCell cell) {
+      // The index is read from the cell, rather than through getCellStyle() which reads the style
+      CTCell ct = cell.getCTCell();
+      int index = ct.isSetS() ? (int) ct.getS() : 0;
+      return styles.computeIfAbsent(
+          index, i -> new StyleInfo(sheet.getWorkbook().getCellStyleAt(i)));
+    }
+  }
+
+  /**
+   * What the layout needs from a cell style. Styles are shared by all sheets, and cached in a
+   * concurrent map with computeIfAbsent, so each is only read once per layout
+   */
+  static class StyleInfo {
+    final Color fill, color;
+    // Top, bottom, left, right, before scaling
+    final Border[] borders = new Border[4];
+    final boolean hasBorders, underline, wrap;
+    final StandardFont font;
+    final float fontSize;
+    final HorizontalAlignment horizontal;
+    final VerticalAlignment vertical;
+    final short formatIndex;
+    final String formatString;
+
+    StyleInfo(XSSFCellStyle style) {
+      fill =
+          style.getFillPattern() != FillPatternType.NO_FILL
+              ? color(style.getFillForegroundColorColor())
+              : null;
+      borders[0] = border(style.getBorderTop(), style.getTopBorderXSSFColor());
+      borders[1] = border(style.getBorderBottom(), style.getBottomBorderXSSFColor());
+      borders[2] = border(style.getBorderLeft(), style.getLeftBorderXSSFColor());
+      borders[3] = border(style.getBorderRight(), style.getRightBorderXSSFColor());
+      hasBorders =
+          borders[0] != null || borders[1] != null || borders[2] != null || borders[3] != null;
+      XSSFFont xssfFont = style.getFont();
+      font = StandardFont.of(xssfFont);
+      fontSize = xssfFont.getFontHeightInPoints();
+      color = color(xssfFont.getXSSFColor());
+      underline = xssfFont.getUnderline() != 0;
+      wrap = style.getWrapText();
+      horizontal = style.getAlignment();
+      vertical = style.getVerticalAlignment();
+      formatIndex = style.getDataFormat();
+      formatString = style.getDataFormatString();
+    }
+
+    Border scaledBorder(int side, float scale) {
+      Border border = borders[side];
+      if (border == null || scale == 1) return border;
+      return new Border(border.width * scale, border.color);
+    }
+  }
+
+  /** A laid out page, with coordinates in points from the top left corner */
+  static class Page {
+    final float width, height;
+    final String sheetName;
+    final List<CellBox> boxes = new ArrayList<>();
+    String title;
+    // Top, bottom, left, right
+    float[] margins;
+    // Only set when gridlines are shown
+    float[] columnEdges, rowEdges;
+
+    Page(float width, float height, String sheetName) {
+      this.width = width;
+      this.height = height;
+      this.sheetName = sheetName;
+    }
+  }
+
+  /** A laid out cell (or merged region) */
+  static class CellBox {
+    final float x, y, width, height;
+    float clipWidth;
+    Color fill, color;
+    // Top, bottom, left, right
+    final Border[] borders = new Border[4];
+    List<String> lines;
+    StandardFont font;
+    float fontSize;
+    boolean underline;
+    HorizontalAlignment horizontal;
+    VerticalAlignment vertical;
+
+    CellBox(float x, float y, float width, float height) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  static class Border {
+    final float width;
+    final Color color;
+
+    Border(float width, Color color) {
+      this.width = width;
+      this.color = color;
+    }
+  }
+
+  /** The standard 14 fonts that the fonts of the workbook are mapped to */
+  enum StandardFont {
+    HELVETICA(PDType1Font.HELVETICA),
+    HELVETICA_BOLD(PDType1Font.HELVETICA_BOLD),
+    HELVETICA_OBLIQUE(PDType1Font.HELVETICA_OBLIQUE),
+    HELVETICA_BOLD_OBLIQUE(PDType1Font.HELVETICA_BOLD_OBLIQUE),
+    TIMES(PDType1Font.TIMES_ROMAN),
+    TIMES_BOLD(PDType1Font.TIMES_BOLD),
+    TIMES_ITALIC(PDType1Font.TIMES_ITALIC),
+    TIMES_BOLD_ITALIC(PDType1Font.TIMES_BOLD_ITALIC),
+    COURIER(PDType1Font.COURIER),
+    COURIER_BOLD(PDType1Font.COURIER_BOLD),
+    COURIER_OBLIQUE(PDType1Font.COURIER_OBLIQUE),
+    COURIER_BOLD_OBLIQUE(PDType1Font.COURIER_BOLD_OBLIQUE);
+
+    final PDType1Font font;
+    // The widths of the glyphs of all WinAnsi codes. The width cache of PDType1Font is not thread
+    // safe, so the widths are read once, here
+    final float[] widths = new float[256];
+
+    StandardFont(PDType1Font font) {
+      this.font = font;
+      for (int code = 32; code < 256; code++)
+        try {
+          widths[code] = font.getWidth(code);
+        } catch (IOException e) {
+          widths[code] = 500;
+        }
+    }
+
+    static StandardFont of(XSSFFont font) {
+      String name = font.getFontName() == null ? "" : font.getFontName().toLowerCase();
+      int variant = (font.getBold() ? 1 : 0) + (font.getItalic() ? 2 : 0);
+      int family;
+      if (name.contains("courier") || name.contains("consolas") || name.contains("mono"))
+        family = 8;
+      else if (name.contains("times")
+          || name.contains("georgia")
+          || name.contains("cambria")
+          || name.contains("garamond")
+          || name.contains("serif") && !name.contains("sans")) family = 4;
+      else family = 0;
+      // Bold is 1, italic 2, in the order of the constants above
+      return values()[family + variant];
+    }
+  }
+}
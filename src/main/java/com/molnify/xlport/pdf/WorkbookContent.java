@@ -0,0 +1,66 @@
+package com.molnify.xlport.pdf;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.molnify.xlport.core.Utils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Upload content that writes a workbook straight into the request body, instead of through a file
+ * or a byte array. The length is not known up front, so the request is sent chunked. As the
+ * workbook can be written again, the request can be retried.
+ *
+ * @author kirsten
+ */
+class WorkbookContent extends AbstractInputStreamContent {
+  private final Workbook workbook;
+
+  WorkbookContent(String type, Workbook workbook) {
+    super(type);
+    this.workbook = workbook;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    // The body continues after the workbook (e.g., with the closing multipart boundary)
+    Utils.writeWorkbook(
+        workbook,
+        new FilterOutputStream(out) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            flush();
+          }
+        });
+  }
+
+  /**
+   * Not used for the upload, as {@link #writeTo} is overridden, but for anything else that reads
+   * the content. The workbook is written to memory first.
+   */
+  @Override
+  public InputStream getInputStream() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeTo(bytes);
+    return new ByteArrayInputStream(bytes.toByteArray());
+  }
+
+  @Override
+  public long getLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return true;
+  }
+}
@@ -1,8 +1,14 @@
 package com.molnify.xlport.servlet;
 
+import com.molnify.xlport.core.BatchExporter;
+import com.molnify.xlport.core.ExportCache;
+import com.molnify.xlport.core.ExportContext;
+import com.molnify.xlport.core.ExportJobs;
 import com.molnify.xlport.core.Exporter;
 import com.molnify.xlport.core.Importer;
+import com.molnify.xlport.core.IncrementalExporter;
 import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.TemplateAnalysis;
 import com.molnify.xlport.core.TemplateManager;
 import com.molnify.xlport.core.Utils;
 import com.molnify.xlport.pdf.ExportFormat;
@@ -11,8 +17,8 @@ import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -35,18 +41,30 @@ import org.json.JSONObject;
  * HTTP servlet providing {@code /import} and {@code /export} endpoints.
  *
  * <p>{@code PUT /export} accepts a JSON payload to populate an Excel template and returns the
- * generated spreadsheet (or PDF). {@code PUT /import} accepts an Excel file and returns
- * extracted data as JSON.
+ * generated spreadsheet (or PDF). {@code PUT /import} accepts an Excel file and returns extracted
+ * data as JSON. {@code PUT /export/batch} exports many data payloads into one template, and returns
+ * a zip file. {@code POST /export/jobs} exports asynchronously, for exports that take long.
  *
- * <p>Supports API key authentication via the {@code XLPORT_API_KEY} environment variable
- * and CORS via {@code XLPORT_USE_CORS}.
+ * <p>Supports API key authentication via the {@code XLPORT_API_KEY} environment variable and CORS
+ * via {@code XLPORT_USE_CORS}.
  */
-@WebServlet({"/import", "/export"})
+@WebServlet({
+  "/import",
+  "/export",
+  "/export/batch",
+  "/export/estimate",
+  "/export/jobs",
+  "/export/jobs/*"
+})
 public class ImportAndExportServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
   private static final Logger log = Logger.getLogger(ImportAndExportServlet.class.getName());
+  // The id of a cached export, to update it with a delta later (see IncrementalExporter)
+  private static final String EXPORT_ID_HEADER = "X-Xlport-Export-Id";
   private String API_KEY = null;
   private boolean USE_CORS = true;
+  // Default for the "timeoutMs" option of exports and imports, 0 for no timeout
+  private long TIMEOUT_MS = 0;
 
   @Override
   public void init(ServletConfig config) {
@@ -59,6 +77,9 @@ public class ImportAndExportServlet extends HttpServlet {
     if (cors != null && "FALSE".equalsIgnoreCase(cors.trim())) USE_CORS = false;
     if (USE_CORS) log.info("Cross origin requests allowed");
     else log.info("Cross origin requests not allowed");
+    String timeout = System.getenv("XLPORT_TIMEOUT_MS");
+    if (timeout != null && !timeout.trim().isEmpty()) TIMEOUT_MS = Long.parseLong(timeout.trim());
+    if (TIMEOUT_MS > 0) log.info("Exports and imports time out after " + TIMEOUT_MS + " ms");
   }
 
   @Override
@@ -67,10 +88,11 @@ public class ImportAndExportServlet extends HttpServlet {
     // Enable CORS
     if (USE_CORS) {
       resp.setHeader("Access-Control-Allow-Origin", "*");
-      resp.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT");
+      resp.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE");
       resp.setHeader(
           "Access-Control-Allow-Headers", "Authorization, Content-Type, Data-Type, Origin");
       resp.setHeader("Access-Control-Max-Age", "86400");
+      resp.setHeader("Access-Control-Expose-Headers", EXPORT_ID_HEADER);
     }
 
     log.info(req.getRequestURI());
@@ -99,6 +121,32 @@ public class ImportAndExportServlet extends HttpServlet {
             .println(new JSONObject().put("status", "error").put("message", e.getMessage()));
         return;
       }
+    } else if (req.getRequestURI().startsWith("/export/jobs")) {
+      try {
+        doExportJob(req, resp);
+      } catch (JSONException e) {
+        resp.setContentType("application/json");
+        resp.getWriter()
+            .println(new JSONObject().put("status", "error").put("message", e.getMessage()));
+      }
+    } else if (req.getRequestURI().startsWith("/export/batch")
+        && ("PUT".equals(req.getMethod()) || "POST".equals(req.getMethod()))) {
+      try {
+        doBatchExport(req, resp);
+      } catch (JSONException e) {
+        resp.setContentType("application/json");
+        resp.getWriter()
+            .println(new JSONObject().put("status", "error").put("message", e.getMessage()));
+      }
+    } else if (req.getRequestURI().startsWith("/export/estimate")
+        && ("PUT".equals(req.getMethod()) || "POST".equals(req.getMethod()))) {
+      try {
+        doEstimate(req, resp);
+      } catch (JSONException e) {
+        resp.setContentType("application/json");
+        resp.getWriter()
+            .println(new JSONObject().put("status", "error").put("message", e.getMessage()));
+      }
     } else if (req.getRequestURI().startsWith("/export") && "PUT".equals(req.getMethod())) {
       JSONObject requestPayload = new JSONObject();
       // Validate JSON payload
@@ -117,7 +165,7 @@ public class ImportAndExportServlet extends HttpServlet {
                 new JSONObject()
                     .put("status", "error")
                     .put("message", "templateId must be set when using export"));
-      } else doExport(requestPayload, resp);
+      } else doExport(requestPayload, req, resp);
     } else {
       resp.setContentType("application/json");
       resp.getWriter()
@@ -134,13 +182,14 @@ public class ImportAndExportServlet extends HttpServlet {
   private void doImport(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException, EncryptedDocumentException, FileUploadException {
     log.info("IMPORT from multipart");
+    long start = System.currentTimeMillis();
     resp.setCharacterEncoding("UTF-8");
     resp.setContentType("application/json");
     XSSFWorkbook workbook = null; // This should be the uploaded file
     String requestAsString = null; // This should be the request as JSON
     if (req.getContentType() != null
         && (req.getContentType().equals("application/octet-stream")
-        || req.getContentType().equals("application/x-www-form-urlencoded"))) {
+            || req.getContentType().equals("application/x-www-form-urlencoded"))) {
       workbook = (XSSFWorkbook) WorkbookFactory.create(req.getInputStream());
     } else {
       ServletFileUpload upload = new ServletFileUpload();
@@ -174,8 +223,10 @@ public class ImportAndExportServlet extends HttpServlet {
                 .put("tables", new JSONArray().put("*"))
                 .toString();
       JSONArray potentialErrors = new JSONArray();
+      JSONObject request = new JSONObject(requestAsString);
       JSONObject result =
-          Importer.importData(new JSONObject(requestAsString), workbook, potentialErrors, false);
+          Importer.importData(
+              request, workbook, potentialErrors, false, deadline(request, start, TIMEOUT_MS));
       if (potentialErrors.length() > 0)
         resp.getWriter()
             .println(new JSONObject().put("status", "error").put("errors", potentialErrors));
@@ -193,18 +244,46 @@ public class ImportAndExportServlet extends HttpServlet {
   }
 
   // JSON to Excel
-  private void doExport(JSONObject json, HttpServletResponse resp)
+  private void doExport(JSONObject json, HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     log.info("EXPORT from json: " + json.toString());
+    long start = System.currentTimeMillis();
     // Default values + overrides from the request
-    String fileName = "Result.xlsx", templateId = "template1.xlsx";
-    boolean overwriteFormatting = true;
-    boolean protectWorkbook = false;
+    String templateId = "template1.xlsx";
     if (json.has("templateId")) templateId = json.getString("templateId");
-    if (json.has("overwriteFormatting"))
-      overwriteFormatting = json.getBoolean("overwriteFormatting");
-    if (json.has("protectWorkbook")) protectWorkbook = json.getBoolean("protectWorkbook");
-    Template template = TemplateManager.getTemplate(templateId);
+
+    // Identical requests are served from the export cache, without loading the template
+    String cacheKey = null;
+    if (ExportCache.isEnabled() && json.has("data")) {
+      String version = TemplateManager.getTemplateVersion(templateId);
+      if (version != null) {
+        cacheKey = ExportCache.key(templateId, version, json);
+        InputStream cached = ExportCache.open(cacheKey);
+        if (cached != null) {
+          log.info("Export served from cache [" + cacheKey + "]");
+          setExportHeaders(json, resp, TemplateManager.getOriginalFileName(templateId));
+          resp.setHeader(EXPORT_ID_HEADER, cacheKey);
+          try (InputStream in = cached) {
+            Utils.copyFromInputToOutput(in, resp.getOutputStream());
+          }
+          return;
+        }
+      }
+    }
+
+    Template template;
+    if (IncrementalExporter.isIncremental(json)) {
+      // The previous result is updated, rather than the template populated
+      try {
+        template =
+            IncrementalExporter.previous(json, TemplateManager.getOriginalFileName(templateId));
+      } catch (IOException | RuntimeException e) {
+        resp.setContentType("application/json");
+        resp.getWriter()
+            .println(new JSONObject().put("status", "error").put("message", e.getMessage()));
+        return;
+      }
+    } else template = TemplateManager.getTemplate(templateId);
     if (template == null) {
       resp.setContentType("application/json");
       resp.getWriter()
@@ -232,65 +311,28 @@ public class ImportAndExportServlet extends HttpServlet {
 
     // Pipe back the result with the correct name
     JSONArray potentialErrors = new JSONArray();
+    ExportContext context = new ExportContext().setDeadline(deadline(json, start, TIMEOUT_MS));
     try {
-      Exporter.exportToExcel(
-          json.getJSONObject("data"), template, potentialErrors, overwriteFormatting);
-      if (potentialErrors.length() > 0) {
-        // resp.setContentType("application/json");
-        // ﬁresp.getWriter().println(new JSONObject().put("status",
-        // "error").put("error",potentialErrors));
-        log.warning("Potential Errors: " + potentialErrors);
-      }
-      if (json.has("format") && "pdf".equals(json.getString("format"))) {
-        ExportFormat exportFormat = new ExportFormat();
-        boolean landscape = false;
-        if (json.has("landscape")) {
-          landscape = json.getBoolean("landscape");
-          exportFormat.setPortrait(!landscape);
-        }
-        log.info(
-            "Will export PDF with url (document id dummy as X): "
-                + exportFormat.getExportURLForId("X"));
-        String id = PDFExporter.uploadAndReturnId(template.workbook);
-        log.info("ID: " + id);
-
-        String url = exportFormat.getExportURLForId(id);
-        log.info("URL: " + url);
-        if (json.has("filename")) fileName = json.getString("filename") + "." + "pdf";
-        if (json.has("mime")) resp.setContentType(json.getString("mime"));
-        else resp.setContentType("application/pdf");
-        resp.setHeader("Content-Disposition", "attachment; filename=" + fileName);
-
-        URL u = new URL(url);
-        HttpURLConnection conn = null;
-        try {
-          // Add delay to Google to ensure permissions are updated
-          try {
-            Thread.sleep(800);
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-          }
-
-          conn = (HttpURLConnection) u.openConnection();
-          HttpURLConnection.setFollowRedirects(true);
-          Utils.copyFromInputToOutput(conn.getInputStream(), resp.getOutputStream());
-        } catch (Exception e) {
-          log.warning("Failed to connect to PDF export URL: " + e.getMessage());
-        } finally {
-          if (conn != null) conn.disconnect();
+      // Cached workbooks are made deterministic when stored
+      ExportCache.Content content =
+          export(json, template, potentialErrors, context, cacheKey == null);
+      setExportHeaders(json, resp, template.originalFileName);
+      if (cacheKey == null) content.writeTo(resp.getOutputStream());
+      else {
+        resp.setHeader(EXPORT_ID_HEADER, cacheKey);
+        try (InputStream stored = ExportCache.put(cacheKey, content)) {
+          Utils.copyFromInputToOutput(stored, resp.getOutputStream());
         }
-      } else {
-        if (json.has("filename"))
-          fileName = json.getString("filename") + "." + template.getOriginalFileSuffix();
-        resp.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
-        resp.setHeader("Content-Disposition", "attachment; filename=" + fileName);
-        if (protectWorkbook) {
-          String password = null;
-          if (json.has("workbookPassword")) password = json.getString("workbookPassword");
-          template.protectWorkbook(password);
-        }
-        template.workbook.write(resp.getOutputStream());
       }
+    } catch (CancellationException e) {
+      // The deadline was exceeded
+      resp.setContentType("application/json");
+      resp.getWriter()
+          .println(
+              new JSONObject()
+                  .put("status", "error")
+                  .put("message", e.getMessage())
+                  .put("errors", potentialErrors));
     } catch (Throwable t) {
       resp.setContentType("application/json");
       resp.getWriter()
@@ -299,6 +341,241 @@ public class ImportAndExportServlet extends HttpServlet {
     template.workbook.close();
   }
 
+  /**
+   * Analyzes a template, and estimates what exporting the request into it will cost, without
+   * exporting anything (see {@link TemplateAnalysis})
+   */
+  private void doEstimate(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    JSONObject json = payloadAsJSON(req);
+    resp.setContentType("application/json");
+    Template template = TemplateManager.getTemplate(json.optString("templateId", "template1.xlsx"));
+    if (template == null) {
+      resp.getWriter()
+          .println(
+              new JSONObject()
+                  .put("status", "error")
+                  .put(
+                      "message",
+                      "Template could not be found. Please specify a template that exists (e.g.,"
+                          + " template1.xlsx)"));
+      return;
+    }
+    try {
+      resp.getWriter()
+          .println(
+              new JSONObject()
+                  .put("status", "ok")
+                  .put("template", TemplateAnalysis.analyze(template))
+                  .put("estimate", TemplateAnalysis.estimate(template, json)));
+    } finally {
+      template.workbook.close();
+    }
+  }
+
+  /**
+   * The deadline of a request, from its "timeoutMs" option or the default
+   *
+   * @param start when the request started, in milliseconds since the epoch
+   * @return the deadline in milliseconds since the epoch, or 0 for no deadline
+   */
+  private static long deadline(JSONObject json, long start, long defaultTimeoutMs) {
+    long timeout = json.optLong("timeoutMs", defaultTimeoutMs);
+    return timeout > 0 ? start + timeout : 0;
+  }
+
+  /**
+   * Populates the template with the data of the request
+   *
+   * @param deterministic whether the "deterministic" option of the request applies
+   * @return what writes the result, a workbook or PDF as requested
+   */
+  private static ExportCache.Content export(
+      JSONObject json,
+      Template template,
+      JSONArray potentialErrors,
+      ExportContext context,
+      boolean deterministic) {
+    boolean overwriteFormatting = true;
+    if (json.has("overwriteFormatting"))
+      overwriteFormatting = json.getBoolean("overwriteFormatting");
+    context.setStrings(json.opt("strings"));
+    if (IncrementalExporter.isIncremental(json))
+      IncrementalExporter.export(
+          json.getJSONObject("data"), template, potentialErrors, overwriteFormatting, context);
+    else
+      Exporter.exportToExcel(
+          json.getJSONObject("data"), template, potentialErrors, overwriteFormatting, context);
+    if (potentialErrors.length() > 0) {
+      // resp.setContentType("application/json");
+      // ﬁresp.getWriter().println(new JSONObject().put("status",
+      // "error").put("error",potentialErrors));
+      log.warning("Potential Errors: " + potentialErrors);
+    }
+    if (isPDF(json)) {
+      ExportFormat exportFormat = new ExportFormat();
+      if (json.has("landscape")) exportFormat.setPortrait(!json.getBoolean("landscape"));
+      return out -> PDFExporter.toStream(template.workbook, exportFormat, out);
+    }
+    if (json.has("protectWorkbook") && json.getBoolean("protectWorkbook")) {
+      String password = null;
+      if (json.has("workbookPassword")) password = json.getString("workbookPassword");
+      template.protectWorkbook(password);
+    }
+    if (deterministic && json.optBoolean("deterministic"))
+      return out -> Utils.writeWorkbookDeterministic(template.workbook, out);
+    return out -> Utils.writeWorkbook(template.workbook, out);
+  }
+
+  /**
+   * Asynchronous exports (see {@link ExportJobs}). {@code POST /export/jobs} takes the same request
+   * as {@code PUT /export} and returns the id of the job, {@code GET /export/jobs/{id}} returns its
+   * state and progress, and {@code GET /export/jobs/{id}/result} returns the result once done.
+   * {@code DELETE /export/jobs/{id}} cancels the job.
+   */
+  private void doExportJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    // E.g., ["", "<id>", "result"]
+    String[] path = req.getRequestURI().substring("/export/jobs".length()).split("/");
+    if (path.length <= 1 && ("POST".equals(req.getMethod()) || "PUT".equals(req.getMethod()))) {
+      JSONObject json = payloadAsJSON(req);
+      if (!json.has("templateId") || !json.has("data")) {
+        resp.setContentType("application/json");
+        resp.getWriter()
+            .println(
+                new JSONObject()
+                    .put("status", "error")
+                    .put("message", "templateId and data must be set when using export"));
+        return;
+      }
+      String templateId = json.getString("templateId");
+      log.info("EXPORT JOB for template [" + templateId + "]");
+      ExportJobs.Job job =
+          ExportJobs.submit(
+              exportFileName(json, TemplateManager.getOriginalFileName(templateId)),
+              exportContentType(json),
+              (context, potentialErrors, out) -> {
+                // Jobs are for long exports, so only time out when asked to
+                context.setDeadline(deadline(json, System.currentTimeMillis(), 0));
+                try (Template template =
+                    IncrementalExporter.isIncremental(json)
+                        ? IncrementalExporter.previous(
+                            json, TemplateManager.getOriginalFileName(templateId))
+                        : TemplateManager.getTemplate(templateId)) {
+                  if (template == null)
+                    throw new IOException("Template could not be found [" + templateId + "]");
+                  export(json, template, potentialErrors, context, true).writeTo(out);
+                }
+              });
+      resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+      resp.setHeader("Location", "/export/jobs/" + job.id);
+      resp.setContentType("application/json");
+      resp.getWriter().println(job.toJSON());
+      return;
+    }
+    ExportJobs.Job job = path.length > 1 ? ExportJobs.get(path[1]) : null;
+    if (job == null || !("GET".equals(req.getMethod()) || "DELETE".equals(req.getMethod()))) {
+      resp.setContentType("application/json");
+      resp.getWriter()
+          .println(
+              new JSONObject()
+                  .put("status", "error")
+                  .put(
+                      "message",
+                      job == null
+                          ? "Export job could not be found, it may have expired"
+                          : "Invalid request. Use GET or DELETE for export jobs"));
+    } else if ("DELETE".equals(req.getMethod())) {
+      resp.setContentType("application/json");
+      ExportJobs.cancel(job.id);
+      resp.getWriter().println(job.toJSON());
+    } else if (path.length > 2 && "result".equals(path[2])) {
+      InputStream result = ExportJobs.openResult(job.id);
+      if (result == null) {
+        resp.setContentType("application/json");
+        resp.getWriter().println(job.toJSON().put("message", "Export job has no result"));
+        return;
+      }
+      setExportHeaders(resp, job.fileName, job.contentType);
+      try (InputStream in = result) {
+        Utils.copyFromInputToOutput(in, resp.getOutputStream());
+      }
+    } else {
+      resp.setContentType("application/json");
+      resp.getWriter().println(job.toJSON());
+    }
+  }
+
+  /**
+   * Many exports into the same template, returned as a zip (see {@link BatchExporter}). The request
+   * is either a JSON object with "templateId", the options for all items (as for a single export)
+   * and "items", or newline delimited JSON (Content-Type application/x-ndjson) with the same
+   * object, but without "items", on the first line and then one item per line. Items are read as
+   * they are exported.
+   */
+  private void doBatchExport(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    log.info("BATCH EXPORT");
+    String contentType = req.getContentType();
+    JSONObject options;
+    Iterator<JSONObject> items;
+    if (contentType != null && contentType.contains("ndjson")) {
+      BufferedReader reader = req.getReader();
+      String header = reader.readLine();
+      options = new JSONObject(header == null ? "{}" : header);
+      items = BatchExporter.fromNDJSON(reader);
+    } else {
+      options = payloadAsJSON(req);
+      JSONArray array = options.optJSONArray("items");
+      items = BatchExporter.fromJSONArray(array == null ? new JSONArray() : array);
+    }
+    String templateId = options.optString("templateId", "template1.xlsx");
+    byte[] templateBytes = TemplateManager.getTemplateBytes(templateId);
+    if (templateBytes == null) {
+      resp.setContentType("application/json");
+      resp.getWriter()
+          .println(
+              new JSONObject()
+                  .put("status", "error")
+                  .put("message", "Template could not be found [" + templateId + "]"));
+      return;
+    }
+    resp.setContentType("application/zip");
+    resp.setHeader(
+        "Content-Disposition",
+        "attachment; filename=" + options.optString("filename", "Result") + ".zip");
+    BatchExporter.export(
+        templateBytes,
+        TemplateManager.getOriginalFileName(templateId),
+        options,
+        items,
+        resp.getOutputStream());
+  }
+
+  private static boolean isPDF(JSONObject json) {
+    return json.has("format") && "pdf".equals(json.getString("format"));
+  }
+
+  /** Sets the content type and file name of an export, from the request and the template */
+  private static void setExportHeaders(
+      JSONObject json, HttpServletResponse resp, String templateFileName) {
+    setExportHeaders(resp, exportFileName(json, templateFileName), exportContentType(json));
+  }
+
+  private static void setExportHeaders(
+      HttpServletResponse resp, String fileName, String contentType) {
+    resp.setContentType(contentType);
+    resp.setHeader("Content-Disposition", "attachment; filename=" + fileName);
+  }
+
+  private static String exportFileName(JSONObject json, String templateFileName) {
+    if (!json.has("filename")) return "Result.xlsx";
+    if (isPDF(json)) return json.getString("filename") + "." + "pdf";
+    return json.getString("filename") + "." + Template.getFileSuffix(templateFileName);
+  }
+
+  private static String exportContentType(JSONObject json) {
+    if (!isPDF(json)) return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    return json.has("mime") ? json.getString("mime") : "application/pdf";
+  }
+
   private static JSONObject payloadAsJSON(HttpServletRequest req) {
     StringBuffer jb = new StringBuffer();
     String line = null;
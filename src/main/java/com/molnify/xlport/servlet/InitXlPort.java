@@ -1,6 +1,9 @@
 package com.molnify.xlport.servlet;
 
 import com.molnify.xlport.core.TemplateManager;
+import com.molnify.xlport.core.TemplateWarmup;
+import com.molnify.xlport.core.TemplateWatcher;
+import com.molnify.xlport.pdf.PDFExporter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -17,8 +20,8 @@ import org.json.JSONObject;
  * Initialization servlet for the xlPort web service.
  *
  * <p>Handles {@code /ready} and {@code /alive} health check endpoints for Kubernetes
- * liveness/readiness probes. Also configures Google Cloud credentials from environment
- * variables on startup.
+ * liveness/readiness probes. Also configures Google Cloud credentials from environment variables on
+ * startup, and warms up templates if enabled (see {@link TemplateWarmup}), before reporting ready.
  */
 @WebServlet({"/ready", "/alive"})
 public class InitXlPort extends HttpServlet {
@@ -93,6 +96,8 @@ public class InitXlPort extends HttpServlet {
   public void init(ServletConfig config) {
     if (config != null) {
       TemplateManager.init(config.getServletContext());
+      TemplateWarmup.startFromEnvironment();
+      TemplateWatcher.startFromEnvironment();
       log.info("xlPortV2 started");
       READY = true;
     } else {
@@ -101,9 +106,21 @@ public class InitXlPort extends HttpServlet {
     }
   }
 
+  @Override
+  public void destroy() {
+    TemplateWatcher.stop();
+    // Let the documents uploaded for PDF export be deleted from Drive before shutting down
+    try {
+      if (!PDFExporter.awaitCleanup(10000))
+        log.warning("Shut down before all exported documents were deleted from Drive");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
-    if ("/ready".equals(req.getRequestURI()) && !READY)
+    if ("/ready".equals(req.getRequestURI()) && (!READY || !TemplateWarmup.isDone()))
       resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     else resp.setStatus(HttpServletResponse.SC_OK);
   }
@@ -0,0 +1,320 @@
+package com.molnify.xlport;
+
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.TemplateManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Random;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.ComparisonOperator;
+import org.apache.poi.ss.usermodel.DataValidation;
+import org.apache.poi.ss.usermodel.DataValidationHelper;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.SheetConditionalFormatting;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellRangeAddressList;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Generates synthetic templates, and export data that matches them, for load testing and
+ * benchmarks. Everything is derived from the seed, so two generators with the same seed and
+ * settings produce the same template structure and the same data.
+ *
+ * <p>The templates only use what {@link TemplateManager#processTemplate} recognizes: single cell
+ * named ranges and tables. Each sheet "SheetN" gets its named ranges ("Name_N_i") in column B, and
+ * its tables ("Table_N_t") side by side below them. The last columns of a table are formulas
+ * referring to the first numeric column of the same row. Optionally a template sheet is added,
+ * which the data then uses to create new sheets through "sheets".
+ *
+ * <p>Usage:
+ *
+ * <pre>{@code
+ * TemplateGenerator generator = new TemplateGenerator(42).setSheets(3).setTablesPerSheet(2);
+ * Template template = generator.template();
+ * Exporter.exportToExcel(generator.data(1000), template, errors, true);
+ * }</pre>
+ */
+public class TemplateGenerator {
+  public static final String TEMPLATE_SHEET = "TemplateSheet";
+  private static final String[] CATEGORIES = {"Low", "Medium", "High"};
+
+  private final long seed;
+  private int sheets = 1;
+  private int namedRangesPerSheet = 1;
+  private int tablesPerSheet = 1;
+  private int columnsPerTable = 10;
+  private int formulaColumnsPerTable = 1;
+  private int dataValidationsPerTable = 0;
+  private int conditionalFormatsPerTable = 0;
+  private boolean styled = false;
+  private int sheetsFromTemplate = 0;
+
+  public TemplateGenerator(long seed) {
+    this.seed = seed;
+  }
+
+  public TemplateGenerator setSheets(int sheets) {
+    if (sheets < 1) throw new IllegalArgumentException("At least one sheet is required");
+    this.sheets = sheets;
+    return this;
+  }
+
+  public TemplateGenerator setNamedRangesPerSheet(int namedRangesPerSheet) {
+    this.namedRangesPerSheet = namedRangesPerSheet;
+    return this;
+  }
+
+  public TemplateGenerator setTablesPerSheet(int tablesPerSheet) {
+    this.tablesPerSheet = tablesPerSheet;
+    return this;
+  }
+
+  /** The number of columns in each table, including the formula columns */
+  public TemplateGenerator setColumnsPerTable(int columnsPerTable) {
+    if (columnsPerTable < 2) throw new IllegalArgumentException("Tables need at least 2 columns");
+    this.columnsPerTable = columnsPerTable;
+    return this;
+  }
+
+  public TemplateGenerator setFormulaColumnsPerTable(int formulaColumnsPerTable) {
+    this.formulaColumnsPerTable = formulaColumnsPerTable;
+    return this;
+  }
+
+  public TemplateGenerator setDataValidationsPerTable(int dataValidationsPerTable) {
+    this.dataValidationsPerTable = dataValidationsPerTable;
+    return this;
+  }
+
+  public TemplateGenerator setConditionalFormatsPerTable(int conditionalFormatsPerTable) {
+    this.conditionalFormatsPerTable = conditionalFormatsPerTable;
+    return this;
+  }
+
+  /** If true, the first data row of each table gets number formats and fills to replicate */
+  public TemplateGenerator setStyled(boolean styled) {
+    this.styled = styled;
+    return this;
+  }
+
+  /**
+   * If larger than zero, a template sheet is added, and the data creates this many new sheets from
+   * it (each with its own named ranges and tables)
+   */
+  public TemplateGenerator setSheetsFromTemplate(int sheetsFromTemplate) {
+    this.sheetsFromTemplate = sheetsFromTemplate;
+    return this;
+  }
+
+  public int getDataColumnsPerTable() {
+    return columnsPerTable - Math.min(formulaColumnsPerTable, columnsPerTable - 1);
+  }
+
+  /** The (zero based) row of the first data row in all tables */
+  public int getFirstDataRow() {
+    return namedRangesPerSheet + 2;
+  }
+
+  /** The generated template as xlsx */
+  public byte[] templateBytes() throws IOException {
+    try (XSSFWorkbook workbook = workbook()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      workbook.write(out);
+      return out.toByteArray();
+    }
+  }
+
+  /** A new, processed, template ready to export to */
+  public Template template() throws IOException {
+    return open(templateBytes());
+  }
+
+  /** Opens a (processed) template from bytes, e.g., from {@link #templateBytes()} */
+  public static Template open(byte[] bytes) throws IOException {
+    Template template = new Template();
+    template.originalFileName = "generated.xlsx";
+    template.workbook = new XSSFWorkbook(new ByteArrayInputStream(bytes));
+    TemplateManager.processTemplate(template);
+    return template;
+  }
+
+  public XSSFWorkbook workbook() {
+    Random random = new Random(seed);
+    XSSFWorkbook workbook = new XSSFWorkbook();
+    workbook.getProperties().getCoreProperties().setCreated(Optional.of(new Date(0)));
+    for (int s = 1; s <= sheets; s++) addSheet(workbook, "Sheet" + s, s, random);
+    if (sheetsFromTemplate > 0) addSheet(workbook, TEMPLATE_SHEET, 0, random);
+    return workbook;
+  }
+
+  /** Export data with the given number of rows in every table */
+  public JSONObject data(int rowsPerTable) {
+    Random random = new Random(seed * 31 + rowsPerTable);
+    JSONObject data = new JSONObject();
+    for (int s = 1; s <= sheets; s++) addData(data, s, rowsPerTable, random);
+    if (sheetsFromTemplate > 0) {
+      JSONArray sheetSpecs = new JSONArray();
+      for (int i = 1; i <= sheetsFromTemplate; i++) {
+        JSONObject sheetData = new JSONObject();
+        addData(sheetData, 0, rowsPerTable, random);
+        sheetSpecs.put(
+            new JSONObject()
+                .put("name", "Copy " + i)
+                .put("fromTemplateSheet", TEMPLATE_SHEET)
+                .put("data", sheetData));
+      }
+      data.put("sheets", sheetSpecs);
+    }
+    return data;
+  }
+
+  /** A full export request, as sent to /export */
+  public JSONObject request(String templateId, int rowsPerTable) {
+    return new JSONObject().put("templateId", templateId).put("data", data(rowsPerTable));
+  }
+
+  /** The number of cells the data from {@link #data(int)} will fill */
+  public long cells(int rowsPerTable) {
+    long perSheet =
+        namedRangesPerSheet + (long) tablesPerSheet * rowsPerTable * getDataColumnsPerTable();
+    return perSheet * (sheets + sheetsFromTemplate);
+  }
+
+  private void addSheet(XSSFWorkbook workbook, String sheetName, int sheetNumber, Random random) {
+    XSSFSheet sheet = workbook.createSheet(sheetName);
+    for (int i = 1; i <= namedRangesPerSheet; i++) {
+      Row row = sheet.createRow(i - 1);
+      row.createCell(0).setCellValue("Name " + i);
+      row.createCell(1);
+      XSSFName name = workbook.createName();
+      name.setNameName(nameName(sheetNumber, i));
+      name.setRefersToFormula("'" + sheetName + "'!$B$" + i);
+    }
+
+    int headerRow = namedRangesPerSheet + 1, dataColumns = getDataColumnsPerTable();
+    Row header = sheet.createRow(headerRow), firstDataRow = sheet.createRow(headerRow + 1);
+    XSSFCellStyle number = null, filled = null;
+    if (styled) {
+      number = workbook.createCellStyle();
+      number.setDataFormat(workbook.createDataFormat().getFormat("#,##0.00"));
+      filled = workbook.createCellStyle();
+      filled.setFillForegroundColor(IndexedColors.LIGHT_YELLOW.getIndex());
+      filled.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+    }
+    for (int t = 1; t <= tablesPerSheet; t++) {
+      int firstColumn = (t - 1) * (columnsPerTable + 1);
+      String tableName = tableName(sheetNumber, t);
+      for (int c = 0; c < columnsPerTable; c++) {
+        header.createCell(firstColumn + c).setCellValue(columnName(c));
+        firstDataRow.createCell(firstColumn + c);
+        if (styled)
+          firstDataRow.getCell(firstColumn + c).setCellStyle(c % 4 == 1 ? number : filled);
+      }
+      Exporter.createTableFromReference(
+          sheet,
+          new AreaReference(
+              new CellReference(headerRow, firstColumn),
+              new CellReference(headerRow + 1, firstColumn + columnsPerTable - 1),
+              SpreadsheetVersion.EXCEL2007),
+          tableName);
+      // Formulas are set once the table exists, so the structured references can be parsed. Tables
+      // on the template sheet are renamed when copied, so those use plain references instead
+      for (int c = dataColumns; c < columnsPerTable; c++) {
+        String source =
+            sheetNumber > 0
+                ? tableName + "[[#This Row],[" + columnName(1) + "]]"
+                : new CellReference(headerRow + 1, firstColumn + 1).formatAsString();
+        firstDataRow
+            .getCell(firstColumn + c)
+            .setCellFormula(source + "*" + (c - dataColumns + 2));
+      }
+
+      DataValidationHelper helper = sheet.getDataValidationHelper();
+      for (int i = 0; i < dataValidationsPerTable; i++) {
+        int column = firstColumn + categoryColumn(i, dataColumns);
+        DataValidation dv =
+            helper.createValidation(
+                helper.createExplicitListConstraint(CATEGORIES),
+                new CellRangeAddressList(headerRow + 1, headerRow + 1, column, column));
+        sheet.addValidationData(dv);
+      }
+      SheetConditionalFormatting scf = sheet.getSheetConditionalFormatting();
+      for (int i = 0; i < conditionalFormatsPerTable; i++) {
+        int column = firstColumn + numberColumn(i, dataColumns);
+        scf.addConditionalFormatting(
+            new CellRangeAddress[] {
+              new CellRangeAddress(headerRow + 1, headerRow + 1, column, column)
+            },
+            scf.createConditionalFormattingRule(
+                ComparisonOperator.GT, Integer.toString(random.nextInt(1000))));
+      }
+    }
+  }
+
+  private void addData(JSONObject data, int sheetNumber, int rows, Random random) {
+    for (int i = 1; i <= namedRangesPerSheet; i++)
+      data.put(nameName(sheetNumber, i), value(i, random));
+    int dataColumns = getDataColumnsPerTable();
+    for (int t = 1; t <= tablesPerSheet; t++) {
+      JSONArray table = new JSONArray();
+      for (int r = 0; r < rows; r++) {
+        JSONObject row = new JSONObject();
+        for (int c = 0; c < dataColumns; c++) row.put(columnName(c), value(c, random));
+        table.put(row);
+      }
+      data.put(tableName(sheetNumber, t), table);
+    }
+  }
+
+  /** Text, number, category and date values, in that order by column */
+  private static Object value(int column, Random random) {
+    switch (column % 4) {
+      case 0:
+        return "text-" + random.nextInt(1000000);
+      case 1:
+        return random.nextInt(1000) + Math.round(random.nextDouble() * 100) / 100.0;
+      case 2:
+        return CATEGORIES[random.nextInt(CATEGORIES.length)];
+      default:
+        return String.format(
+            "2024-%02d-%02dT%02d:00:00.000Z",
+            1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24));
+    }
+  }
+
+  private static int categoryColumn(int i, int dataColumns) {
+    int column = 2 + 4 * i;
+    return column < dataColumns ? column : 0;
+  }
+
+  private static int numberColumn(int i, int dataColumns) {
+    int column = 1 + 4 * i;
+    return column < dataColumns ? column : 1;
+  }
+
+  // Sheet number 0 is the template sheet
+  public static String nameName(int sheetNumber, int i) {
+    return "Name_" + sheetNumber + "_" + i;
+  }
+
+  public static String tableName(int sheetNumber, int t) {
+    return "Table_" + sheetNumber + "_" + t;
+  }
+
+  public static String columnName(int c) {
+    return "Col" + (c + 1);
+  }
+}
@@ -0,0 +1,70 @@
+package com.molnify.xlport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.TemplateItem;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class TemplateGeneratorTest {
+
+  private static TemplateGenerator generator(long seed) {
+    return new TemplateGenerator(seed)
+        .setSheets(3)
+        .setNamedRangesPerSheet(2)
+        .setTablesPerSheet(2)
+        .setColumnsPerTable(6)
+        .setFormulaColumnsPerTable(2)
+        .setDataValidationsPerTable(1)
+        .setConditionalFormatsPerTable(1)
+        .setStyled(true);
+  }
+
+  @Test
+  public void testTemplateStructure() throws Exception {
+    try (Template template = generator(1).template()) {
+      assertEquals(3, template.workbook.getNumberOfSheets());
+      // 2 named ranges and 2 tables per sheet
+      assertEquals(12, template.items.size());
+      TemplateItem table = template.items.get("Table_2_2");
+      assertNotNull(table);
+      assertTrue(table.isTableAndHasFormulas());
+      assertEquals(6, table.getHeaders().size());
+      XSSFSheet sheet = template.workbook.getSheet("Sheet2");
+      assertEquals(2, sheet.getDataValidations().size());
+      assertEquals(2, sheet.getSheetConditionalFormatting().getNumConditionalFormattings());
+    }
+  }
+
+  @Test
+  public void testDeterministic() throws Exception {
+    assertEquals(generator(7).data(50).toString(), generator(7).data(50).toString());
+    assertNotEquals(generator(7).data(50).toString(), generator(8).data(50).toString());
+    try (Template a = generator(7).template();
+        Template b = generator(7).template()) {
+      assertEquals(a.items.keySet(), b.items.keySet());
+    }
+  }
+
+  @Test
+  public void testExportGeneratedData() throws Exception {
+    TemplateGenerator generator = generator(3).setSheetsFromTemplate(4);
+    try (Template template = generator.template()) {
+      JSONArray potentialErrors = new JSONArray();
+      Exporter.exportToExcel(generator.data(100), template, potentialErrors, true);
+      assertEquals(potentialErrors.toString(), 0, potentialErrors.length());
+      // The template sheet is replaced by its 4 copies
+      assertEquals(3 + 4, template.workbook.getNumberOfSheets());
+      assertNotNull(template.workbook.getSheet("Copy 4"));
+      // 100 rows below the header of the first table in the first sheet
+      assertEquals(2 + 1 + 100, template.workbook.getSheet("Sheet1").getLastRowNum());
+      assertEquals((3 + 4) * (2 + 2 * 100 * 4), generator.cells(100));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class BatchExporterTest {
+
+  @Test
+  public void testItemsInOrderWithErrors() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(3);
+    JSONArray items = new JSONArray();
+    for (int i = 0; i < 7; i++)
+      items.put(
+          new JSONObject().put("filename", "customer/" + i).put("data", generator.data(5 + i)));
+    items.put(new JSONObject().put("filename", "broken"));
+    items.put(new JSONObject().put("data", generator.data(1)));
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      int count =
+          BatchExporter.export(
+              generator.templateBytes(),
+              "generated.xlsx",
+              new JSONObject(),
+              BatchExporter.fromJSONArray(items),
+              out,
+              executor,
+              3);
+      assertEquals(9, count);
+    } finally {
+      executor.shutdown();
+    }
+
+    List<String> names = new ArrayList<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      ZipEntry entry;
+      int item = 0;
+      while ((entry = zip.getNextEntry()) != null) {
+        names.add(entry.getName());
+        if (entry.getName().startsWith("customer_")) {
+          // Every workbook has its own data, with 5 + i rows in the first table
+          XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(read(zip)));
+          String first =
+              generator
+                  .data(5 + item)
+                  .getJSONArray(TemplateGenerator.tableName(1, 1))
+                  .getJSONObject(4 + item)
+                  .getString("Col1");
+          assertEquals(
+              first,
+              workbook
+                  .getSheet("Sheet1")
+                  .getRow(generator.getFirstDataRow() + 4 + item)
+                  .getCell(0)
+                  .getStringCellValue());
+          item++;
+        } else if (entry.getName().endsWith(".errors.json")) {
+          JSONObject errors = new JSONObject(new String(read(zip), StandardCharsets.UTF_8));
+          assertEquals("error", errors.getString("status"));
+        }
+      }
+    }
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 7; i++) expected.add("customer_" + i + ".xlsx");
+    expected.add("broken.errors.json");
+    expected.add("item-9.xlsx");
+    assertEquals(expected, names);
+  }
+
+  @Test
+  public void testNDJSON() {
+    String ndjson = "{\"data\": {}}\n\n{\"filename\": \"b\", \"data\": {}}\nnot json\n";
+    Iterator<JSONObject> items =
+        BatchExporter.fromNDJSON(new BufferedReader(new StringReader(ndjson)));
+    assertTrue(items.hasNext());
+    assertTrue(items.next().has("data"));
+    assertEquals("b", items.next().getString("filename"));
+    assertTrue(items.hasNext());
+    try {
+      items.next();
+      assertTrue("Expected a JSON error", false);
+    } catch (org.json.JSONException e) {
+      // Reported per item by BatchExporter.export
+    }
+    assertTrue(!items.hasNext());
+  }
+
+  private static byte[] read(ZipInputStream zip) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = zip.read(buffer)) != -1) out.write(buffer, 0, len);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,156 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExportCacheTest {
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("xlport-export-cache");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    ExportCache.configure(null, 0);
+    for (java.io.File f : dir.toFile().listFiles()) f.delete();
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testKeyIsCanonical() {
+    JSONObject a =
+        new JSONObject("{\"data\": {\"x\": 1, \"y\": [1, 2.5, \"z\"]}, \"format\": \"pdf\"}");
+    JSONObject b =
+        new JSONObject(
+            "{\"format\":\"pdf\",\"data\":{\"y\":[1,2.5,\"z\"],\"x\":1},\"filename\":\"f\"}");
+    String key = ExportCache.key("t.xlsx", "v1", a);
+    assertEquals(64, key.length());
+    // Key order, whitespace and options that do not change the output do not matter
+    assertEquals(key, ExportCache.key("t.xlsx", "v1", b));
+    assertNotEquals(key, ExportCache.key("t.xlsx", "v2", a));
+    assertNotEquals(key, ExportCache.key("u.xlsx", "v1", a));
+    assertNotEquals(
+        key, ExportCache.key("t.xlsx", "v1", new JSONObject(a.toString()).put("landscape", true)));
+    assertNotEquals(
+        key,
+        ExportCache.key(
+            "t.xlsx",
+            "v1",
+            new JSONObject(a.toString()).put("data", new JSONObject("{\"x\": 2}"))));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    ExportCache.configure(dir, 2500);
+    byte[] kB = new byte[1000];
+    for (String key : new String[] {"a", "b"}) ExportCache.put(key, out -> out.write(kB)).close();
+    // Use "a", so that "b" is the least recently used
+    ExportCache.open("a").close();
+    try (InputStream in = ExportCache.put("c", out -> out.write(kB))) {
+      assertEquals(1000, read(in).length);
+    }
+    assertNull(ExportCache.open("b"));
+    try (InputStream in = ExportCache.open("a")) {
+      assertArrayEquals(kB, read(in));
+    }
+    try (InputStream in = ExportCache.open("c")) {
+      assertNotNull(in);
+    }
+
+    // Entries survive a restart
+    ExportCache.configure(dir, 2500);
+    try (InputStream in = ExportCache.open("c")) {
+      assertArrayEquals(kB, read(in));
+    }
+    assertNull(ExportCache.open("b"));
+  }
+
+  @Test
+  public void testResultLargerThanTheCacheIsNotCached() throws Exception {
+    ExportCache.configure(dir, 2500);
+    byte[] kB = new byte[1000];
+    ExportCache.put("a", out -> out.write(kB)).close();
+    byte[] large = new byte[3000];
+    Arrays.fill(large, (byte) 1);
+    try (InputStream in = ExportCache.put("b", out -> out.write(large))) {
+      assertArrayEquals(large, read(in));
+    }
+    assertNull(ExportCache.open("b"));
+    // Nothing else is evicted for it, and nothing is left behind
+    try (InputStream in = ExportCache.open("a")) {
+      assertArrayEquals(kB, read(in));
+    }
+    assertEquals(1, dir.toFile().listFiles().length);
+  }
+
+  @Test
+  public void testCachedWorkbooksAreDeterministic() throws Exception {
+    ExportCache.configure(dir, 1 << 24);
+    JSONObject data =
+        new JSONObject(Utils.readFileAsString("src/test/resources/export1.json", false));
+    byte[][] exports = new byte[2][];
+    for (int i = 0; i < 2; i++) {
+      try (Template template =
+          TemplateManager.getLocalTemplateInTestDirectory("Sample template.xlsx")) {
+        Exporter.exportToExcel(data.getJSONObject("data"), template, new JSONArray(), true);
+        try (InputStream in =
+            ExportCache.put("k" + i, out -> Utils.writeWorkbook(template.workbook, out))) {
+          exports[i] = read(in);
+        }
+      }
+      // Zip entries are stamped with the time of writing, to within two seconds
+      if (i == 0) Thread.sleep(2100);
+    }
+    assertTrue(Arrays.equals(exports[0], exports[1]));
+
+    try (ZipFile zip = new ZipFile(dir.resolve("k0.export").toFile())) {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      assertTrue(entries.hasMoreElements());
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        // Zip times are local times
+        LocalDateTime time =
+            LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.getTime()), ZoneId.systemDefault());
+        assertEquals(entry.getName(), 1980, time.getYear());
+      }
+    }
+    // Non-zip content is stored as is
+    try (InputStream in = ExportCache.put("pdf", out -> out.write("%PDF".getBytes()))) {
+      assertEquals("%PDF", new String(read(in)));
+    }
+    assertFalse(Utils.isZip(dir.resolve("pdf.export")));
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) out.write(buffer, 0, len);
+    return out.toByteArray();
+  }
+}
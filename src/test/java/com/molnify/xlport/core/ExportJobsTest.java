@@ -0,0 +1,147 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExportJobsTest {
+  private Path dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("xlport-export-jobs");
+    ExportJobs.configure(dir, TimeUnit.HOURS.toMillis(1));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (File f : dir.toFile().listFiles()) f.delete();
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testProgressAndResult() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(3).setSheets(2);
+    JSONObject data = generator.data(500);
+    CountDownLatch started = new CountDownLatch(1), proceed = new CountDownLatch(1);
+    ExportJobs.Job job =
+        ExportJobs.submit(
+            "Result.xlsx",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            (context, potentialErrors, out) -> {
+              started.countDown();
+              proceed.await();
+              try (Template template = generator.template()) {
+                Exporter.exportToExcel(data, template, potentialErrors, true, context);
+                Utils.writeWorkbook(template.workbook, out);
+              }
+            });
+    started.await();
+    assertEquals("running", job.toJSON().getString("state"));
+    assertNull(ExportJobs.openResult(job.id));
+    proceed.countDown();
+    await(job);
+
+    JSONObject status = job.toJSON();
+    assertEquals("done", status.getString("state"));
+    // One row per table row, and one per named range, in each of the two sheets
+    assertEquals(2 * 500 + 2, status.getLong("totalRows"));
+    assertEquals(status.getLong("totalRows"), status.getLong("rowsWritten"));
+    assertTrue(status.has("expiresAt"));
+    try (InputStream in = ExportJobs.openResult(job.id);
+        XSSFWorkbook workbook = new XSSFWorkbook(in)) {
+      assertEquals(2, workbook.getNumberOfSheets());
+    }
+    assertTrue(Files.exists(dir.resolve(job.id + ".result")));
+    assertFalse(Files.exists(dir.resolve(job.id + ".tmp")));
+  }
+
+  @Test
+  public void testFailedJob() throws Exception {
+    ExportJobs.Job job =
+        ExportJobs.submit(
+            "Result.pdf",
+            "application/pdf",
+            (context, potentialErrors, out) -> {
+              out.write(1);
+              throw new IOException("Template could not be found [missing.xlsx]");
+            });
+    await(job);
+    JSONObject status = job.toJSON();
+    assertEquals("failed", status.getString("state"));
+    assertEquals("error", status.getString("status"));
+    assertEquals("Template could not be found [missing.xlsx]", status.getString("message"));
+    assertNull(ExportJobs.openResult(job.id));
+    // Nothing half written is left behind
+    assertEquals(0, dir.toFile().listFiles().length);
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(5);
+    JSONObject data = generator.data(200000);
+    CountDownLatch started = new CountDownLatch(1);
+    ExportJobs.Job job =
+        ExportJobs.submit(
+            "Result.xlsx",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            (context, potentialErrors, out) -> {
+              try (Template template = generator.template()) {
+                started.countDown();
+                Exporter.exportToExcel(data, template, potentialErrors, true, context);
+                Utils.writeWorkbook(template.workbook, out);
+              }
+            });
+    started.await();
+    assertEquals(job, ExportJobs.cancel(job.id));
+    await(job);
+    JSONObject status = job.toJSON();
+    assertEquals("cancelled", status.getString("state"));
+    assertTrue(status.getLong("rowsWritten") < status.getLong("totalRows"));
+    assertNull(ExportJobs.openResult(job.id));
+    assertEquals(0, dir.toFile().listFiles().length);
+  }
+
+  @Test
+  public void testExpiredJobsAreRemoved() throws Exception {
+    ExportJobs.configure(dir, 50);
+    ExportJobs.Job job =
+        ExportJobs.submit("Result.pdf", "application/pdf", (context, errors, out) -> out.write(1));
+    await(job);
+    assertNotNull(ExportJobs.get(job.id));
+    // A result left from an earlier run
+    File orphan = dir.resolve("earlier.result").toFile();
+    assertTrue(orphan.createNewFile());
+    orphan.setLastModified(System.currentTimeMillis() - 1000);
+    Thread.sleep(100);
+    ExportJobs.removeExpired();
+    assertNull(ExportJobs.get(job.id));
+    assertNull(ExportJobs.openResult(job.id));
+    assertEquals(0, dir.toFile().listFiles().length);
+  }
+
+  private static void await(ExportJobs.Job job) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 60000;
+    while (job.getState() == ExportJobs.State.QUEUED
+        || job.getState() == ExportJobs.State.RUNNING) {
+      assertTrue("Job did not finish in time", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import org.apache.poi.ss.usermodel.DataValidation;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.SheetConditionalFormatting;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class IncrementalExporterTest {
+
+  @Test
+  public void testDeltaGivesTheSameWorkbookAsAFullExport() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(47).setSheetsFromTemplate(2);
+    JSONObject data = generator.data(50);
+    String table = TemplateGenerator.tableName(1, 1), copyTable = TemplateGenerator.tableName(0, 1);
+    byte[] previous = export(generator, data);
+
+    JSONArray shorter = new JSONArray();
+    for (int i = 0; i < 20; i++) shorter.put(copyTable(data).getJSONObject(i));
+    JSONObject delta =
+        new JSONObject()
+            .put(TemplateGenerator.nameName(1, 1), "changed")
+            .put(
+                table,
+                new JSONObject()
+                    .put(
+                        "rows",
+                        new JSONObject()
+                            .put("3", new JSONObject().put("Col1", "changed").put("Col2", 1.5))))
+            .put(
+                "sheets",
+                new JSONArray()
+                    .put(
+                        new JSONObject()
+                            .put("name", "Copy 1")
+                            .put("data", new JSONObject().put(copyTable, shorter)))
+                    .put(new JSONObject().put("name", "Nope").put("data", new JSONObject())));
+
+    // The same changes, exported in full
+    data.put(TemplateGenerator.nameName(1, 1), "changed");
+    data.getJSONArray(table).getJSONObject(3).put("Col1", "changed").put("Col2", 1.5);
+    data.getJSONArray("sheets").getJSONObject(0).getJSONObject("data").put(copyTable, shorter);
+
+    JSONObject request =
+        new JSONObject().put("previousFile", Base64.getEncoder().encodeToString(previous));
+    assertTrue(IncrementalExporter.isIncremental(request));
+    JSONArray errors = new JSONArray();
+    try (Template updated = IncrementalExporter.previous(request, "generated.xlsx");
+        Template expected = TemplateGenerator.open(generator.templateBytes())) {
+      IncrementalExporter.export(delta, updated, errors, true, new ExportContext());
+      assertEquals(errors.toString(), 1, errors.length());
+      assertTrue(errors.toString(), errors.getJSONObject(0).getString("message").contains("Nope"));
+
+      Exporter.exportToExcel(data, expected, new JSONArray(), true);
+      ValuePipelineTest.assertSameCells(expected.workbook, updated.workbook);
+      assertEquals(20, updated.getTable(Utils.collapseName("Copy 1", copyTable)).getDataRowCount());
+    }
+  }
+
+  @Test
+  public void testUpdatesDoNotAddFormattingRanges() throws Exception {
+    TemplateGenerator generator =
+        new TemplateGenerator(47).setDataValidationsPerTable(1).setConditionalFormatsPerTable(1);
+    JSONObject data = generator.data(50);
+    String table = TemplateGenerator.tableName(1, 1);
+    byte[] previous = export(generator, data);
+    int[] ranges = formattingRanges(previous);
+    assertTrue(ranges[0] > 0 && ranges[1] > 0);
+    for (int update = 1; update <= 2; update++) {
+      data.getJSONArray(table).getJSONObject(0).put("Col1", "update " + update);
+      JSONObject delta = new JSONObject().put(table, data.getJSONArray(table));
+      JSONObject request =
+          new JSONObject().put("previousFile", Base64.getEncoder().encodeToString(previous));
+      JSONArray errors = new JSONArray();
+      try (Template updated = IncrementalExporter.previous(request, "generated.xlsx")) {
+        IncrementalExporter.export(delta, updated, errors, true, new ExportContext());
+        assertEquals(errors.toString(), 0, errors.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        updated.workbook.write(bytes);
+        previous = bytes.toByteArray();
+      }
+      assertArrayEquals("After update " + update, ranges, formattingRanges(previous));
+    }
+  }
+
+  /** @return the number of data validation and conditional formatting ranges of the workbook */
+  private static int[] formattingRanges(byte[] bytes) throws Exception {
+    int[] ranges = new int[2];
+    try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(bytes))) {
+      for (Sheet sheet : workbook) {
+        for (DataValidation dv : sheet.getDataValidations())
+          ranges[0] += dv.getRegions().countRanges();
+        SheetConditionalFormatting scf = sheet.getSheetConditionalFormatting();
+        for (int i = 0; i < scf.getNumConditionalFormattings(); i++)
+          ranges[1] += scf.getConditionalFormattingAt(i).getFormattingRanges().length;
+      }
+    }
+    return ranges;
+  }
+
+  private static JSONArray copyTable(JSONObject data) {
+    return data.getJSONArray("sheets")
+        .getJSONObject(0)
+        .getJSONObject("data")
+        .getJSONArray(TemplateGenerator.tableName(0, 1));
+  }
+
+  private static byte[] export(TemplateGenerator generator, JSONObject data) throws Exception {
+    try (Template template = generator.template()) {
+      JSONArray errors = new JSONArray();
+      Exporter.exportToExcel(new JSONObject(data.toString()), template, errors, true);
+      assertEquals(errors.toString(), 0, errors.length());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      template.workbook.write(bytes);
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class KeyScheduleTest {
+
+  @Test
+  public void testReferences() {
+    assertEquals(
+        new LinkedHashSet<>(Arrays.asList("Rates", "Discount", "'Sheet 1'!B2", "'Other'!$A$1:C3")),
+        KeySchedule.references(
+            "=INDEX(Rates[Rate], MATCH([@Code], Rates[[#All],[Code]], 0)) * (1 - Discount)"
+                + " + B2 + 'Other'!$A$1:C3",
+            "Sheet 1"));
+    // Not in strings, numbers, errors or booleans, and whole columns are ranges
+    assertEquals(
+        new LinkedHashSet<>(Arrays.asList("Sheet2!A1:B1048576")),
+        KeySchedule.references(
+            "IF(TRUE, \"Rates[Rate] \"\"B2\"\"\", 1.5E3 + #N/A) + SUM(Sheet2!A:B)", "S"));
+  }
+
+  @Test
+  public void testTablesAreScheduledAfterWhatTheirFormulasReferTo() throws Exception {
+    JSONObject data =
+        new JSONObject()
+            .put("Totals", new JSONArray().put(new JSONObject()))
+            .put(
+                "Orders",
+                new JSONArray()
+                    .put(new JSONObject().put("Qty", 2))
+                    .put(new JSONObject().put("Qty", 3))
+                    .put(new JSONObject().put("Qty", 5)))
+            .put("Rates", new JSONArray().put(new JSONObject().put("Rate", 10)))
+            .put("Discount", 0.5);
+    try (Template template = TemplateManager.getTemplateFromBytes(workbook(), "t.xlsx")) {
+      KeySchedule schedule = KeySchedule.of(data, template);
+      List<String> order = schedule.getOrder();
+      assertEquals(4, order.size());
+      assertTrue(order.toString(), order.indexOf("Rates") < order.indexOf("Orders"));
+      assertTrue(order.toString(), order.indexOf("Discount") < order.indexOf("Orders"));
+      assertTrue(order.toString(), order.indexOf("Orders") < order.indexOf("Totals"));
+      assertEquals(3, schedule.getGroups().size());
+      assertEquals(
+          new HashSet<>(Arrays.asList("Rates", "Discount")),
+          new HashSet<>(schedule.getGroups().get(0)));
+      assertEquals(Arrays.asList("Orders"), schedule.getGroups().get(1));
+      assertEquals(Arrays.asList("Totals"), schedule.getGroups().get(2));
+
+      // The total covers all orders, as the orders are there when its formula is written
+      JSONArray errors = new JSONArray();
+      Exporter.exportToExcel(data, template, errors, true);
+      assertEquals(errors.toString(), 0, errors.length());
+      XSSFSheet sheet = template.workbook.getSheet("Sheet1");
+      assertEquals((2 + 3 + 5) * 10 * 0.5, sheet.getRow(1).getCell(8).getNumericCellValue(), 1e-9);
+    }
+  }
+
+  /**
+   * Rates (A1:B2), Orders (D1:F2) with Total = Qty * rate * Discount (H1), and Totals (I1:I2) with
+   * the sum of the totals of the orders
+   */
+  private static byte[] workbook() throws Exception {
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      XSSFSheet sheet = workbook.createSheet("Sheet1");
+      Row header = sheet.createRow(0), first = sheet.createRow(1);
+      String[] headers = {"Rate", "Code", "", "Code", "Qty", "Total", "", "Discount", "Total"};
+      for (int c = 0; c < headers.length; c++) {
+        if (headers[c].isEmpty()) continue;
+        header.createCell(c).setCellValue(headers[c]);
+        first.createCell(c);
+      }
+      table(sheet, 0, 1, "Rates");
+      table(sheet, 3, 5, "Orders");
+      table(sheet, 8, 8, "Totals");
+      XSSFName discount = workbook.createName();
+      discount.setNameName("Discount");
+      discount.setRefersToFormula("Sheet1!$H$2");
+      first.getCell(5).setCellFormula("Orders[[#This Row],[Qty]]*SUM(Rates[Rate])*Discount");
+      first.getCell(8).setCellFormula("SUM(Orders[Total])");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      workbook.write(bytes);
+      return bytes.toByteArray();
+    }
+  }
+
+  private static void table(XSSFSheet sheet, int firstColumn, int lastColumn, String name) {
+    Exporter.createTableFromReference(
+        sheet,
+        new AreaReference(
+            new CellReference(0, firstColumn),
+            new CellReference(1, lastColumn),
+            SpreadsheetVersion.EXCEL2007),
+        name);
+  }
+}
@@ -1,7 +1,21 @@
 package com.molnify.xlport.core;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import com.molnify.xlport.pdf.ExportFormat;
+import com.molnify.xlport.pdf.FakeDrive;
 import com.molnify.xlport.pdf.PDFExporter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -22,4 +36,80 @@ public class PDFExporterTest {
     System.out.println(PDFExporter.toFile(template1.workbook, new ExportFormat()));
     template1.workbook.close();
   }
+
+  @Test
+  public void testDriveExportPollsAndDeletesInBatches() throws Exception {
+    try (FakeDrive drive = new FakeDrive().setNotReadyResponses(2).configure();
+        Template template =
+            TemplateManager.getLocalTemplateInTestDirectory("Sample template.xlsx")) {
+      List<String> ids = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        String id = PDFExporter.uploadAndReturnId(template.workbook);
+        ids.add(id);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PDFExporter.downloadExport(id, new ExportFormat(), out);
+        assertArrayEquals(FakeDrive.PDF, out.toByteArray());
+        // Not ready twice, then served
+        assertEquals(3, drive.getExportRequests(id));
+      }
+      assertEquals(3, drive.getUploads().size());
+      assertTrue(drive.getDeleted().isEmpty());
+
+      for (String id : ids) PDFExporter.deleteLater(id);
+      assertTrue(PDFExporter.awaitCleanup(10000));
+      assertEquals(ids, drive.getDeleted());
+      // All three deletes were sent together
+      assertEquals(1, drive.getBatchRequests());
+    }
+  }
+
+  @Test
+  public void testDriveExportGivesUpOnErrors() throws Exception {
+    try (FakeDrive drive = new FakeDrive().configure()) {
+      try {
+        // A bad request is not retried
+        PDFExporter.downloadExport("missing/x", new ExportFormat(), new ByteArrayOutputStream());
+        fail("Expected the export to fail");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("missing/x"));
+      }
+    }
+  }
+
+  @Test
+  public void testToStreamUploadsWithoutTempFiles() throws Exception {
+    File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+    FilenameFilter exports = (dir, name) -> name.startsWith("xlport-temp-pdfexport");
+    int tmpFiles = tmpDir.list(exports).length;
+    PDFExporter.setRenderer("drive");
+    try (FakeDrive drive = new FakeDrive().configure();
+        Template template =
+            TemplateManager.getLocalTemplateInTestDirectory("Sample template.xlsx")) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      PDFExporter.toStream(template.workbook, new ExportFormat(), out);
+      assertArrayEquals(FakeDrive.PDF, out.toByteArray());
+
+      // The workbook was written into the (multipart) request body, and can be read back
+      byte[] body = drive.getUploads().values().iterator().next();
+      int start = indexOf(body, new byte[] {'P', 'K', 3, 4});
+      assertTrue(start > 0);
+      try (XSSFWorkbook uploaded =
+          new XSSFWorkbook(new ByteArrayInputStream(body, start, body.length - start))) {
+        assertEquals(template.workbook.getNumberOfSheets(), uploaded.getNumberOfSheets());
+      }
+      assertEquals(tmpFiles, tmpDir.list(exports).length);
+      assertTrue(PDFExporter.awaitCleanup(10000));
+    } finally {
+      PDFExporter.setRenderer(null);
+    }
+  }
+
+  private static int indexOf(byte[] bytes, byte[] pattern) {
+    outer:
+    for (int i = 0; i <= bytes.length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) if (bytes[i + j] != pattern[j]) continue outer;
+      return i;
+    }
+    return -1;
+  }
 }
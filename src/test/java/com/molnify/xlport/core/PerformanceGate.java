@@ -0,0 +1,221 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Performance gates for the test suites. A suite is measured (wall time, bytes allocated by all
+ * threads and peak heap above the heap in use at the start, after a collection) and compared against the checked-in baseline in {@link #BASELINE_FILE}. A
+ * suite fails if any measurement exceeds its budget, which is the baseline times the tolerance
+ * factor plus the slack, both of which are also in the baseline file.
+ *
+ * <p>Suites without a baseline are only logged. To record new baselines (after an intended change,
+ * or on a new suite), run the tests with {@code -Dxlport.perf.record=true}, which rewrites the
+ * entries of the suites that ran. To run without the gates (e.g., under a profiler or debugger),
+ * use {@code -Dxlport.perf.skip=true}.
+ *
+ * @author kirsten
+ */
+class PerformanceGate {
+  private static final Logger log = Logger.getLogger(PerformanceGate.class.getName());
+
+  static final String BASELINE_FILE = "src/test/resources/test-suites/performance-baseline.json";
+  static final boolean RECORD = Boolean.getBoolean("xlport.perf.record"),
+      SKIP = Boolean.getBoolean("xlport.perf.skip");
+
+  private static final String WALL_TIME = "wallTimeMs",
+      ALLOCATED = "allocatedBytes",
+      PEAK_HEAP = "peakHeapBytes";
+  private static final String[] METRICS = {WALL_TIME, ALLOCATED, PEAK_HEAP};
+
+  private static final Map<String, Measurement> recorded = new TreeMap<>();
+
+  /** Starts measuring the suite with the given id, e.g., "export/1table" */
+  static Measurement start(String suite) {
+    return new Measurement(suite);
+  }
+
+  static class Measurement {
+    final String suite;
+    long wallTimeMs, allocatedBytes, peakHeapBytes;
+    private final long startNanos, startHeap;
+    private final Map<Long, Long> startAllocated;
+
+    private Measurement(String suite) {
+      this.suite = suite;
+      // Collect the garbage of earlier suites, so that the peak is that of this suite only
+      System.gc();
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+          used += pool.getUsage().getUsed();
+        }
+      startHeap = used;
+      startAllocated = allocatedBytes();
+      startNanos = System.nanoTime();
+    }
+
+    void stop() {
+      wallTimeMs = (System.nanoTime() - startNanos) / 1000000;
+      for (Map.Entry<Long, Long> e : allocatedBytes().entrySet())
+        allocatedBytes += e.getValue() - startAllocated.getOrDefault(e.getKey(), 0L);
+      // The sum of the peaks of all pools is an upper bound, as they need not peak at once
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+      peakHeapBytes = Math.max(0, peak - startHeap);
+      log.info("Performance of [" + suite + "]: " + toJSON());
+    }
+
+    /** Fails if the (stopped) measurement is outside the budget of the baseline */
+    void check() {
+      PerformanceGate.check(this);
+    }
+
+    long get(String metric) {
+      switch (metric) {
+        case WALL_TIME:
+          return wallTimeMs;
+        case ALLOCATED:
+          return allocatedBytes;
+        default:
+          return peakHeapBytes;
+      }
+    }
+
+    JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      for (String metric : METRICS) json.put(metric, get(metric));
+      return json;
+    }
+  }
+
+  /**
+   * Bytes allocated so far by each live thread, by thread id. All threads are counted, as exports
+   * do much of their work on pools (see {@link ValuePipeline} and {@link SheetWriters}). Threads
+   * that end during a measurement are not counted, which pool threads do not.
+   */
+  private static Map<Long, Long> allocatedBytes() {
+    Map<Long, Long> allocated = new HashMap<>();
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return allocated;
+    long[] ids = bean.getAllThreadIds();
+    long[] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+    // -1 for threads that ended since their ids were taken
+    for (int i = 0; i < ids.length; i++) if (bytes[i] >= 0) allocated.put(ids[i], bytes[i]);
+    return allocated;
+  }
+
+  private static void check(Measurement measurement) {
+    if (RECORD) {
+      synchronized (recorded) {
+        recorded.put(measurement.suite, measurement);
+      }
+      return;
+    }
+    if (SKIP) return;
+    JSONObject baseline = readBaseline();
+    JSONObject expected = baseline.getJSONObject("suites").optJSONObject(measurement.suite);
+    if (expected == null) {
+      log.info("No performance baseline for [" + measurement.suite + "], not checked");
+      return;
+    }
+    StringBuilder report = new StringBuilder();
+    for (String metric : METRICS) {
+      if (!expected.has(metric)) continue;
+      long value = measurement.get(metric), base = expected.getLong(metric);
+      long budget =
+          (long) (base * baseline.getJSONObject("tolerance").getDouble(metric))
+              + baseline.getJSONObject("slack").getLong(metric);
+      if (value > budget)
+        report
+            .append("\n  ")
+            .append(metric)
+            .append(": ")
+            .append(value)
+            .append(" exceeds the budget of ")
+            .append(budget)
+            .append(" (baseline ")
+            .append(base)
+            .append(", ")
+            .append(String.format("%.1f", base == 0 ? 0 : 100.0 * (value - base) / base))
+            .append("% more)");
+    }
+    if (report.length() > 0)
+      fail(
+          "Performance regression in ["
+              + measurement.suite
+              + "]:"
+              + report
+              + "\nIf intended, record a new baseline with -Dxlport.perf.record=true");
+  }
+
+  private static JSONObject readBaseline() {
+    try {
+      return new JSONObject(Utils.readFileAsString(BASELINE_FILE, false));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read " + BASELINE_FILE, e);
+    }
+  }
+
+  /**
+   * Writes the measurements recorded in this run to the baseline file, keeping the entries of
+   * suites that did not run. Does nothing unless recording. Call this after all suites have run.
+   */
+  static void writeBaselineIfRecording() throws IOException {
+    if (!RECORD) return;
+    JSONObject baseline = readBaseline();
+    Map<String, JSONObject> suites = new TreeMap<>();
+    JSONObject existing = baseline.getJSONObject("suites");
+    for (String suite : existing.keySet()) suites.put(suite, existing.getJSONObject(suite));
+    synchronized (recorded) {
+      for (Measurement m : recorded.values()) suites.put(m.suite, m.toJSON());
+      recorded.clear();
+    }
+
+    // Written by hand, as JSONObject does not keep the keys in order, and sorted keys keep the
+    // diffs of the checked-in file readable
+    StringBuilder s = new StringBuilder("{\n");
+    s.append("  \"tolerance\": ").append(ordered(baseline.getJSONObject("tolerance"))).append(",\n");
+    s.append("  \"slack\": ").append(ordered(baseline.getJSONObject("slack"))).append(",\n");
+    s.append("  \"suites\": {");
+    String separator = "\n";
+    for (Map.Entry<String, JSONObject> e : suites.entrySet()) {
+      s.append(separator)
+          .append("    ")
+          .append(JSONObject.quote(e.getKey()))
+          .append(": ")
+          .append(ordered(e.getValue()));
+      separator = ",\n";
+    }
+    s.append("\n  }\n}\n");
+    Path path = Paths.get(System.getProperty("user.dir"), BASELINE_FILE);
+    Files.write(path, s.toString().getBytes(StandardCharsets.UTF_8));
+    log.info("Wrote performance baseline to " + path);
+  }
+
+  private static String ordered(JSONObject metrics) {
+    StringBuilder s = new StringBuilder("{");
+    String separator = "";
+    for (String metric : METRICS) {
+      if (!metrics.has(metric)) continue;
+      s.append(separator).append('"').append(metric).append("\": ").append(metrics.get(metric));
+      separator = ", ";
+    }
+    return s.append('}').toString();
+  }
+}
@@ -0,0 +1,134 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SheetWritersTest {
+  private int threads;
+
+  @Before
+  public void setUp() {
+    threads = SheetWriters.getThreads();
+    // The expected results are those of sheets populated one after the other
+    SheetWriters.configure(1);
+  }
+
+  @After
+  public void tearDown() {
+    // As configured before, e.g., by XLPORT_SHEET_THREADS, for the tests that run after
+    SheetWriters.configure(threads);
+  }
+
+  @Test
+  public void testSheetsPopulatedInParallelAsOneAfterTheOther() throws Exception {
+    TemplateGenerator generator =
+        new TemplateGenerator(45)
+            .setSheets(3)
+            .setSheetsFromTemplate(6)
+            .setStyled(true)
+            .setDataValidationsPerTable(1)
+            .setConditionalFormatsPerTable(1);
+    JSONObject data = generator.data(300);
+    for (int s = 1; s <= 3; s++) {
+      JSONArray table = data.getJSONArray(TemplateGenerator.tableName(s, 1));
+      for (int r = 10; r < 20; r++)
+        table
+            .getJSONObject(r)
+            .put("Col2", new JSONObject().put("data", r).put("format", "0.000"))
+            .put("Col3", JSONObject.NULL);
+      table.put(25, "not a row");
+    }
+
+    JSONArray expectedErrors = new JSONArray();
+    try (Template expected = TemplateGenerator.open(generator.templateBytes())) {
+      Exporter.exportToExcel(new JSONObject(data.toString()), expected, expectedErrors, true);
+      SheetWriters.configure(4);
+      JSONArray errors = new JSONArray();
+      try (Template actual = TemplateGenerator.open(generator.templateBytes())) {
+        Exporter.exportToExcel(new JSONObject(data.toString()), actual, errors, true);
+        assertEquals(3, errors.length());
+        // The same errors, in the order of the sheets rather than that of the keys
+        assertEquals(sorted(expectedErrors), sorted(errors));
+        ValuePipelineTest.assertSameCells(expected.workbook, actual.workbook);
+
+        // Cells with the same style and format share a style
+        XSSFSheet sheet = actual.workbook.getSheet("Sheet2");
+        int row = generator.getFirstDataRow();
+        assertEquals(
+            sheet.getRow(row + 10).getCell(1).getCellStyle().getIndex(),
+            sheet.getRow(row + 19).getCell(1).getCellStyle().getIndex());
+        assertEquals(
+            "0.000", sheet.getRow(row + 19).getCell(1).getCellStyle().getDataFormatString());
+      }
+    }
+  }
+
+  @Test
+  public void testShrinkingTablesWithFormulasInParallel() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(45).setSheets(4).setTablesPerSheet(2);
+    int templateRows = 30, first = generator.getFirstDataRow();
+    byte[] bytes;
+    // Tables with more rows in the template than in the data, with formulas in all of them
+    try (XSSFWorkbook workbook = generator.workbook()) {
+      for (int s = 0; s < workbook.getNumberOfSheets(); s++) {
+        XSSFSheet sheet = workbook.getSheetAt(s);
+        for (XSSFTable table : sheet.getTables()) {
+          table.setDataRowCount(templateRows);
+          int formulaColumn = table.getEndColIndex();
+          for (int r = first + 1; r < first + templateRows; r++) {
+            XSSFRow row = sheet.getRow(r) == null ? sheet.createRow(r) : sheet.getRow(r);
+            row.createCell(formulaColumn)
+                .setCellFormula(
+                    new CellReference(r, table.getStartColIndex() + 1).formatAsString());
+          }
+        }
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      workbook.write(out);
+      bytes = out.toByteArray();
+    }
+    JSONObject data = generator.data(5);
+
+    JSONArray expectedErrors = new JSONArray();
+    try (Template expected = TemplateGenerator.open(bytes)) {
+      Exporter.exportToExcel(new JSONObject(data.toString()), expected, expectedErrors, true);
+      SheetWriters.configure(4);
+      JSONArray errors = new JSONArray();
+      try (Template actual = TemplateGenerator.open(bytes)) {
+        Exporter.exportToExcel(new JSONObject(data.toString()), actual, errors, true);
+        assertEquals(expectedErrors.toString(), errors.toString());
+        ValuePipelineTest.assertSameCells(expected.workbook, actual.workbook);
+        for (XSSFTable table : actual.workbook.getSheet("Sheet3").getTables()) {
+          assertEquals(5, table.getDataRowCount());
+          Cell removed = table.getXSSFSheet().getRow(first + 10).getCell(table.getEndColIndex());
+          assertTrue(removed == null || removed.getCellType() == CellType.BLANK);
+        }
+      }
+    }
+  }
+
+  private static List<String> sorted(JSONArray errors) {
+    List<String> sorted = new ArrayList<>();
+    for (Object error : errors) sorted.add(error.toString());
+    Collections.sort(sorted);
+    return sorted;
+  }
+}
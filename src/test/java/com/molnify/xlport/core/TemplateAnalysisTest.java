@@ -0,0 +1,59 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class TemplateAnalysisTest {
+
+  @Test
+  public void testAnalyze() throws Exception {
+    TemplateGenerator generator =
+        new TemplateGenerator(48)
+            .setSheets(2)
+            .setTablesPerSheet(2)
+            .setDataValidationsPerTable(1)
+            .setConditionalFormatsPerTable(1);
+    try (Template template = generator.template()) {
+      JSONObject analysis = TemplateAnalysis.analyze(template);
+      assertEquals(2, analysis.getInt("sheets"));
+      assertEquals(2, analysis.getInt("namedRanges"));
+      assertEquals(4, analysis.getJSONArray("tables").length());
+      assertEquals(4, analysis.getInt("dataValidations"));
+      assertEquals(4, analysis.getInt("conditionalFormattingRules"));
+      assertTrue(analysis.getInt("definedNames") >= 2);
+      assertTrue(analysis.getInt("formulaCells") >= 4);
+      JSONObject table = analysis.getJSONArray("tables").getJSONObject(0);
+      assertEquals(TemplateGenerator.tableName(1, 1), table.getString("name"));
+      assertEquals("Sheet1", table.getString("sheet"));
+      assertEquals(10, table.getInt("columns"));
+      assertEquals(1, table.getInt("formulaColumns"));
+      assertEquals(2, analysis.getJSONArray("sheetDetails").getJSONObject(1).getInt("tables"));
+    }
+  }
+
+  @Test
+  public void testEstimate() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(48).setSheets(2).setTablesPerSheet(2);
+    try (Template template = generator.template()) {
+      JSONObject fromData =
+          TemplateAnalysis.estimate(template, new JSONObject().put("data", generator.data(100)));
+      // The rows of the 4 tables have 9 data columns and 1 formula column, each sheet a property
+      assertEquals(2 * (1 + 2 * 100 * 10), fromData.getLong("cells"));
+      assertEquals(
+          TemplateAnalysis.analyze(template).getLong("formulaCells") + 4 * 99,
+          fromData.getLong("formulaCells"));
+      assertTrue(fromData.getLong("memoryBytes") > 0);
+      assertTrue(fromData.getLong("timeMs") > 0);
+      JSONObject fromRows =
+          TemplateAnalysis.estimate(template, new JSONObject().put("rowsPerTable", 100));
+      assertEquals(fromData.toString(), fromRows.toString());
+      JSONObject fromBytes =
+          TemplateAnalysis.estimate(template, new JSONObject().put("payloadBytes", 20_000));
+      assertEquals(1000, fromBytes.getLong("cells"));
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.util.Arrays;
+import java.util.Collections;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+public class TemplateWarmupTest {
+
+  @After
+  public void tearDown() {
+    TemplateCache.clear();
+  }
+
+  @Test
+  public void testWarmUpCachesTemplates() throws Exception {
+    TemplateWarmup.start(Arrays.asList("template1.xlsx", "missing.xlsx"), 60_000);
+    assertTrue(TemplateWarmup.await(60_000));
+    assertTrue(TemplateWarmup.isDone());
+    assertEquals(1, TemplateCache.size());
+    assertNotNull(TemplateCache.get("template1.xlsx"));
+    try (Template template = TemplateManager.getTemplate("template1.xlsx")) {
+      assertEquals("template1.xlsx", template.originalFileName);
+      assertFalse(template.items.isEmpty());
+    }
+  }
+
+  @Test
+  public void testDoneOnTimeout() throws Exception {
+    TemplateWarmup.start(Collections.singletonList("template1.xlsx"), 0);
+    // Ready without waiting for the template, which is still warmed up
+    assertTrue(TemplateWarmup.isDone());
+    assertTrue(TemplateWarmup.await(60_000));
+    TemplateWarmup.start(Collections.emptyList(), 60_000);
+    assertTrue(TemplateWarmup.isDone());
+  }
+
+  @Test
+  public void testSyntheticDataExportsWithoutErrors() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(49).setSheets(2).setTablesPerSheet(2);
+    try (Template template = generator.template()) {
+      JSONObject data = TemplateWarmup.syntheticData(template);
+      assertEquals(2 + 4, data.length());
+      JSONArray rows = data.getJSONArray(TemplateGenerator.tableName(1, 1));
+      assertEquals(TemplateWarmup.ROWS, rows.length());
+      assertEquals(generator.getDataColumnsPerTable(), rows.getJSONObject(0).length());
+      JSONArray errors = new JSONArray();
+      Exporter.exportToExcel(data, template, errors, true);
+      assertEquals(errors.toString(), 0, errors.length());
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Test;
+
+public class TemplateWatcherTest {
+  private static final String ID = "template1.xlsx";
+
+  @After
+  public void tearDown() {
+    TemplateWatcher.stop();
+    TemplateCache.clear();
+  }
+
+  @Test
+  public void testReloadSwapsCachedTemplate() {
+    TemplateCache.put(ID, "stale", new byte[] {1});
+    assertTrue(TemplateWatcher.reload(ID));
+    byte[] bytes = TemplateCache.get(ID);
+    assertNotNull(bytes);
+    assertArrayEquals(TemplateManager.getTemplateBytes(ID), bytes);
+    // Templates that are not cached are read when requested
+    assertFalse(TemplateWatcher.reload("other.xlsx"));
+    assertFalse(TemplateCache.isTracked("other.xlsx"));
+  }
+
+  @Test
+  public void testReloadAfterRequestFoundTheChange() {
+    TemplateCache.put(ID, "stale", new byte[] {1});
+    // A request between the change and the reload removes the template from the cache
+    assertNull(TemplateCache.get(ID));
+    assertTrue(TemplateWatcher.reload(ID));
+    assertArrayEquals(TemplateManager.getTemplateBytes(ID), TemplateCache.get(ID));
+  }
+
+  @Test
+  public void testChangedFileIsReloaded() throws Exception {
+    Path dir = Files.createTempDirectory("xlport-templates");
+    try {
+      assertTrue(TemplateWatcher.start(dir));
+      assertFalse(TemplateWatcher.start(dir));
+      // Served until reloaded, as the version is current
+      TemplateCache.put(ID, TemplateManager.getTemplateVersion(ID), new byte[] {1});
+      // The file in the watched directory has the id of the cached template
+      Files.write(dir.resolve(ID), new byte[] {2});
+      long deadline = System.currentTimeMillis() + 30_000;
+      while (TemplateCache.get(ID).length == 1 && System.currentTimeMillis() < deadline)
+        Thread.sleep(50);
+      assertArrayEquals(TemplateManager.getTemplateBytes(ID), TemplateCache.get(ID));
+    } finally {
+      TemplateWatcher.stop();
+      Files.deleteIfExists(dir.resolve(ID));
+      Files.delete(dir);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.pdf.ExportFormat;
+import com.molnify.xlport.pdf.PDFRenderer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Exports every suite in the export test suites twice, and checks that both exports are byte for
+ * byte the same (for the workbook and the locally rendered PDF).
+ *
+ * @author kirsten
+ */
+public class TestDeterministicExport {
+  private static final String TEST_DIRECTORY = "src/test/resources/test-suites/export/";
+
+  @Test
+  public void testEverySuiteExportsIdentically() throws Exception {
+    File[] dirs = new File(TEST_DIRECTORY).listFiles(File::isDirectory);
+    Arrays.sort(dirs);
+    List<String> differing = new ArrayList<>();
+    int compared = 0;
+    for (File dir : dirs) {
+      // The "sheets" suite reads its template from Google Sheets, which needs credentials
+      if (!new File(dir, "request.json").isFile() || dir.getName().equals("sheets")) continue;
+      String[] workbooks = new String[2], pdfs = new String[2];
+      for (int i = 0; i < 2; i++) {
+        try (Template template =
+            TemplateManager.getLocalTemplateFromDirectory(dir.getPath(), "template.xlsx")) {
+          JSONObject json =
+              new JSONObject(Utils.readFileAsString(dir.getPath() + "/request.json", true));
+          Exporter.exportToExcel(json.getJSONObject("data"), template, new JSONArray(), true);
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          Utils.writeWorkbookDeterministic(template.workbook, out);
+          workbooks[i] = sha256(out.toByteArray());
+          out.reset();
+          PDFRenderer.render(template.workbook, new ExportFormat(), out);
+          pdfs[i] = sha256(out.toByteArray());
+        }
+        // Zip entries would otherwise differ in their time stamps (to within two seconds)
+        if (i == 0 && compared == 0) Thread.sleep(2100);
+      }
+      if (!workbooks[0].equals(workbooks[1])) differing.add(dir.getName() + " (xlsx)");
+      if (!pdfs[0].equals(pdfs[1])) differing.add(dir.getName() + " (pdf)");
+      compared++;
+    }
+    assertTrue(compared > 30);
+    assertEquals("Exports that differ between runs", new ArrayList<String>(), differing);
+  }
+
+  private static String sha256(byte[] bytes) throws Exception {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+}
@@ -1,9 +1,13 @@
 package com.molnify.xlport.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.molnify.xlport.TemplateGenerator;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,6 +36,64 @@ public class TestExporter {
     }
   }
 
+  @Test
+  public void testDeadline() throws IOException {
+    TemplateGenerator generator = new TemplateGenerator(7).setSheets(2);
+    JSONArray potentialErrors = new JSONArray();
+    try (Template template = generator.template()) {
+      ExportContext context = new ExportContext().setDeadline(System.currentTimeMillis() - 1);
+      Exporter.exportToExcel(generator.data(5000), template, potentialErrors, true, context);
+      fail("Should stop at the deadline");
+    } catch (CancellationException e) {
+      assertEquals("Export deadline exceeded at data", e.getMessage());
+      assertEquals(1, potentialErrors.length());
+      assertEquals("data", potentialErrors.getJSONObject(0).getString("phase"));
+    }
+    try (Template template = generator.template()) {
+      ExportContext context = new ExportContext();
+      Exporter.exportToExcel(generator.data(5000), template, new JSONArray(), true, context);
+      assertEquals("evaluation", context.getPhase());
+      assertEquals(context.getTotalRows(), context.getRowsWritten());
+      assertTrue(context.getTotalRows() > 10000);
+    }
+  }
+
+  @Test
+  public void testCancelReportsWhereTheExportStopped() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(7);
+    JSONObject data = generator.data(200000);
+    ExportContext context = new ExportContext();
+    JSONArray potentialErrors = new JSONArray();
+    AtomicReference<Exception> stopped = new AtomicReference<>();
+    try (Template template = generator.template()) {
+      Thread export =
+          new Thread(
+              () -> {
+                try {
+                  Exporter.exportToExcel(data, template, potentialErrors, true, context);
+                } catch (CancellationException e) {
+                  stopped.set(e);
+                }
+              });
+      export.start();
+      while (context.getRowsWritten() < 10 && export.isAlive()) Thread.sleep(1);
+      context.cancel();
+      export.join();
+    }
+    assertTrue(
+        stopped.get().getMessage(),
+        stopped
+            .get()
+            .getMessage()
+            .matches(
+                "Export cancelled at table "
+                    + TemplateGenerator.tableName(1, 1)
+                    + " [0-9]+/200000 rows"));
+    JSONObject error = potentialErrors.getJSONObject(potentialErrors.length() - 1);
+    assertEquals(TemplateGenerator.tableName(1, 1), error.getString("key"));
+    assertTrue(error.getLong("rowsWritten") < error.getLong("totalRows"));
+  }
+
   private void assertCertainNumberOfErrorsInExport(
       String jsonRequestFileName, String templateId, int numberOfErrors) throws IOException {
     String exportRequest = Utils.readFileAsString(jsonRequestFileName, false);
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import com.molnify.xlport.TemplateGenerator;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -122,6 +123,30 @@ public class TestImporter {
     assertEquals(3, result.getJSONObject(Importer.TABLES).keySet().size());
   }
 
+  @Test
+  public void testDeadline() throws IOException {
+    TemplateGenerator generator = new TemplateGenerator(3);
+    try (Template template = generator.template()) {
+      Exporter.exportToExcel(generator.data(2500), template, new JSONArray(), true);
+      String table = TemplateGenerator.tableName(1, 1);
+      JSONObject request = new JSONObject().put(Importer.TABLES, new JSONArray().put(table));
+      JSONArray potentialErrors = new JSONArray();
+      // Already past the deadline, so the import stops at the first check
+      JSONObject result =
+          Importer.importData(
+              request, template.workbook, potentialErrors, false, System.currentTimeMillis() - 1);
+      assertEquals(1, potentialErrors.length());
+      JSONObject error = potentialErrors.getJSONObject(0);
+      assertEquals(
+          "Import deadline exceeded at table " + table + " 999/2500 rows",
+          error.getString("message"));
+      assertEquals("tables", error.getString("phase"));
+      assertEquals(table, error.getString("key"));
+      assertEquals(999, error.getLong("rowsRead"));
+      assertTrue(result.has(Importer.TABLES));
+    }
+  }
+
   @Test
   public void extractMultipleValuesFromSingleCellInTable() throws IOException {
     Workbook wb =
@@ -19,6 +19,7 @@ import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.ss.util.CellRangeUtil;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.junit.AfterClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -80,6 +81,11 @@ public class TestSuiteExporter {
         "1table-10col-100rows-withnull"
       };
 
+  @AfterClass
+  public static void recordPerformance() throws IOException {
+    PerformanceGate.writeBaselineIfRecording();
+  }
+
   @Test
   public void test1object() throws Exception {
     runSingleTestInSuite(new File(TEST_DIRECTORY + knownTestSuites[0]));
@@ -364,6 +370,7 @@ public class TestSuiteExporter {
 
     // Export without and reported errors
     try {
+      PerformanceGate.Measurement performance = PerformanceGate.start("export/" + dir.getName());
       JSONArray potentialErrors = new JSONArray();
       Exporter.exportToExcel(json.getJSONObject("data"), template, potentialErrors, true);
       if (potentialErrors.length() > 0)
@@ -373,6 +380,7 @@ public class TestSuiteExporter {
       // Ensure the created workbook matched the expected
       File out = File.createTempFile("exported", ".xlsx");
       Utils.writeOutWorkbookAsFile(template, out);
+      performance.stop();
       log.info("Exported file can be found @ " + out.getAbsolutePath());
       log.info("Expected file can be found @ " + path + EXPECTED);
 
@@ -385,6 +393,7 @@ public class TestSuiteExporter {
 
       if (additionalTestMethod != null)
         additionalTestMethod.accept(new Workbook[] {expected, template.workbook});
+      performance.check();
     } catch (Exception e) {
       e.printStackTrace();
       fail(e.getMessage());
@@ -17,6 +17,7 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.junit.AfterClass;
 import org.junit.Test;
 
 /**
@@ -35,6 +36,11 @@ public class TestSuiteImporter {
   private static final String[] knownTestSuites =
       new String[] {"1object", "1table", "1table-10col-100rows", "v2importMultipleSheets"};
 
+  @AfterClass
+  public static void recordPerformance() throws IOException {
+    PerformanceGate.writeBaselineIfRecording();
+  }
+
   @Test
   public void test1object() throws Exception {
     runSingleTestInSuite(new File(TEST_DIRECTORY + knownTestSuites[0]));
@@ -74,10 +80,12 @@ public class TestSuiteImporter {
     XSSFWorkbook workbook = new XSSFWorkbookFactory().create(workbookFile, null, true);
 
     try {
+      PerformanceGate.Measurement performance = PerformanceGate.start("import/" + dir.getName());
       JSONArray potentialErrors = new JSONArray();
       JSONObject result;
       if (request == null) result = Importer.importAllData(workbook, potentialErrors, true);
       else result = Importer.importData(request, workbook, potentialErrors, true);
+      performance.stop();
 
       if (potentialErrors.length() > 0)
         fail(
@@ -95,6 +103,7 @@ public class TestSuiteImporter {
       String errorMessage = Maps.difference(firstMap, secondMap).toString();
       if (!"equal".equals(errorMessage))
         fail("Error in test [" + dir.getName() + "]: " + errorMessage);
+      performance.check();
     } catch (Exception e) {
       e.printStackTrace();
       fail(e.getMessage());
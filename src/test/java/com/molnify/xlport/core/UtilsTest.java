@@ -7,8 +7,11 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Test;
 
@@ -33,6 +36,59 @@ public class UtilsTest {
     assertEquals((errors.size() > 0) ? errors.get(0) : "no error", 0, errors.size());
   }
 
+  @Test
+  public void testRemapColumns() throws Exception {
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      XSSFSheet sheet = workbook.createSheet("Sheet1");
+      // Columns A (kept), B-D (replaced) and E (after, with a formula)
+      for (int r = 0; r < 4; r++) {
+        Row row = sheet.createRow(r);
+        for (int c = 0; c < 4; c++) row.createCell(c).setCellValue("ABCD".charAt(c) + "" + r);
+        row.createCell(4).setCellFormula("A" + (r + 1));
+      }
+      sheet.addMergedRegion(new CellRangeAddress(2, 3, 3, 3)); // D3:D4
+      sheet.addMergedRegion(new CellRangeAddress(0, 0, 4, 5)); // E1:F1, after
+
+      // D, B, C, D into where B-D were
+      Utils.remapColumns(sheet, new int[] {3, 1, 2, 3}, sheet, 1, 3);
+
+      for (int r = 0; r < 4; r++) {
+        Row row = sheet.getRow(r);
+        assertEquals("A" + r, row.getCell(0).getStringCellValue());
+        assertEquals("D" + r, row.getCell(1).getStringCellValue());
+        assertEquals("B" + r, row.getCell(2).getStringCellValue());
+        assertEquals("C" + r, row.getCell(3).getStringCellValue());
+        assertEquals("D" + r, row.getCell(4).getStringCellValue());
+        assertEquals("A" + (r + 1), row.getCell(5).getCellFormula());
+      }
+      List<String> merged = new ArrayList<>();
+      for (CellRangeAddress region : sheet.getMergedRegions()) merged.add(region.formatAsString());
+      merged.sort(null);
+      // The merged column is copied along, and the one after is shifted
+      assertEquals(Arrays.asList("B3:B4", "E3:E4", "F1:G1"), merged);
+    }
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      XSSFSheet sheet = workbook.createSheet("Sheet1");
+      // Columns A (kept) and B-E (replaced), the last filled columns of the sheet
+      for (int r = 0; r < 4; r++) {
+        Row row = sheet.createRow(r);
+        for (int c = 0; c < 5; c++) row.createCell(c).setCellValue("ABCDE".charAt(c) + "" + r);
+      }
+
+      // C, B into where B-E were
+      Utils.remapColumns(sheet, new int[] {2, 1}, sheet, 1, 4);
+
+      for (int r = 0; r < 4; r++) {
+        Row row = sheet.getRow(r);
+        assertEquals("A" + r, row.getCell(0).getStringCellValue());
+        assertEquals("C" + r, row.getCell(1).getStringCellValue());
+        assertEquals("B" + r, row.getCell(2).getStringCellValue());
+        assertNull(row.getCell(3));
+        assertNull(row.getCell(4));
+      }
+    }
+  }
+
   @Test
   public void expandNormalName() {
     String[] names = Utils.expandName("normal");
@@ -0,0 +1,130 @@
+package com.molnify.xlport.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.molnify.xlport.TemplateGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+public class ValuePipelineTest {
+  private int threads;
+
+  @Before
+  public void setUp() {
+    threads = ValuePipeline.getThreads();
+  }
+
+  @After
+  public void tearDown() {
+    // As configured before, e.g., by XLPORT_PREPARE_THREADS, for the tests that run after
+    ValuePipeline.configure(threads);
+  }
+
+  @Test
+  public void testPreparedOnThreadsAsOnTheExportingThread() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(44).setSheets(2).setTablesPerSheet(2);
+    int rows = 2 * ValuePipeline.BATCH_ROWS + 500;
+    JSONObject data = generator.data(rows);
+    JSONArray table = data.getJSONArray(TemplateGenerator.tableName(1, 1));
+    table.getJSONObject(1500).put("Col1", new JSONObject().put("data", 1.5).put("format", "0.00"));
+    table.getJSONObject(2100).put("Col1", JSONObject.NULL);
+    table.put(1700, "not a row");
+
+    ValuePipeline.configure(1);
+    JSONArray expectedErrors = new JSONArray();
+    try (Template expected = TemplateGenerator.open(generator.templateBytes())) {
+      Exporter.exportToExcel(new JSONObject(data.toString()), expected, expectedErrors, true);
+      ValuePipeline.configure(4);
+      JSONArray errors = new JSONArray();
+      try (Template actual = TemplateGenerator.open(generator.templateBytes())) {
+        Exporter.exportToExcel(new JSONObject(data.toString()), actual, errors, true);
+        assertEquals(expectedErrors.toString(), errors.toString());
+        assertEquals(1, errors.length());
+        assertSameCells(expected.workbook, actual.workbook);
+      }
+    }
+  }
+
+  @Test
+  public void testInlineStrings() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(46).setTablesPerSheet(2);
+    JSONObject data = generator.data(200);
+    String table = TemplateGenerator.tableName(1, 1);
+    data.getJSONArray(table).getJSONObject(7).put("Col1", "  spaced ");
+    ExportContext context = new ExportContext().setStrings(new JSONObject().put(table, "inline"));
+    JSONArray errors = new JSONArray();
+    try (Template template = generator.template()) {
+      Exporter.exportToExcel(new JSONObject(data.toString()), template, errors, true, context);
+      assertEquals(errors.toString(), 0, errors.length());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      template.workbook.write(bytes);
+      try (XSSFWorkbook read = new XSSFWorkbook(new ByteArrayInputStream(bytes.toByteArray()))) {
+        XSSFSheet sheet = read.getSheet("Sheet1");
+        for (int r = 0; r < 200; r++) {
+          XSSFCell cell = sheet.getRow(generator.getFirstDataRow() + r).getCell(0);
+          assertEquals(STCellType.INLINE_STR, cell.getCTCell().getT());
+          assertEquals(
+              data.getJSONArray(table).getJSONObject(r).getString("Col1"),
+              cell.getStringCellValue());
+        }
+        // The other table, after a column between them, still shares its strings
+        XSSFCell other = sheet.getRow(generator.getFirstDataRow()).getCell(10 + 1);
+        assertEquals(STCellType.S, other.getCTCell().getT());
+      }
+    }
+  }
+
+  @Test
+  public void testAdaptiveStrings() {
+    JSONArray array = new JSONArray();
+    for (int i = 0; i < 10; i++)
+      array.put(
+          new JSONObject()
+              .put("Id", "id-" + i)
+              .put("Category", i % 2 == 0 ? "A" : "B")
+              .put("Amount", i)
+              .put("Note", new JSONObject().put("data", "note " + i)));
+    boolean[] inline =
+        ValuePipeline.inlineColumns(
+            array,
+            Arrays.asList("Id", "Category", "Amount", "Note"),
+            ExportContext.Strings.ADAPTIVE);
+    assertArrayEquals(new boolean[] {true, false, false, true}, inline);
+    assertArrayEquals(
+        new boolean[] {false, false},
+        ValuePipeline.inlineColumns(
+            array, Arrays.asList("Id", "Note"), ExportContext.Strings.SHARED));
+  }
+
+  static void assertSameCells(XSSFWorkbook expected, XSSFWorkbook actual) {
+    assertEquals(expected.getNumberOfSheets(), actual.getNumberOfSheets());
+    for (int s = 0; s < expected.getNumberOfSheets(); s++) {
+      XSSFSheet e = expected.getSheetAt(s), a = actual.getSheetAt(s);
+      assertEquals(e.getLastRowNum(), a.getLastRowNum());
+      for (Row row : e)
+        for (Cell cell : row) {
+          Cell other = a.getRow(row.getRowNum()).getCell(cell.getColumnIndex());
+          String where = e.getSheetName() + "!" + cell.getAddress();
+          assertEquals(where, cell.getCellType(), other.getCellType());
+          assertEquals(where, cell.toString(), other.toString());
+          assertEquals(
+              where,
+              cell.getCellStyle().getDataFormatString(),
+              other.getCellStyle().getDataFormatString());
+        }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.molnify.xlport.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Importer;
+import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.TemplateManager;
+import com.molnify.xlport.core.Utils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JfrEventsTest {
+
+  @Test
+  public void testExportAndImportEmitEvents() throws Exception {
+    Path dump = File.createTempFile("xlport", ".jfr").toPath();
+    try (Recording recording = new Recording()) {
+      for (String name :
+          new String[] {
+            "TemplateLoad",
+            "SheetTemplates",
+            "ExportKey",
+            "FormulaEvaluation",
+            "WorkbookWrite",
+            "ImportTable"
+          }) recording.enable("com.molnify.xlport." + name);
+      recording.start();
+
+      JSONObject json =
+          new JSONObject(Utils.readFileAsString("src/test/resources/export1.json", false));
+      Template template = TemplateManager.getTemplate("dummy");
+      JSONArray potentialErrors = new JSONArray();
+      Exporter.exportToExcel(json.getJSONObject("data"), template, potentialErrors, true);
+      assertEquals(0, potentialErrors.length());
+      Utils.writeWorkbook(template.workbook, new ByteArrayOutputStream());
+      Importer.importAllData(template.workbook, potentialErrors, false);
+      template.close();
+
+      recording.stop();
+      recording.dump(dump);
+    }
+
+    Map<String, Integer> counts = new HashMap<>();
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+    for (RecordedEvent e : events) counts.merge(e.getEventType().getName(), 1, Integer::sum);
+    dump.toFile().delete();
+
+    assertEquals(Integer.valueOf(1), counts.get("com.molnify.xlport.TemplateLoad"));
+    assertEquals(Integer.valueOf(1), counts.get("com.molnify.xlport.FormulaEvaluation"));
+    assertEquals(Integer.valueOf(1), counts.get("com.molnify.xlport.WorkbookWrite"));
+    assertTrue(counts.getOrDefault("com.molnify.xlport.ExportKey", 0) > 0);
+    assertTrue(counts.getOrDefault("com.molnify.xlport.ImportTable", 0) > 0);
+    for (RecordedEvent e : events)
+      if ("com.molnify.xlport.WorkbookWrite".equals(e.getEventType().getName()))
+        assertTrue(e.getLong("bytes") > 0);
+  }
+}
@@ -0,0 +1,177 @@
+package com.molnify.xlport.pdf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the parts of Google Drive that {@link PDFExporter} uses: uploads,
+ * permissions, (batched) deletes and the export URL. Point the exporter at it with {@link
+ * #configure()}. The export URL answers "not found" for the first {@link #setNotReadyResponses}
+ * requests of each document, as Google does until the export is ready.
+ *
+ * @author kirsten
+ */
+public class FakeDrive implements AutoCloseable {
+  public static final byte[] PDF =
+      "%PDF-1.4 exported by the fake Drive".getBytes(StandardCharsets.UTF_8);
+
+  private static final Pattern PART_REQUEST =
+      Pattern.compile("^(GET|POST|PUT|PATCH|DELETE) (\\S+) HTTP/1\\.1", Pattern.MULTILINE);
+
+  private final HttpServer server;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private volatile int notReadyResponses = 0;
+
+  private final Map<String, byte[]> uploads = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> exportRequests = new ConcurrentHashMap<>();
+  private final List<String> permissions = new CopyOnWriteArrayList<>();
+  private final List<String> deleted = new CopyOnWriteArrayList<>();
+  private final AtomicInteger batchRequests = new AtomicInteger();
+
+  public FakeDrive() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /** The number of times the export URL of a document answers 404 before serving it */
+  public FakeDrive setNotReadyResponses(int notReadyResponses) {
+    this.notReadyResponses = notReadyResponses;
+    return this;
+  }
+
+  /** The uploaded documents (the raw request bodies), by id */
+  public Map<String, byte[]> getUploads() {
+    return uploads;
+  }
+
+  /** The number of requests for the export of the given document */
+  public int getExportRequests(String id) {
+    AtomicInteger count = exportRequests.get(id);
+    return count == null ? 0 : count.get();
+  }
+
+  /** The ids of the deleted documents, in order of deletion */
+  public List<String> getDeleted() {
+    return deleted;
+  }
+
+  /** The number of batch requests received */
+  public int getBatchRequests() {
+    return batchRequests.get();
+  }
+
+  public String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  public String getExportUrl() {
+    return getRootUrl() + "spreadsheets/d/";
+  }
+
+  /** Points {@link PDFExporter} at this stand-in */
+  public FakeDrive configure() {
+    PDFExporter.setDriveEndpoints(getRootUrl(), getExportUrl());
+    return this;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod(), path = exchange.getRequestURI().getPath();
+    byte[] body = read(exchange.getRequestBody());
+    try {
+      if ("POST".equals(method) && path.equals("/upload/drive/v3/files")) {
+        String id = "document" + nextId.incrementAndGet();
+        uploads.put(id, body);
+        json(exchange, 200, "{\"id\": \"" + id + "\"}");
+      } else if ("POST".equals(method) && path.matches("/drive/v3/files/[^/]+/permissions")) {
+        permissions.add(path.split("/")[4]);
+        json(exchange, 200, "{\"id\": \"anyoneWithLink\", \"type\": \"anyone\"}");
+      } else if ("DELETE".equals(method) && path.startsWith("/drive/v3/files/")) {
+        deleted.add(path.substring("/drive/v3/files/".length()));
+        send(exchange, 204, null, new byte[0]);
+      } else if ("POST".equals(method) && path.equals("/batch/drive/v3")) {
+        batch(exchange, new String(body, StandardCharsets.UTF_8));
+      } else if ("GET".equals(method) && path.matches("/spreadsheets/d/[^/]+/export")) {
+        String id = path.split("/")[3];
+        int count = exportRequests.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet();
+        if (!uploads.containsKey(id) || !permissions.contains(id) || count <= notReadyResponses)
+          send(exchange, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+        else send(exchange, 200, "application/pdf", PDF);
+      } else {
+        send(exchange, 400, "text/plain", ("No " + method + " " + path).getBytes());
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** Answers each DELETE in a multipart batch request, in order, with "204 No Content" */
+  private void batch(HttpExchange exchange, String body) throws IOException {
+    batchRequests.incrementAndGet();
+    String boundary = "batch_fake_drive";
+    StringBuilder response = new StringBuilder();
+    Matcher m = PART_REQUEST.matcher(body);
+    int part = 0;
+    while (m.find()) {
+      part++;
+      // The parts address absolute URLs
+      String path = m.group(2).replaceFirst("^https?://[^/]+", "").replaceFirst("\\?.*", "");
+      boolean ok = "DELETE".equals(m.group(1)) && path.startsWith("/drive/v3/files/");
+      if (ok) deleted.add(path.substring("/drive/v3/files/".length()));
+      response
+          .append("--")
+          .append(boundary)
+          .append("\r\nContent-Type: application/http\r\nContent-ID: response-")
+          .append(part)
+          .append("\r\n\r\n")
+          .append(ok ? "HTTP/1.1 204 No Content" : "HTTP/1.1 404 Not Found")
+          .append("\r\nContent-Length: 0\r\n\r\n\r\n");
+    }
+    response.append("--").append(boundary).append("--\r\n");
+    send(
+        exchange,
+        200,
+        "multipart/mixed; boundary=" + boundary,
+        response.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void json(HttpExchange exchange, int status, String json) throws IOException {
+    send(
+        exchange, status, "application/json; charset=UTF-8", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) out.write(buffer, 0, len);
+    return out.toByteArray();
+  }
+}
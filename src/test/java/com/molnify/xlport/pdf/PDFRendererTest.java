@@ -0,0 +1,167 @@
+package com.molnify.xlport.pdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.molnify.xlport.TemplateGenerator;
+import com.molnify.xlport.core.Exporter;
+import com.molnify.xlport.core.Template;
+import com.molnify.xlport.core.TemplateManager;
+import com.molnify.xlport.core.Utils;
+import com.molnify.xlport.pdf.ExportFormat.SizeEnum;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class PDFRendererTest {
+
+  private static PDDocument render(XSSFWorkbook workbook, ExportFormat format) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PDFRenderer.render(workbook, format, out);
+    return PDDocument.load(out.toByteArray());
+  }
+
+  @Test
+  public void testRenderExportedTemplate() throws Exception {
+    Template template = TemplateManager.getLocalTemplateInTestDirectory("Sample template.xlsx");
+    JSONObject data =
+        new JSONObject(Utils.readFileAsString("src/test/resources/export1.json", false));
+    Exporter.exportToExcel(data.getJSONObject("data"), template, new JSONArray(), true);
+    try (PDDocument pdf = render(template.workbook, new ExportFormat())) {
+      assertTrue(pdf.getNumberOfPages() > 0);
+      PDRectangle box = pdf.getPage(0).getMediaBox();
+      assertEquals(SizeEnum.A4.width, box.getWidth(), 0.5);
+      assertEquals(SizeEnum.A4.height, box.getHeight(), 0.5);
+      assertFalse(new PDFTextStripper().getText(pdf).trim().isEmpty());
+    } finally {
+      template.close();
+    }
+  }
+
+  @Test
+  public void testValuesSizeAndPageNumbers() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(1).setStyled(true);
+    try (Template template = generator.template()) {
+      Exporter.exportToExcel(generator.data(200), template, new JSONArray(), true);
+      ExportFormat format =
+          new ExportFormat().setSize(SizeEnum.LETTER).setPortrait(false).setShowPageNumbers(true);
+      try (PDDocument pdf = render(template.workbook, format)) {
+        // 200 rows do not fit on a single page
+        assertTrue(pdf.getNumberOfPages() > 1);
+        PDRectangle box = pdf.getPage(0).getMediaBox();
+        assertEquals(SizeEnum.LETTER.height, box.getWidth(), 0.5);
+        String text = new PDFTextStripper().getText(pdf);
+        assertTrue(text.contains("Col1"));
+        String firstValue =
+            generator
+                .data(200)
+                .getJSONArray(TemplateGenerator.tableName(1, 1))
+                .getJSONObject(0)
+                .getString("Col1");
+        assertTrue(text.contains(firstValue));
+        PDFTextStripper lastPage = new PDFTextStripper();
+        lastPage.setStartPage(pdf.getNumberOfPages());
+        assertTrue(lastPage.getText(pdf).contains(Integer.toString(pdf.getNumberOfPages())));
+      }
+    }
+  }
+
+  @Test
+  public void testExportRangeMergedAndUnsupportedCharacters() throws Exception {
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      XSSFSheet sheet = workbook.createSheet("Report");
+      CellStyle bold = workbook.createCellStyle();
+      Font font = workbook.createFont();
+      font.setBold(true);
+      bold.setFont(font);
+      sheet.createRow(0).createCell(0).setCellValue("Quarterly report ✓ €");
+      sheet.getRow(0).getCell(0).setCellStyle(bold);
+      sheet.addMergedRegion(new CellRangeAddress(0, 0, 0, 3));
+      for (int r = 1; r < 10; r++) {
+        Row row = sheet.createRow(r);
+        for (int c = 0; c < 4; c++) row.createCell(c).setCellValue(r * 10 + c);
+      }
+      sheet.createRow(20).createCell(0).setCellValue("Outside");
+
+      try (PDDocument pdf = render(workbook, new ExportFormat().setShowGridLines(true))) {
+        String text = new PDFTextStripper().getText(pdf);
+        assertTrue(text.contains("Quarterly report ? €"));
+        assertTrue(text.contains("Outside"));
+      }
+      try (PDDocument pdf = render(workbook, new ExportFormat().setExportRange(1, 10, 1, 4))) {
+        String text = new PDFTextStripper().getText(pdf);
+        assertTrue(text.contains("93"));
+        assertFalse(text.contains("Outside"));
+      }
+    }
+  }
+
+  @Test
+  public void testMergedRegionIsClippedToThePage() throws Exception {
+    try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+      XSSFSheet sheet = workbook.createSheet("Report");
+      sheet.createRow(0).createCell(0).setCellValue("Merged");
+      for (int r = 0; r < 200; r++)
+        (r == 0 ? sheet.getRow(0) : sheet.createRow(r)).createCell(1).setCellValue(r);
+      sheet.addMergedRegion(new CellRangeAddress(0, 199, 0, 0));
+
+      List<PDFRenderer.Page> pages = PDFRenderer.layout(workbook, new ExportFormat(), null);
+      assertTrue(pages.size() > 1);
+      PDFRenderer.Page first = pages.get(0);
+      for (PDFRenderer.CellBox box : first.boxes) assertTrue(box.height < first.height);
+    }
+  }
+
+  @Test
+  public void testParallelLayoutMatchesSequential() throws Exception {
+    TemplateGenerator generator = new TemplateGenerator(5).setSheets(6).setTablesPerSheet(2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (Template template = generator.template()) {
+      Exporter.exportToExcel(generator.data(150), template, new JSONArray(), true);
+      ExportFormat format = new ExportFormat().setShowPageNumbers(true);
+      List<PDFRenderer.Page> sequential = PDFRenderer.layout(template.workbook, format, null);
+      List<PDFRenderer.Page> parallel = PDFRenderer.layout(template.workbook, format, executor);
+      assertEquals(sequential.size(), parallel.size());
+      for (int i = 0; i < sequential.size(); i++) {
+        assertEquals(sequential.get(i).sheetName, parallel.get(i).sheetName);
+        assertEquals(text(sequential.get(i)), text(parallel.get(i)));
+      }
+
+      // Pages are numbered across all sheets
+      try (PDDocument pdf = render(template.workbook, format)) {
+        assertEquals(sequential.size(), pdf.getNumberOfPages());
+        PDFTextStripper lastPage = new PDFTextStripper();
+        lastPage.setStartPage(pdf.getNumberOfPages());
+        assertTrue(lastPage.getText(pdf).contains(Integer.toString(pdf.getNumberOfPages())));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static String text(PDFRenderer.Page page) {
+    StringBuilder s = new StringBuilder();
+    for (PDFRenderer.CellBox box : page.boxes)
+      s.append(box.x).append(',').append(box.y).append(box.lines).append('\n');
+    return s.toString();
+  }
+
+  @Test
+  public void testSanitize() {
+    assertEquals("abc åäö € ? ?", PDFRenderer.sanitize("abc åäö € 中 😀"));
+  }
+}